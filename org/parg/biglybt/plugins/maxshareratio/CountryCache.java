@@ -0,0 +1,415 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.pif.utils.LocationProvider;
+
+	/**
+	 * IP -> ISO3166 country code cache sitting in front of the LocationProvider. Keyed on the raw
+	 * address bytes (IPv4 or IPv6) and split into segments, each an access-ordered LRU map with its
+	 * own lock, so concurrent connection checks don't serialise on a single monitor.
+	 *
+	 * String addresses are only ever parsed as literals - anything that isn't a literal IP (I2P,
+	 * Tor, host names) is treated as having no country rather than being resolved.
+	 */
+
+public class
+CountryCache
+{
+	public static final int		SEGMENTS			= 16;
+	public static final int		MAX_ENTRIES			= 64*1024;
+	public static final long	POSITIVE_TTL_MILLIS	= 60*60*1000;
+	public static final long	NEGATIVE_TTL_MILLIS	= 5*60*1000;
+
+	private static final String	NO_COUNTRY	= "";
+
+	private final Segment[]		segments = new Segment[SEGMENTS];
+
+	private final AtomicLong	hits	= new AtomicLong();
+	private final AtomicLong	misses	= new AtomicLong();
+
+	protected
+	CountryCache()
+	{
+		for ( int i=0;i<segments.length;i++ ){
+
+			segments[i] = new Segment( MAX_ENTRIES/SEGMENTS );
+		}
+	}
+
+		/**
+		 * @return country code or null if unknown
+		 */
+
+	protected String
+	getCountry(
+		LocationProvider	provider,
+		String				ip )
+	{
+		byte[]	address = parseLiteral( ip );
+
+		if ( address == null ){
+
+			return( null );
+		}
+
+		return( getCountry( provider, address ));
+	}
+
+	protected String
+	getCountry(
+		LocationProvider	provider,
+		byte[]				address )
+	{
+		AddressKey	key = new AddressKey( address );
+
+		Segment	segment = segments[( key.hashCode() & 0x7fffffff ) % SEGMENTS ];
+
+		long	now = SystemTime.getMonotonousTime();
+
+		Entry	entry;
+
+		synchronized( segment ){
+
+			entry = segment.get( key );
+		}
+
+		if ( entry != null ){
+
+			long	ttl = entry.cc == NO_COUNTRY?NEGATIVE_TTL_MILLIS:POSITIVE_TTL_MILLIS;
+
+			if ( now - entry.time < ttl ){
+
+				hits.incrementAndGet();
+
+				return( entry.cc == NO_COUNTRY?null:entry.cc );
+			}
+		}
+
+		misses.incrementAndGet();
+
+		String	cc = null;
+
+		try{
+				// getByAddress never does a lookup
+
+			cc = provider.getISO3166CodeForIP( InetAddress.getByAddress( address ));
+
+		}catch( Throwable e ){
+		}
+
+		synchronized( segment ){
+
+			segment.put( key, new Entry( cc==null?NO_COUNTRY:cc, now ));
+		}
+
+		return( cc );
+	}
+
+	protected void
+	clear()
+	{
+		for ( Segment segment: segments ){
+
+			synchronized( segment ){
+
+				segment.clear();
+			}
+		}
+	}
+
+	protected long
+	getHits()
+	{
+		return( hits.get());
+	}
+
+	protected long
+	getMisses()
+	{
+		return( misses.get());
+	}
+
+		/**
+		 * Parses dotted-quad IPv4 and IPv6 literals without ever touching DNS. IPv4-mapped IPv6
+		 * addresses come back as IPv4, as InetAddress would return them
+		 *
+		 * @return address bytes or null if not an IP literal
+		 */
+
+	protected static byte[]
+	parseLiteral(
+		String		ip )
+	{
+		if ( ip == null || ip.length() == 0 ){
+
+			return( null );
+		}
+
+		if ( ip.indexOf( ':' ) != -1 ){
+
+			if ( ip.startsWith( "[" ) && ip.endsWith( "]" )){
+
+				ip = ip.substring( 1, ip.length() - 1 );
+			}
+
+			return( parseIPv6( ip ));
+		}
+
+		return( parseIPv4( ip, 0, ip.length()));
+	}
+
+	private static byte[]
+	parseIPv4(
+		String		ip,
+		int			start,
+		int			end )
+	{
+		byte[]	result = new byte[4];
+
+		int	part 	= 0;
+		int	value	= -1;
+
+		for ( int i=start;i<end;i++ ){
+
+			char	c = ip.charAt( i );
+
+			if ( c >= '0' && c <= '9' ){
+
+				value = ( value==-1?0:value*10 ) + ( c - '0' );
+
+				if ( value > 255 ){
+
+					return( null );
+				}
+			}else if ( c == '.' ){
+
+				if ( value == -1 || part == 3 ){
+
+					return( null );
+				}
+
+				result[part++] = (byte)value;
+
+				value = -1;
+
+			}else{
+
+				return( null );
+			}
+		}
+
+		if ( value == -1 || part != 3 ){
+
+			return( null );
+		}
+
+		result[3] = (byte)value;
+
+		return( result );
+	}
+
+		/**
+		 * Hex groups with at most one '::' and optionally a dotted-quad for the last 32 bits. A
+		 * zone id ("%eth0") is ignored
+		 */
+
+	private static byte[]
+	parseIPv6(
+		String		ip )
+	{
+		int	len = ip.indexOf( '%' );
+
+		if ( len == -1 ){
+
+			len = ip.length();
+		}
+
+		byte[]	result = new byte[16];
+
+		int	pos	= 0;
+		int	gap	= -1;
+		int	i	= 0;
+
+		if ( ip.startsWith( "::" )){
+
+			gap	= 0;
+			i	= 2;
+		}
+
+		while( i < len ){
+
+			int	group_start	= i;
+			int	value		= 0;
+
+			while( i < len && i - group_start < 5 ){
+
+				int	digit = Character.digit( ip.charAt( i ), 16 );
+
+				if ( digit == -1 ){
+
+					break;
+				}
+
+				value = ( value << 4 ) | digit;
+
+				i++;
+			}
+
+			if ( i < len && ip.charAt( i ) == '.' ){
+
+				byte[]	v4 = pos<=12?parseIPv4( ip, group_start, len ):null;
+
+				if ( v4 == null ){
+
+					return( null );
+				}
+
+				System.arraycopy( v4, 0, result, pos, 4 );
+
+				pos += 4;
+
+				break;
+			}
+
+			int	digits = i - group_start;
+
+			if ( digits == 0 || digits > 4 || pos == 16 ){
+
+				return( null );
+			}
+
+			result[pos++]	= (byte)( value >> 8 );
+			result[pos++]	= (byte)value;
+
+			if ( i == len ){
+
+				break;
+			}
+
+			if ( ip.charAt( i++ ) != ':' || i == len ){
+
+				return( null );
+			}
+
+			if ( ip.charAt( i ) == ':' ){
+
+				if ( gap != -1 ){
+
+					return( null );
+				}
+
+				gap = pos;
+
+				i++;
+			}
+		}
+
+		if ( gap == -1 ){
+
+			if ( pos != 16 ){
+
+				return( null );
+			}
+		}else{
+
+			if ( pos == 16 ){
+
+				return( null );
+			}
+
+			int	tail = pos - gap;
+
+			System.arraycopy( result, gap, result, 16 - tail, tail );
+
+			Arrays.fill( result, gap, 16 - tail, (byte)0 );
+		}
+
+		for ( int j=0;j<10;j++ ){
+
+			if ( result[j] != 0 ){
+
+				return( result );
+			}
+		}
+
+		if ( result[10] == (byte)0xff && result[11] == (byte)0xff ){
+
+			return( Arrays.copyOfRange( result, 12, 16 ));
+		}
+
+		return( result );
+	}
+
+	private static class
+	AddressKey
+	{
+		private final byte[]	address;
+		private final int		hash;
+
+		private
+		AddressKey(
+			byte[]	_address )
+		{
+			address	= _address;
+			hash	= Arrays.hashCode( address );
+		}
+
+		public int
+		hashCode()
+		{
+			return( hash );
+		}
+
+		public boolean
+		equals(
+			Object	other )
+		{
+			return( other instanceof AddressKey && Arrays.equals( address, ((AddressKey)other).address ));
+		}
+	}
+
+	private static class
+	Entry
+	{
+		private final String	cc;
+		private final long		time;
+
+		private
+		Entry(
+			String	_cc,
+			long	_time )
+		{
+			cc		= _cc;
+			time	= _time;
+		}
+	}
+
+	private static class
+	Segment
+		extends LinkedHashMap<AddressKey,Entry>
+	{
+		private final int	max_entries;
+
+		private
+		Segment(
+			int		_max_entries )
+		{
+			super( 16, 0.75f, true );
+
+			max_entries	= _max_entries;
+		}
+
+		protected boolean
+		removeEldestEntry(
+			Map.Entry<AddressKey,Entry> eldest )
+		{
+			return( size() > max_entries );
+		}
+	}
+}
@@ -0,0 +1,595 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+	/**
+	 * Immutable IP range -> country table loaded from a local CSV file. Lookups are lock-free.
+	 *
+	 * IPv4 ranges are held as parallel sorted arrays with a 64k entry first level indexed by the top
+	 * 16 bits of the address, so a lookup is one array index plus a short binary search. IPv6 ranges
+	 * are keyed on the top 64 bits (allocations are never finer than a /64) and binary searched.
+	 *
+	 * The search needs ranges that don't overlap, so nested ranges - say a /24 assigned to another
+	 * country inside a /16 - are flattened when loaded with the most specific range winning. Ranges
+	 * that overlap without one containing the other can't be resolved and fail the load.
+	 *
+	 * Supported line formats (quotes optional, further columns ignored)
+	 *
+	 * 		start_ip,end_ip,CC				e.g. 1.0.0.0,1.0.0.255,AU
+	 * 		start_num,end_num,CC			IPv4 as decimal integers
+	 * 		cidr,CC							e.g. 1.0.0.0/24,AU
+	 */
+
+public class
+CountryRangeTable
+{
+	private final int[]		v4_index;
+	private final int[]		v4_starts;
+	private final int[]		v4_ends;
+	private final short[]	v4_codes;
+
+	private final long[]	v6_starts;
+	private final long[]	v6_ends;
+	private final short[]	v6_codes;
+
+	private
+	CountryRangeTable(
+		RangeList	v4,
+		RangeList	v6 )
+	{
+		v4_starts	= new int[v4.size];
+		v4_ends		= new int[v4.size];
+		v4_codes	= new short[v4.size];
+
+		for ( int i=0;i<v4.size;i++ ){
+
+			v4_starts[i]	= (int)v4.starts[i];
+			v4_ends[i]		= (int)v4.ends[i];
+			v4_codes[i]		= v4.codes[i];
+		}
+
+			// v4_index[p] = first range with start >= p<<16 (unsigned)
+
+		v4_index	= new int[65537];
+
+		int	pos = 0;
+
+		for ( int p=0;p<65536;p++ ){
+
+			long	prefix_start = ((long)p) << 16;
+
+			while( pos < v4.size && v4.starts[pos] < prefix_start ){
+
+				pos++;
+			}
+
+			v4_index[p] = pos;
+		}
+
+		v4_index[65536] = v4.size;
+
+		v6_starts	= Arrays.copyOf( v6.starts, v6.size );
+		v6_ends		= Arrays.copyOf( v6.ends, v6.size );
+		v6_codes	= Arrays.copyOf( v6.codes, v6.size );
+	}
+
+	protected int
+	size()
+	{
+		return( v4_starts.length + v6_starts.length );
+	}
+
+		/**
+		 * @return encoded country (see CountrySet) or CountrySet.NO_COUNTRY
+		 */
+
+	protected short
+	lookup(
+		byte[]		address )
+	{
+		if ( address.length == 4 ){
+
+			long	ip = 	(( address[0] & 0xffL ) << 24 ) |
+							(( address[1] & 0xffL ) << 16 ) |
+							(( address[2] & 0xffL ) << 8 ) |
+							( address[3] & 0xffL );
+
+			int	prefix = (int)( ip >>> 16 );
+
+				// the containing range either starts within this prefix or is the last one before it
+
+			int	lo = v4_index[prefix] - 1;
+			int	hi = v4_index[prefix+1] - 1;
+
+			if ( lo < 0 ){
+
+				lo = 0;
+			}
+
+			int	found = -1;
+
+			while( lo <= hi ){
+
+				int	mid = ( lo + hi ) >>> 1;
+
+				if (( v4_starts[mid] & 0xffffffffL ) <= ip ){
+
+					found	= mid;
+					lo		= mid + 1;
+
+				}else{
+
+					hi		= mid - 1;
+				}
+			}
+
+			if ( found != -1 && ip <= ( v4_ends[found] & 0xffffffffL )){
+
+				return( v4_codes[found] );
+			}
+		}else if ( address.length == 16 ){
+
+			long	ip = 0;
+
+			for ( int i=0;i<8;i++ ){
+
+				ip = ( ip << 8 ) | ( address[i] & 0xffL );
+			}
+
+			int	lo 		= 0;
+			int	hi 		= v6_starts.length - 1;
+			int	found	= -1;
+
+			while( lo <= hi ){
+
+				int	mid = ( lo + hi ) >>> 1;
+
+				if ( Long.compareUnsigned( v6_starts[mid], ip ) <= 0 ){
+
+					found	= mid;
+					lo		= mid + 1;
+
+				}else{
+
+					hi		= mid - 1;
+				}
+			}
+
+			if ( found != -1 && Long.compareUnsigned( ip, v6_ends[found] ) <= 0 ){
+
+				return( v6_codes[found] );
+			}
+		}
+
+		return( CountrySet.NO_COUNTRY );
+	}
+
+	protected static CountryRangeTable
+	load(
+		File		file )
+
+		throws IOException
+	{
+		RangeList	v4 = new RangeList();
+		RangeList	v6 = new RangeList();
+
+		BufferedReader	reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ));
+
+		int		line_number = 0;
+
+		try{
+			while( true ){
+
+				String	line = reader.readLine();
+
+				if ( line == null ){
+
+					break;
+				}
+
+				line_number++;
+
+				line = line.trim();
+
+				if ( line.length() == 0 || line.startsWith( "#" )){
+
+					continue;
+				}
+
+				String[]	bits = line.replace( "\"", "" ).split( "," );
+
+				for ( int i=0;i<bits.length;i++ ){
+
+					bits[i] = bits[i].trim();
+				}
+
+				if ( bits.length >= 3 && CountrySet.encode( bits[2] ) != CountrySet.NO_COUNTRY ){
+
+					addRange( v4, v6, line_number, bits[0], bits[1], CountrySet.encode( bits[2] ));
+
+				}else if ( bits.length >= 2 && bits[0].indexOf( '/' ) != -1 ){
+
+					addCIDR( v4, v6, line_number, bits[0], CountrySet.encode( bits[1] ));
+				}
+
+					// anything else is a header or unsupported, skip
+			}
+		}finally{
+
+			reader.close();
+		}
+
+		v4.flatten();
+		v6.flatten();
+
+		return( new CountryRangeTable( v4, v6 ));
+	}
+
+	private static void
+	addRange(
+		RangeList	v4,
+		RangeList	v6,
+		int			line,
+		String		start_str,
+		String		end_str,
+		short		code )
+	{
+		byte[]	start 	= parseAddress( start_str );
+		byte[]	end		= parseAddress( end_str );
+
+		if ( start == null || end == null || start.length != end.length ){
+
+			return;
+		}
+
+		if ( start.length == 4 ){
+
+			v4.add( toLong( start, 4 ), toLong( end, 4 ), code, line );
+
+		}else{
+
+			v6.add( toLong( start, 8 ), toLong( end, 8 ), code, line );
+		}
+	}
+
+	private static void
+	addCIDR(
+		RangeList	v4,
+		RangeList	v6,
+		int			line,
+		String		cidr,
+		short		code )
+	{
+		if ( code == CountrySet.NO_COUNTRY ){
+
+			return;
+		}
+
+		int	pos = cidr.indexOf( '/' );
+
+		byte[]	address = CountryCache.parseLiteral( cidr.substring( 0, pos ));
+
+		int	bits;
+
+		try{
+			bits = Integer.parseInt( cidr.substring( pos+1 ));
+
+		}catch( Throwable e ){
+
+			return;
+		}
+
+		if ( address == null ){
+
+			return;
+		}
+
+		if ( address.length == 4 ){
+
+			if ( bits < 0 || bits > 32 ){
+
+				return;
+			}
+
+			long	mask 	= bits==0?0:( 0xffffffffL << ( 32 - bits )) & 0xffffffffL;
+			long	start	= toLong( address, 4 ) & mask;
+
+			v4.add( start, start | ( ~mask & 0xffffffffL ), code, line );
+
+		}else{
+
+			if ( bits < 0 || bits > 128 ){
+
+				return;
+			}
+
+			int		top_bits	= Math.min( bits, 64 );
+			long	mask 		= top_bits==0?0:( -1L << ( 64 - top_bits ));
+			long	start		= toLong( address, 8 ) & mask;
+
+			v6.add( start, start | ~mask, code, line );
+		}
+	}
+
+	private static byte[]
+	parseAddress(
+		String		str )
+	{
+		byte[]	address = CountryCache.parseLiteral( str );
+
+		if ( address != null ){
+
+			return( address );
+		}
+
+			// decimal IPv4 as used by some databases
+
+		try{
+			long	num = Long.parseLong( str );
+
+			if ( num >= 0 && num <= 0xffffffffL ){
+
+				return( new byte[]{ (byte)( num >> 24 ), (byte)( num >> 16 ), (byte)( num >> 8 ), (byte)num });
+			}
+		}catch( Throwable e ){
+		}
+
+		return( null );
+	}
+
+	private static long
+	toLong(
+		byte[]	address,
+		int		len )
+	{
+		long	res = 0;
+
+		for ( int i=0;i<len;i++ ){
+
+			res = ( res << 8 ) | ( address[i] & 0xffL );
+		}
+
+		return( res );
+	}
+
+	private static class
+	RangeList
+	{
+		private long[]	starts	= new long[1024];
+		private long[]	ends	= new long[1024];
+		private short[]	codes	= new short[1024];
+		private int[]	lines	= new int[1024];
+
+		private int		size;
+
+		private void
+		add(
+			long		start,
+			long		end,
+			short		code,
+			int			line )
+		{
+			if ( Long.compareUnsigned( start, end ) > 0 ){
+
+				return;
+			}
+
+			if ( size == starts.length ){
+
+				starts	= Arrays.copyOf( starts, size*2 );
+				ends	= Arrays.copyOf( ends, size*2 );
+				codes	= Arrays.copyOf( codes, size*2 );
+				lines	= Arrays.copyOf( lines, size*2 );
+			}
+
+			starts[size]	= start;
+			ends[size]		= end;
+			codes[size]		= code;
+			lines[size]		= line;
+
+			size++;
+		}
+
+			/**
+			 * By start, a range before those nested in it
+			 */
+
+		private int
+		compare(
+			int		i1,
+			int		i2 )
+		{
+			int	res = Long.compareUnsigned( starts[i1], starts[i2] );
+
+			if ( res == 0 ){
+
+				res = Long.compareUnsigned( ends[i2], ends[i1] );
+			}
+
+			return( res );
+		}
+
+		private void
+		sort()
+		{
+			boolean	sorted = true;
+
+			for ( int i=1;i<size;i++ ){
+
+				if ( compare( i-1, i ) > 0 ){
+
+					sorted = false;
+
+					break;
+				}
+			}
+
+			if ( sorted ){
+
+				return;
+			}
+
+			Integer[]	order = new Integer[size];
+
+			for ( int i=0;i<size;i++ ){
+
+				order[i] = i;
+			}
+
+			Arrays.sort(
+				order,
+				new java.util.Comparator<Integer>()
+				{
+					public int
+					compare(
+						Integer	i1,
+						Integer	i2 )
+					{
+						return( RangeList.this.compare( i1, i2 ));
+					}
+				});
+
+			long[]	new_starts	= new long[size];
+			long[]	new_ends	= new long[size];
+			short[]	new_codes	= new short[size];
+			int[]	new_lines	= new int[size];
+
+			for ( int i=0;i<size;i++ ){
+
+				new_starts[i]	= starts[order[i]];
+				new_ends[i]		= ends[order[i]];
+				new_codes[i]	= codes[order[i]];
+				new_lines[i]	= lines[order[i]];
+			}
+
+			starts	= new_starts;
+			ends	= new_ends;
+			codes	= new_codes;
+			lines	= new_lines;
+		}
+
+			/**
+			 * Sorts and replaces nested ranges with the pieces of each not covered by a more specific
+			 * one, so that no two overlap
+			 *
+			 * @throws IOException	if two ranges overlap without one containing the other, or the
+			 * 						same range is given different countries
+			 */
+
+		private void
+		flatten()
+
+			throws IOException
+		{
+			sort();
+
+			RangeList	res = new RangeList();
+
+				// the ranges containing the current one, innermost last
+
+			int[]	open		= new int[16];
+			int		num_open	= 0;
+
+				// start of the part of the innermost open range not yet added, valid unless done
+
+			long	next		= 0;
+			boolean	done		= false;
+
+			for ( int i=0;i<=size;i++ ){
+
+					// close the open ranges that end before this one starts, adding what remains of each
+
+				while( num_open > 0 ){
+
+					int	outer = open[num_open-1];
+
+					if ( i < size && Long.compareUnsigned( ends[outer], starts[i] ) >= 0 ){
+
+						break;
+					}
+
+					if ( !done && Long.compareUnsigned( next, ends[outer] ) <= 0 ){
+
+						res.addMerged( next, ends[outer], codes[outer] );
+					}
+
+					next	= ends[outer] + 1;
+					done	= next == 0;
+
+					num_open--;
+				}
+
+				if ( i == size ){
+
+					break;
+				}
+
+				if ( num_open > 0 ){
+
+					int	outer = open[num_open-1];
+
+					if ( Long.compareUnsigned( ends[i], ends[outer] ) > 0 ){
+
+						throw( new IOException( "Range on line " + lines[i] + " overlaps the one on line " + lines[outer] + " without being contained in it" ));
+					}
+
+					if ( starts[i] == starts[outer] && ends[i] == ends[outer] ){
+
+						if ( codes[i] != codes[outer] ){
+
+							throw( new IOException( "Range on line " + lines[i] + " repeats the one on line " + lines[outer] + " with a different country" ));
+						}
+
+						continue;
+					}
+
+					if ( Long.compareUnsigned( next, starts[i] ) < 0 ){
+
+						res.addMerged( next, starts[i] - 1, codes[outer] );
+					}
+				}
+
+				if ( num_open == open.length ){
+
+					open = Arrays.copyOf( open, num_open*2 );
+				}
+
+				open[num_open++] = i;
+
+				next	= starts[i];
+				done	= false;
+			}
+
+			starts	= res.starts;
+			ends	= res.ends;
+			codes	= res.codes;
+			lines	= res.lines;
+			size	= res.size;
+		}
+
+			/**
+			 * Adds a range that starts after the last, extending the last if adjacent with the same country
+			 */
+
+		private void
+		addMerged(
+			long		start,
+			long		end,
+			short		code )
+		{
+			if ( size > 0 && codes[size-1] == code && ends[size-1] + 1 == start ){
+
+				ends[size-1] = end;
+
+			}else{
+
+				add( start, end, code, 0 );
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+	/**
+	 * Immutable set of two letter ISO3166 country codes held as a 26x26 bitmap. Codes are encoded
+	 * as a short (first letter * 26 + second letter) so range tables can store them compactly
+	 */
+
+public class
+CountrySet
+{
+	public static final short	NO_COUNTRY		= -1;
+
+	public static final int		NUM_CODES		= 26*26;
+
+	private final long[]	bits = new long[( NUM_CODES + 63 ) / 64];
+
+	private final int		size;
+
+	protected
+	CountrySet(
+		String[]	codes )
+	{
+		int	num = 0;
+
+		for ( String cc: codes ){
+
+			short	code = encode( cc );
+
+			if ( code != NO_COUNTRY && !contains( code )){
+
+				bits[code>>>6] |= 1L << ( code & 63 );
+
+				num++;
+			}
+		}
+
+		size	= num;
+	}
+
+	protected boolean
+	contains(
+		short		code )
+	{
+		if ( code < 0 || code >= NUM_CODES ){
+
+			return( false );
+		}
+
+		return(( bits[code>>>6] & ( 1L << ( code & 63 ))) != 0 );
+	}
+
+	protected boolean
+	contains(
+		String		cc )
+	{
+		return( contains( encode( cc )));
+	}
+
+	protected int
+	size()
+	{
+		return( size );
+	}
+
+	protected static short
+	encode(
+		String		cc )
+	{
+		if ( cc == null || cc.length() != 2 ){
+
+			return( NO_COUNTRY );
+		}
+
+		int	c0 = Character.toUpperCase( cc.charAt( 0 )) - 'A';
+		int	c1 = Character.toUpperCase( cc.charAt( 1 )) - 'A';
+
+		if ( c0 < 0 || c0 >= 26 || c1 < 0 || c1 >= 26 ){
+
+			return( NO_COUNTRY );
+		}
+
+		return((short)( c0 * 26 + c1 ));
+	}
+
+	protected static String
+	decode(
+		short		code )
+	{
+		if ( code < 0 || code >= NUM_CODES ){
+
+			return( null );
+		}
+
+		return( new String( new char[]{ (char)( 'A' + code / 26 ), (char)( 'A' + code % 26 )}));
+	}
+}
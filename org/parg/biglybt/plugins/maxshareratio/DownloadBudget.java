@@ -0,0 +1,318 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+	/**
+	 * Ledger of the bytes downloaded for the sake of ratio across all enabled downloads, limited
+	 * to a daily budget over a sliding 24 hours kept in hourly buckets. The buckets are exported
+	 * for the plugin to save so that a restart doesn't hand out a fresh day's budget.
+	 *
+	 * When a provider wants a new target piece it offers it as an opportunity: the piece's size and
+	 * the expected upload multiple (bytes uploaded per byte downloaded). Offers wait in a queue
+	 * ordered by multiple and an offer is granted only if the budget left covers it and every
+	 * better offer still waiting, so when the budget is tight it goes to the best opportunities
+	 * across all the torrents rather than to whichever asks first. Providers whose offer is refused
+	 * hold off for RETRY_MILLIS and then offer their best again, offers not renewed within
+	 * OFFER_EXPIRY_MILLIS are dropped.
+	 *
+	 * Offers below MIN_MULTIPLE are never granted. It is low as the multiples are the scorer's
+	 * view of demand right now, which understates what a piece uploads while held several times
+	 * over - mostly a piece isn't worth the bytes because better opportunities want them.
+	 *
+	 * Called from the peer manager threads of all the downloads, so synchronized. Offers are only
+	 * made when a target is wanted, which is rare compared with picker calls, but a refused
+	 * provider renews its offer every RETRY_MILLIS for as long as it is refused. So each owner's
+	 * Opportunity is kept and reused and the waiting offers are a list, there being one at most
+	 * per enabled download, rather than a sorted set whose nodes would be allocated every time.
+	 */
+
+public class
+DownloadBudget
+{
+	public static final double	MIN_MULTIPLE		= 0.25;
+	public static final int		RETRY_MILLIS		= 5*1000;
+	public static final int		OFFER_EXPIRY_MILLIS	= 3*RETRY_MILLIS;
+
+	private static final int	HOURS			= 24;
+	private static final long	HOUR_MILLIS		= 60*60*1000;
+
+	private final ShareClock	clock;
+
+	private final long[]	spent	= new long[HOURS];
+	private long			spent_hour;
+
+	private final List<Opportunity>			queue	= new ArrayList<Opportunity>();
+	private final Map<Object,Opportunity>	offers	= new HashMap<Object,Opportunity>();
+
+	private long	next_seq;
+
+	private long	granted;
+	private long	refused;
+
+	protected
+	DownloadBudget(
+		ShareClock		_clock )
+	{
+		clock	= _clock;
+	}
+
+		/**
+		 * @param owner			the offering provider, replaces any earlier offer it made
+		 * @param bytes			size of the piece
+		 * @param multiple		expected upload bytes per downloaded byte
+		 * @param daily_limit	bytes allowed per 24 hours
+		 * @return true if granted, the bytes having been charged
+		 */
+
+	protected synchronized boolean
+	request(
+		Object		owner,
+		long		bytes,
+		double		multiple,
+		long		daily_limit )
+	{
+		long	now = clock.getCurrentTime();
+
+		Opportunity	opportunity = offers.get( owner );
+
+		if ( opportunity != null ){
+
+			queue.remove( opportunity );
+		}
+
+		expire( now );
+
+		if ( multiple < MIN_MULTIPLE ){
+
+			refused++;
+
+			return( false );
+		}
+
+		if ( opportunity == null ){
+
+			opportunity = new Opportunity();
+
+			offers.put( owner, opportunity );
+		}
+
+		opportunity.set( bytes, multiple, now, next_seq++ );
+
+		long	ahead = 0;
+
+		for ( int i=0;i<queue.size();i++ ){
+
+			Opportunity	other = queue.get( i );
+
+			if ( other.compareTo( opportunity ) < 0 ){
+
+				ahead += other.bytes;
+			}
+		}
+
+		if ( ahead + bytes <= daily_limit - getSpent( now )){
+
+			spent[(int)( spent_hour % HOURS )] += bytes;
+
+			granted++;
+
+			return( true );
+		}
+
+		queue.add( opportunity );
+
+		refused++;
+
+		return( false );
+	}
+
+	protected synchronized void
+	withdraw(
+		Object		owner )
+	{
+		Opportunity	opportunity = offers.remove( owner );
+
+		if ( opportunity != null ){
+
+			queue.remove( opportunity );
+		}
+	}
+
+		/**
+		 * @return bytes granted in the last 24 hours
+		 */
+
+	protected synchronized long
+	getSpent()
+	{
+		return( getSpent( clock.getCurrentTime()));
+	}
+
+		/**
+		 * @return the hour of the latest bucket and the buckets, "hour:bytes,bytes,..."
+		 */
+
+	protected synchronized String
+	exportSpent()
+	{
+		StringBuilder	sb = new StringBuilder( 256 );
+
+		sb.append( spent_hour ).append( ':' );
+
+		for ( int i=0;i<HOURS;i++ ){
+
+			sb.append( i==0?"":"," ).append( spent[i] );
+		}
+
+		return( sb.toString());
+	}
+
+		/**
+		 * Restores buckets from exportSpent, ignored if malformed. Hours that have passed since
+		 * are cleared as usual on the next use
+		 */
+
+	protected synchronized void
+	importSpent(
+		String		str )
+	{
+		int	pos = str.indexOf( ':' );
+
+		if ( pos == -1 ){
+
+			return;
+		}
+
+		String[]	bits = str.substring( pos+1 ).split( "," );
+
+		if ( bits.length != HOURS ){
+
+			return;
+		}
+
+		long[]	buckets = new long[HOURS];
+		long	hour;
+
+		try{
+			hour = Long.parseLong( str.substring( 0, pos ));
+
+			for ( int i=0;i<HOURS;i++ ){
+
+				buckets[i] = Long.parseLong( bits[i] );
+			}
+		}catch( Throwable e ){
+
+			return;
+		}
+
+		System.arraycopy( buckets, 0, spent, 0, HOURS );
+
+		spent_hour = hour;
+	}
+
+	protected synchronized String
+	getString(
+		long		daily_limit )
+	{
+		return( "spent=" + getSpent() + " of " + daily_limit + " per day, granted=" + granted + ", refused=" + refused + ", waiting=" + queue.size());
+	}
+
+	private long
+	getSpent(
+		long		now )
+	{
+		long	hour = now / HOUR_MILLIS;
+
+		if ( hour != spent_hour ){
+
+				// clear the buckets for the hours skipped, all of them after a long gap
+				// or if the clock went backwards
+
+			if ( hour < spent_hour || hour - spent_hour >= HOURS ){
+
+				for ( int i=0;i<HOURS;i++ ){
+
+					spent[i] = 0;
+				}
+			}else{
+
+				for ( long h=spent_hour+1;h<=hour;h++ ){
+
+					spent[(int)( h % HOURS )] = 0;
+				}
+			}
+
+			spent_hour = hour;
+		}
+
+		long	total = 0;
+
+		for ( long s: spent ){
+
+			total += s;
+		}
+
+		return( total );
+	}
+
+		/**
+		 * Drops offers that haven't been renewed, the owner keeps its Opportunity for the next one
+		 */
+
+	private void
+	expire(
+		long		now )
+	{
+		for ( int i=queue.size()-1;i>=0;i-- ){
+
+			Opportunity	opportunity = queue.get( i );
+
+			if ( now < opportunity.time || now - opportunity.time > OFFER_EXPIRY_MILLIS ){
+
+				queue.remove( i );
+			}
+		}
+	}
+
+	private static class
+	Opportunity
+		implements Comparable<Opportunity>
+	{
+		private long		bytes;
+		private double		multiple;
+		private long		time;
+		private long		seq;
+
+		private void
+		set(
+			long		_bytes,
+			double		_multiple,
+			long		_time,
+			long		_seq )
+		{
+			bytes		= _bytes;
+			multiple	= _multiple;
+			time		= _time;
+			seq			= _seq;
+		}
+
+			// best multiple first, then oldest
+
+		public int
+		compareTo(
+			Opportunity	other )
+		{
+			int	res = Double.compare( other.multiple, multiple );
+
+			if ( res == 0 ){
+
+				res = Long.compare( seq, other.seq );
+			}
+
+			return( res );
+		}
+	}
+}
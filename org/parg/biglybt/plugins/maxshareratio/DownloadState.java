@@ -0,0 +1,270 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import com.biglybt.core.util.Average;
+
+	/**
+	 * Per-download plugin state. The enabled flag and upload average are read from table refreshes,
+	 * the piece picker and peer events so are published via volatiles rather than under a lock.
+	 * The Average itself is only touched by the stats timer and only exists once the download has
+	 * been enabled, as do the peer listener and priority provider, so disabled downloads cost
+	 * little more than this object.
+	 */
+
+public class
+DownloadState
+{
+	public static final int	MAX_SEEDS_UNSET		= -2;
+	public static final int	MAX_SEEDS_DEFAULT	= -1;
+
+	public static final int	RATE_LIMIT_NOT_APPLIED	= Integer.MIN_VALUE;
+
+	private volatile boolean	enabled;
+	private volatile boolean	been_enabled;
+
+	private volatile int		max_seeds	= MAX_SEEDS_UNSET;
+	private final MetricCounters	counters	= new MetricCounters();
+
+	private volatile String		strategy_id;
+
+	private long				last_uploaded		= -1;
+	private long				last_downloaded		= -1;
+	private long				uploaded_delta;
+	private long				downloaded_delta;
+
+	private Average				upload_history;
+	private volatile long		upload_average;
+
+	private volatile int		upload_demand;
+	private volatile int		upload_slots;
+	private volatile int		upload_rate_limit;
+	private int					applied_rate_limit	= RATE_LIMIT_NOT_APPLIED;
+
+	private boolean				peer_listener_added;
+
+	private volatile PeerManagerAttachment	attachment;
+
+	protected
+	DownloadState(
+		boolean		_enabled )
+	{
+		enabled			= _enabled;
+		been_enabled	= _enabled;
+	}
+
+	protected boolean
+	isEnabled()
+	{
+		return( enabled );
+	}
+
+	protected void
+	setEnabled(
+		boolean		_enabled )
+	{
+		enabled	= _enabled;
+
+		if ( _enabled ){
+
+			been_enabled = true;
+		}
+	}
+
+		/**
+		 * @return true if the download has been enabled at any time since this state was created,
+		 * state also gets created by per-download settings on downloads that never are
+		 */
+
+	protected boolean
+	hasBeenEnabled()
+	{
+		return( been_enabled );
+	}
+
+	protected void
+	addUploadSample(
+		long		rate )
+	{
+		if ( upload_history == null ){
+
+			upload_history = Average.getInstance( 1000, 60 );
+		}
+
+		upload_history.addValue( rate );
+
+		upload_average = upload_history.getAverage();
+	}
+
+	protected long
+	getUploadAverage()
+	{
+		return( upload_average );
+	}
+
+		/**
+		 * @return connected leechers when last looked at, the most upload slots that could be used
+		 */
+
+	protected int
+	getUploadDemand()
+	{
+		return( upload_demand );
+	}
+
+	protected void
+	setUploadDemand(
+		int		demand )
+	{
+		upload_demand = demand;
+	}
+
+		/**
+		 * @return slots given by the UploadAllocator, 0 if not yet allocated
+		 */
+
+	protected int
+	getUploadSlots()
+	{
+		return( upload_slots );
+	}
+
+		/**
+		 * @return rate limit given by the UploadAllocator, 0 for none, UploadAllocator.PARKED_RATE if
+		 * upload is to be disabled
+		 */
+
+	protected int
+	getUploadRateLimit()
+	{
+		return( upload_rate_limit );
+	}
+
+	protected void
+	setUploadAllocation(
+		int		slots,
+		int		rate_limit )
+	{
+		upload_slots		= slots;
+		upload_rate_limit	= rate_limit;
+	}
+
+		/**
+		 * @return the rate limit the plugin last set on the download, RATE_LIMIT_NOT_APPLIED if it hasn't
+		 */
+
+	protected int
+	getAppliedRateLimit()
+	{
+		return( applied_rate_limit );
+	}
+
+	protected void
+	setAppliedRateLimit(
+		int		limit )
+	{
+		applied_rate_limit = limit;
+	}
+
+	protected boolean
+	isPeerListenerAdded()
+	{
+		return( peer_listener_added );
+	}
+
+	protected void
+	setPeerListenerAdded(
+		boolean		added )
+	{
+		peer_listener_added = added;
+	}
+
+	protected int
+	getMaxSeeds()
+	{
+		return( max_seeds );
+	}
+
+	protected void
+	setMaxSeeds(
+		int		_max_seeds )
+	{
+		max_seeds = _max_seeds;
+	}
+
+	protected MetricCounters
+	getCounters()
+	{
+		return( counters );
+	}
+
+		/**
+		 * @return null if not yet read, empty for the default strategy
+		 */
+
+	protected String
+	getStrategyID()
+	{
+		return( strategy_id );
+	}
+
+	protected void
+	setStrategyID(
+		String		id )
+	{
+		strategy_id = id;
+	}
+
+		/**
+		 * Records the download's current totals, the change since the last call being available
+		 * from getUploadedDelta/getDownloadedDelta. Stats timer only
+		 *
+		 * @return false on the first call (or after a reset) as there is no delta yet
+		 */
+
+	protected boolean
+	updateTransferTotals(
+		long		uploaded,
+		long		downloaded )
+	{
+		boolean	have_delta = last_uploaded >= 0;
+
+		uploaded_delta		= have_delta?Math.max( 0, uploaded - last_uploaded ):0;
+		downloaded_delta	= have_delta?Math.max( 0, downloaded - last_downloaded ):0;
+
+		last_uploaded	= uploaded;
+		last_downloaded	= downloaded;
+
+		return( have_delta );
+	}
+
+	protected void
+	resetTransferTotals()
+	{
+		last_uploaded	= -1;
+		last_downloaded	= -1;
+	}
+
+	protected long
+	getUploadedDelta()
+	{
+		return( uploaded_delta );
+	}
+
+	protected long
+	getDownloadedDelta()
+	{
+		return( downloaded_delta );
+	}
+
+	protected PeerManagerAttachment
+	getAttachment()
+	{
+		return( attachment );
+	}
+
+	protected void
+	setAttachment(
+		PeerManagerAttachment	_attachment )
+	{
+		attachment = _attachment;
+	}
+}
@@ -0,0 +1,122 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.pif.download.Download;
+
+	/**
+	 * Hashed time wheel spreading periodic per-download work over the ticks of its period. Each
+	 * registered download lives in one slot; on each tick the current slot's downloads are queued
+	 * and at most max_per_tick of the queue are handed out. With a reasonable load every download is
+	 * visited once per period, under overload the period stretches rather than the tick spiking.
+	 */
+
+public class
+DownloadTimeWheel
+{
+	private final List<Download>[]		slots;
+	private final Map<Download,Integer>	slot_map	= new HashMap<Download,Integer>();
+
+	private final LinkedHashSet<Download>	pending	= new LinkedHashSet<Download>();
+
+	private final int	max_per_tick;
+
+	private int		tick;
+	private int		next_slot;
+
+	@SuppressWarnings("unchecked")
+	protected
+	DownloadTimeWheel(
+		int		num_slots,
+		int		_max_per_tick )
+	{
+		slots	= new List[num_slots];
+
+		for ( int i=0;i<num_slots;i++ ){
+
+			slots[i] = new ArrayList<Download>();
+		}
+
+		max_per_tick	= _max_per_tick;
+	}
+
+	protected synchronized void
+	add(
+		Download	download )
+	{
+		if ( slot_map.containsKey( download )){
+
+			return;
+		}
+
+			// round-robin placement keeps the slots balanced regardless of hash distribution
+
+		int	slot = next_slot;
+
+		next_slot = ( next_slot + 1 ) % slots.length;
+
+		slots[slot].add( download );
+
+		slot_map.put( download, slot );
+	}
+
+	protected synchronized void
+	remove(
+		Download	download )
+	{
+		Integer	slot = slot_map.remove( download );
+
+		if ( slot != null ){
+
+			slots[slot].remove( download );
+		}
+
+		pending.remove( download );
+	}
+
+	protected synchronized void
+	getDownloads(
+		List<Download>	result )
+	{
+		result.clear();
+
+		result.addAll( slot_map.keySet());
+	}
+
+	protected synchronized int
+	size()
+	{
+		return( slot_map.size());
+	}
+
+		/**
+		 * Advances the wheel one tick
+		 *
+		 * @param	due		receives the downloads to process this tick, cleared first
+		 */
+
+	protected synchronized void
+	tick(
+		List<Download>	due )
+	{
+		due.clear();
+
+		pending.addAll( slots[tick] );
+
+		tick = ( tick + 1 ) % slots.length;
+
+		Iterator<Download>	it = pending.iterator();
+
+		while( it.hasNext() && due.size() < max_per_tick ){
+
+			due.add( it.next());
+
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.pif.download.Download;
+import com.biglybt.pif.download.DownloadAnnounceResult;
+import com.biglybt.pif.download.DownloadScrapeResult;
+import com.biglybt.pif.peers.PeerManager;
+import com.biglybt.pif.peers.PeerManagerStats;
+
+	/**
+	 * Decides whether a newly added download is worth enabling while the swarm is young, which is
+	 * when being early pays most. The swarm's shape is taken from whichever of the scrape, the last
+	 * announce and the connected peers reports most, and is sampled until a decision is made:
+	 *
+	 * 		- enough leechers per seed, and at least a minimum number of leechers, and not shrinking
+	 * 		- or leechers having grown by at least that minimum since first seen
+	 *
+	 * Growth is measured per tracker source, the scrape and the announce each against the first
+	 * count it gave, as the sources count differently and a swarm seen first via one and later
+	 * via another isn't growing. Connected peers aren't used for growth as they climb while we
+	 * connect whatever the swarm is doing. Without tracker data there's no growth to go on.
+	 *
+	 * A swarm that doesn't match within DECIDE_MILLIS, or halves in the meantime, is left alone.
+	 * Only downloads added within ADDED_WINDOW_MILLIS are candidates so that existing ones aren't
+	 * evaluated at startup.
+	 */
+
+public class
+EarlyJoinEvaluator
+{
+	public static final int	WAIT	= 0;
+	public static final int	ENABLE	= 1;
+	public static final int	REJECT	= 2;
+
+	public static final int	DECIDE_MILLIS		= 5*60*1000;
+	public static final int	ADDED_WINDOW_MILLIS	= 10*60*1000;
+
+	private static final int	SOURCE_SCRAPE	= 0;
+	private static final int	SOURCE_ANNOUNCE	= 1;
+	private static final int	NUM_SOURCES		= 2;
+
+	private final ShareClock	clock;
+
+	private final Map<Download,Candidate>	candidates = new HashMap<Download,Candidate>();
+
+	private volatile boolean	has_candidates;
+
+	private String	last_swarm	= "";
+
+	protected
+	EarlyJoinEvaluator(
+		ShareClock		_clock )
+	{
+		clock	= _clock;
+	}
+
+		/**
+		 * @return true if the download was added recently enough to be a candidate
+		 */
+
+	protected synchronized boolean
+	addCandidate(
+		Download	download )
+	{
+		long	now = clock.getCurrentTime();
+
+		long	added = download.getCreationTime();
+
+		if ( added > now || now - added > ADDED_WINDOW_MILLIS ){
+
+			return( false );
+		}
+
+		candidates.put( download, new Candidate( now ));
+
+		has_candidates = true;
+
+		return( true );
+	}
+
+	protected synchronized void
+	remove(
+		Download	download )
+	{
+		candidates.remove( download );
+
+		has_candidates = !candidates.isEmpty();
+	}
+
+	protected boolean
+	hasCandidates()
+	{
+		return( has_candidates );
+	}
+
+	protected synchronized void
+	getCandidates(
+		List<Download>	result )
+	{
+		result.clear();
+
+		result.addAll( candidates.keySet());
+	}
+
+		/**
+		 * Takes a sample of the download's swarm. ENABLE and REJECT remove the candidate
+		 *
+		 * @return WAIT, ENABLE or REJECT
+		 */
+
+	protected synchronized int
+	evaluate(
+		Download	download,
+		int			min_leechers,
+		int			min_leechers_per_seed )
+	{
+		Candidate	candidate = candidates.get( download );
+
+		if ( candidate == null ){
+
+			return( REJECT );
+		}
+
+		long	now = clock.getCurrentTime();
+
+		last_swarm = "no swarm information";
+
+		int	seeds		= -1;
+		int	leechers	= -1;
+
+		boolean	has_growth	= false;
+		int		growth		= Integer.MIN_VALUE;
+		boolean	halved		= true;
+
+		DownloadScrapeResult	scrape = download.getLastScrapeResult();
+
+		if ( scrape != null && scrape.getResponseType() == DownloadScrapeResult.RT_SUCCESS ){
+
+			seeds		= scrape.getSeedCount();
+			leechers	= scrape.getNonSeedCount();
+
+			int	source_growth = candidate.getGrowth( SOURCE_SCRAPE, leechers );
+
+			if ( source_growth != Integer.MIN_VALUE ){
+
+				has_growth	= true;
+				growth		= Math.max( growth, source_growth );
+				halved		&= candidate.isHalved( SOURCE_SCRAPE, leechers );
+			}
+		}
+
+		DownloadAnnounceResult	announce = download.getLastAnnounceResult();
+
+		if ( announce != null ){
+
+			seeds		= Math.max( seeds, announce.getSeedCount());
+			leechers	= Math.max( leechers, announce.getNonSeedCount());
+
+			int	source_growth = candidate.getGrowth( SOURCE_ANNOUNCE, announce.getNonSeedCount());
+
+			if ( source_growth != Integer.MIN_VALUE ){
+
+				has_growth	= true;
+				growth		= Math.max( growth, source_growth );
+				halved		&= candidate.isHalved( SOURCE_ANNOUNCE, announce.getNonSeedCount());
+			}
+		}
+
+		PeerManager	pm = download.getPeerManager();
+
+		if ( pm != null ){
+
+			PeerManagerStats	stats = pm.getStats();
+
+			seeds		= Math.max( seeds, stats.getConnectedSeeds());
+			leechers	= Math.max( leechers, stats.getConnectedLeechers());
+		}
+
+		int	decision = WAIT;
+
+		if ( !has_growth ){
+
+			growth	= 0;
+			halved	= false;
+		}
+
+		if ( leechers > 0 ){
+
+			last_swarm = "leechers=" + leechers + ", seeds=" + Math.max( 0, seeds ) + ", growth=" + ( has_growth?String.valueOf( growth ):"-" );
+
+			if ( 	( 	leechers >= min_leechers &&
+						leechers >= Math.max( 1, seeds ) * min_leechers_per_seed &&
+						growth >= 0 ) ||
+					growth >= min_leechers ){
+
+				decision = ENABLE;
+
+			}else if ( halved ){
+
+				decision = REJECT;
+			}
+		}
+
+		if ( decision == WAIT && ( now < candidate.added || now - candidate.added > DECIDE_MILLIS )){
+
+			decision = REJECT;
+		}
+
+		if ( decision != WAIT ){
+
+			remove( download );
+		}
+
+		return( decision );
+	}
+
+		/**
+		 * @return description of the swarm as seen by the last evaluate
+		 */
+
+	protected synchronized String
+	getLastSwarm()
+	{
+		return( last_swarm );
+	}
+
+	private static class
+	Candidate
+	{
+		private final long	added;
+
+		private final int[]	first_leechers	= new int[NUM_SOURCES];
+
+		private
+		Candidate(
+			long	_added )
+		{
+			added	= _added;
+
+			Arrays.fill( first_leechers, -1 );
+		}
+
+			/**
+			 * @return growth in the source's leechers since it first reported some,
+			 * Integer.MIN_VALUE if it hasn't
+			 */
+
+		private int
+		getGrowth(
+			int		source,
+			int		leechers )
+		{
+			if ( first_leechers[source] < 0 ){
+
+				if ( leechers <= 0 ){
+
+					return( Integer.MIN_VALUE );
+				}
+
+				first_leechers[source] = leechers;
+			}
+
+			return( leechers - first_leechers[source] );
+		}
+
+		private boolean
+		isHalved(
+			int		source,
+			int		leechers )
+		{
+			return( leechers * 2 <= first_leechers[source] );
+		}
+	}
+}
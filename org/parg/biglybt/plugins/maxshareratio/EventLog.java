@@ -0,0 +1,410 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.biglybt.core.util.AEThread2;
+import com.biglybt.core.util.Debug;
+import com.biglybt.pif.download.Download;
+import com.biglybt.pif.logging.LoggerChannel;
+
+	/**
+	 * Asynchronous front end to the plugin's logger channel so that callers - peer manager threads,
+	 * the IP filter on the connection path - never wait on formatting, the channel or the view.
+	 *
+	 * Messages go into a fixed size ring as a format and its arguments and are only formatted by
+	 * the writer thread, Download arguments becoming the download's name and a download the message
+	 * is about its prefix. If the writer falls
+	 * behind the newest messages are dropped and counted rather than the ring growing. Each
+	 * category has a limit per WINDOW_MILLIS, messages over it are counted and reported as a
+	 * single line at the end of the window. IP filter blocks aren't logged individually but
+	 * counted per country and reported as one line per country per window.
+	 */
+
+public class
+EventLog
+{
+	public static final int	CAT_GENERAL		= 0;
+	public static final int	CAT_DOWNLOAD	= 1;
+	public static final int	CAT_ERROR		= 2;
+
+	private static final String[]	CATEGORY_NAMES	= { "general", "download", "error" };
+
+		// per window, 0 for no limit
+
+	private static final int[]		CATEGORY_LIMITS	= { 0, 100, 10 };
+
+	public static final int	RING_SIZE			= 1024;
+	public static final int	WINDOW_MILLIS		= 10*1000;
+	public static final int	MAX_TRACE_FRAMES	= 10;
+
+	private static final int	BLOCK_NOT_INITIALISED	= CountrySet.NUM_CODES;
+
+	private final LoggerChannel		logger;
+	private final ShareClock		clock;
+
+	private final String[]		formats		= new String[RING_SIZE];
+	private final Object[][]	args		= new Object[RING_SIZE][];
+	private final Throwable[]	errors		= new Throwable[RING_SIZE];
+	private final Download[]	subjects	= new Download[RING_SIZE];
+
+	private int		head;
+	private int		count;
+	private int		dropped;
+
+	private long	window_start;
+	private final int[]		window_counts	= new int[CATEGORY_NAMES.length];
+	private final int[]		suppressed		= new int[CATEGORY_NAMES.length];
+
+	private final AtomicIntegerArray	blocked	= new AtomicIntegerArray( CountrySet.NUM_CODES + 1 );
+
+	private volatile boolean	destroyed;
+
+	protected
+	EventLog(
+		LoggerChannel		_logger,
+		ShareClock			_clock )
+	{
+		logger	= _logger;
+		clock	= _clock;
+
+		window_start = clock.getMonotonousTime();
+
+		new AEThread2( "MaxShareRatio:log", true )
+		{
+			public void
+			run()
+			{
+				writer();
+			}
+		}.start();
+	}
+
+		/**
+		 * @param format	String.format style, used as is if there are no arguments
+		 */
+
+	protected void
+	log(
+		int			category,
+		String		format,
+		Object...	format_args )
+	{
+		log( category, null, null, format, format_args );
+	}
+
+	protected void
+	log(
+		int			category,
+		Throwable	error,
+		String		format,
+		Object...	format_args )
+	{
+		log( category, null, error, format, format_args );
+	}
+
+		/**
+		 * A message about the download, prefixed with its name
+		 */
+
+	protected void
+	log(
+		int			category,
+		Download	subject,
+		String		format,
+		Object...	format_args )
+	{
+		log( category, subject, null, format, format_args );
+	}
+
+	private synchronized void
+	log(
+		int			category,
+		Download	subject,
+		Throwable	error,
+		String		format,
+		Object[]	format_args )
+	{
+		int	limit = CATEGORY_LIMITS[category];
+
+		if ( limit > 0 && ++window_counts[category] > limit ){
+
+			suppressed[category]++;
+
+			return;
+		}
+
+		if ( count == RING_SIZE ){
+
+			dropped++;
+
+			return;
+		}
+
+		int	index = ( head + count ) % RING_SIZE;
+
+		formats[index]	= format;
+		args[index]		= format_args;
+		errors[index]	= error;
+		subjects[index]	= subject;
+
+		count++;
+
+		if ( count == 1 ){
+
+			notify();
+		}
+	}
+
+		/**
+		 * Connection path - an atomic increment, reported once per window
+		 *
+		 * @param cc	country code, -1 if the filter wasn't yet initialised
+		 */
+
+	protected void
+	countBlocked(
+		short		cc )
+	{
+		blocked.incrementAndGet( cc>=0&&cc<CountrySet.NUM_CODES?cc:BLOCK_NOT_INITIALISED );
+	}
+
+	protected void
+	destroy()
+	{
+		destroyed = true;
+
+		synchronized( this ){
+
+			notify();
+		}
+	}
+
+	private void
+	writer()
+	{
+		String[]	batch_formats	= new String[RING_SIZE];
+		Object[][]	batch_args		= new Object[RING_SIZE][];
+		Throwable[]	batch_errors	= new Throwable[RING_SIZE];
+		Download[]	batch_subjects	= new Download[RING_SIZE];
+
+		while( !destroyed ){
+
+			int		num;
+			int		num_dropped;
+
+			boolean	window_ended = false;
+
+			synchronized( this ){
+
+				if ( count == 0 ){
+
+					try{
+						wait( WINDOW_MILLIS / 10 );
+
+					}catch( InterruptedException e ){
+					}
+				}
+
+				num = count;
+
+				for ( int i=0;i<num;i++ ){
+
+					int	index = ( head + i ) % RING_SIZE;
+
+					batch_formats[i]	= formats[index];
+					batch_args[i]		= args[index];
+					batch_errors[i]		= errors[index];
+					batch_subjects[i]	= subjects[index];
+
+					formats[index]	= null;
+					args[index]		= null;
+					errors[index]	= null;
+					subjects[index]	= null;
+				}
+
+				head	= ( head + num ) % RING_SIZE;
+				count	= 0;
+
+				num_dropped	= dropped;
+				dropped		= 0;
+
+				long	now = clock.getMonotonousTime();
+
+				if ( now - window_start >= WINDOW_MILLIS ){
+
+					window_start	= now;
+					window_ended	= true;
+				}
+			}
+
+				// each entry on its own so that a bad format or toString() only loses that message
+
+			for ( int i=0;i<num;i++ ){
+
+				try{
+					write( batch_formats[i], batch_args[i], batch_errors[i], batch_subjects[i] );
+
+				}catch( Throwable e ){
+
+					Debug.out( e );
+
+				}finally{
+
+					batch_formats[i]	= null;
+					batch_args[i]		= null;
+					batch_errors[i]		= null;
+					batch_subjects[i]	= null;
+				}
+			}
+
+			try{
+				if ( num_dropped > 0 ){
+
+					logger.log( "Log overflow, dropped " + num_dropped + " message(s)" );
+				}
+
+				if ( window_ended ){
+
+					endWindow();
+				}
+			}catch( Throwable e ){
+
+					// don't let the writer die
+
+				Debug.out( e );
+			}
+		}
+	}
+
+	private void
+	write(
+		String		format,
+		Object[]	format_args,
+		Throwable	error,
+		Download	subject )
+	{
+		String	str = format( format, format_args );
+
+		if ( subject != null ){
+
+			str = subject.getName() + ": " + str;
+		}
+
+		if ( error != null ){
+
+			str = ( str.length()==0?"":( str + "\n" )) + getTraceString( error );
+		}
+
+		logger.log( str );
+	}
+
+	private void
+	endWindow()
+	{
+		int	secs = WINDOW_MILLIS / 1000;
+
+		for ( int cc=0;cc<CountrySet.NUM_CODES;cc++ ){
+
+			int	num = blocked.getAndSet( cc, 0 );
+
+			if ( num > 0 ){
+
+				logger.log( "Blocked " + num + " IP(s) from " + CountrySet.decode((short)cc ) + " in last " + secs + "s" );
+			}
+		}
+
+		int	num = blocked.getAndSet( BLOCK_NOT_INITIALISED, 0 );
+
+		if ( num > 0 ){
+
+			logger.log( "Blocked " + num + " IP(s) as filter not initialised in last " + secs + "s" );
+		}
+
+		int[]	window_suppressed = new int[suppressed.length];
+
+		synchronized( this ){
+
+			for ( int i=0;i<suppressed.length;i++ ){
+
+				window_suppressed[i] = suppressed[i];
+
+				suppressed[i]		= 0;
+				window_counts[i]	= 0;
+			}
+		}
+
+		for ( int i=0;i<window_suppressed.length;i++ ){
+
+			if ( window_suppressed[i] > 0 ){
+
+				logger.log( "Suppressed " + window_suppressed[i] + " " + CATEGORY_NAMES[i] + " message(s) in last " + secs + "s" );
+			}
+		}
+	}
+
+	private static String
+	format(
+		String		format,
+		Object[]	format_args )
+	{
+		if ( format_args == null || format_args.length == 0 ){
+
+			return( format );
+		}
+
+			// the array is the caller's when they pass one rather than varargs, don't rewrite it
+
+		Object[]	actual_args = format_args;
+
+		for ( int i=0;i<format_args.length;i++ ){
+
+			if ( format_args[i] instanceof Download ){
+
+				if ( actual_args == format_args ){
+
+					actual_args = format_args.clone();
+				}
+
+				actual_args[i] = ((Download)format_args[i]).getName();
+			}
+		}
+
+		return( String.format( format, actual_args ));
+	}
+
+		/**
+		 * @return the exception, its first MAX_TRACE_FRAMES frames and its causes' descriptions
+		 */
+
+	protected static String
+	getTraceString(
+		Throwable	error )
+	{
+		StringBuilder	sb = new StringBuilder( 1024 );
+
+		sb.append( error );
+
+		StackTraceElement[]	frames = error.getStackTrace();
+
+		for ( int i=0;i<frames.length && i<MAX_TRACE_FRAMES;i++ ){
+
+			sb.append( "\n    at " ).append( frames[i] );
+		}
+
+		if ( frames.length > MAX_TRACE_FRAMES ){
+
+			sb.append( "\n    ... " ).append( frames.length - MAX_TRACE_FRAMES ).append( " more" );
+		}
+
+		Throwable	cause = error.getCause();
+
+		for ( int depth=0;cause != null && cause != error && depth<5;depth++ ){
+
+			sb.append( "\nCaused by: " ).append( cause );
+
+			cause = cause.getCause();
+		}
+
+		return( sb.toString());
+	}
+}
@@ -0,0 +1,224 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+	/**
+	 * Decides, for one target piece that is ready for upload, whether to hold it, abandon it or
+	 * move on from it. Upload isn't tracked per piece so the piece's share of the download's
+	 * upload is used - bytes sent while it was held split between the targets - smoothed into a
+	 * rate that is compared against the download's 60 second upload average.
+	 *
+	 * The idle limit is the loop's output: each time it is exceeded while peers still want the
+	 * piece it is extended, up to MAX_IDLE_LIMIT_SECS, and while upload is flowing it decays back
+	 * towards the default rather than snapping to it. When it is exceeded and few peers lack the
+	 * piece it is abandoned, unless it is still uploading at least its share of the average. A
+	 * piece that few peers lack and whose rate has dropped well below its share has done its
+	 * job, so is released without waiting for upload to go idle. While peers want the piece but
+	 * nothing is being sent the swarm rather than the piece is the problem, and swapping in
+	 * another piece would only cost a download.
+	 *
+	 * One per target slot, allocated with the provider and reused, on the peer manager thread.
+	 */
+
+public class
+IdleLimitController
+{
+	public static final int	HOLD		= 0;
+	public static final int	ABANDON		= 1;
+	public static final int	MOVE_ON		= 2;
+
+	public static final int		MAX_IDLE_LIMIT_SECS	= 30*60;
+	public static final double	MOVE_ON_FRACTION	= 0.25;
+
+	private static final int	RATE_SMOOTHING		= 8;
+
+	private long	done_time;
+	private long	last_time;
+	private long	last_sent;
+
+	private long	uploaded;
+	private double	rate;
+	private int		idle_limit_secs;
+
+	protected void
+	reset()
+	{
+		done_time		= 0;
+		last_time		= 0;
+		last_sent		= 0;
+		uploaded		= 0;
+		rate			= 0;
+		idle_limit_secs	= MaxShareRatioPlugin.UP_IDLE_LIMIT_SECS_DEFAULT;
+	}
+
+	protected boolean
+	isStarted()
+	{
+		return( done_time != 0 );
+	}
+
+		/**
+		 * Called when the piece becomes ready for upload
+		 */
+
+	protected void
+	start(
+		long		now,
+		long		total_sent )
+	{
+		done_time	= now;
+		last_time	= now;
+		last_sent	= total_sent;
+	}
+
+		/**
+		 * The picker calls far more often than the controller needs to run
+		 *
+		 * @return true if update should be called
+		 */
+
+	protected boolean
+	isUpdateDue(
+		long		now )
+	{
+		return( now < last_time || now - last_time >= 1000 );
+	}
+
+		/**
+		 * @param total_sent		download's total data bytes sent
+		 * @param num_targets		targets currently sharing the upload
+		 * @param up_idle_secs		time since the download last sent data
+		 * @param upload_average	download's upload average, bytes/sec
+		 * @param num_interested	peers lacking the piece
+		 * @return HOLD, ABANDON or MOVE_ON
+		 */
+
+	protected int
+	update(
+		long		now,
+		long		total_sent,
+		int			num_targets,
+		int			up_idle_secs,
+		long		upload_average,
+		int			num_interested )
+	{
+		if ( now < last_time ){
+
+				// clock went backwards, restart the measurement
+
+			last_time	= now;
+			done_time	= now;
+		}
+
+		long	elapsed = now - last_time;
+
+		if ( elapsed < 1000 ){
+
+			return( HOLD );
+		}
+
+		long	share = Math.max( 0, total_sent - last_sent ) / Math.max( 1, num_targets );
+
+		uploaded += share;
+
+		rate += ( share*1000.0/elapsed - rate ) / RATE_SMOOTHING;
+
+		last_time	= now;
+		last_sent	= total_sent;
+
+		if ( now - done_time <= MaxShareRatioPlugin.MIN_PIECE_MILLIS ){
+
+			return( HOLD );
+		}
+
+		long	expected_rate = upload_average / Math.max( 1, num_targets );
+
+		boolean	wanted = num_interested >= MaxShareRatioPlugin.MIN_INTERESTED_PEERS;
+
+			// idle time is the download's, don't hold earlier idleness against this piece
+
+		int	idle_secs = (int)Math.min( up_idle_secs, ( now - done_time )/1000 );
+
+		if ( idle_secs > idle_limit_secs ){
+
+			if ( !wanted ){
+
+				return( expected_rate > 0 && rate >= expected_rate?HOLD:ABANDON );
+			}
+
+			if ( idle_limit_secs < MAX_IDLE_LIMIT_SECS ){
+
+				idle_limit_secs = Math.min( idle_secs + MaxShareRatioPlugin.UP_IDLE_LIMIT_SECS_INC, MAX_IDLE_LIMIT_SECS );
+			}
+
+		}else if ( up_idle_secs < MaxShareRatioPlugin.UP_IDLE_LIMIT_SECS_DEFAULT ){
+
+				// decays with the same time constant as the rate
+
+			idle_limit_secs -= ( idle_limit_secs - MaxShareRatioPlugin.UP_IDLE_LIMIT_SECS_DEFAULT + RATE_SMOOTHING - 1 ) / RATE_SMOOTHING;
+		}
+
+		if ( !wanted && rate < expected_rate * MOVE_ON_FRACTION ){
+
+			return( MOVE_ON );
+		}
+
+		return( HOLD );
+	}
+
+	protected int
+	getIdleLimitSecs()
+	{
+		return( idle_limit_secs );
+	}
+
+		/**
+		 * @return time since the piece became ready for upload, -1 if it hasn't
+		 */
+
+	protected long
+	getHeldMillis(
+		long		now )
+	{
+		if ( done_time == 0 ){
+
+			return( -1 );
+		}
+
+		return( Math.max( 0, now - done_time ));
+	}
+
+		/**
+		 * Resumes a piece held by a previous controller: the idle limit and time held carry over, the
+		 * rate is measured afresh from total_sent
+		 */
+
+	protected void
+	restore(
+		long		now,
+		long		total_sent,
+		long		held_millis,
+		int			_idle_limit_secs,
+		long		_uploaded )
+	{
+		start( now - Math.max( 0, held_millis ), total_sent );
+
+		last_time		= now;
+		uploaded		= Math.max( 0, _uploaded );
+		idle_limit_secs	= Math.max( MaxShareRatioPlugin.UP_IDLE_LIMIT_SECS_DEFAULT, Math.min( _idle_limit_secs, MAX_IDLE_LIMIT_SECS ));
+	}
+
+		/**
+		 * @return piece's share of the bytes uploaded since it became ready
+		 */
+
+	protected long
+	getUploaded()
+	{
+		return( uploaded );
+	}
+
+	protected long
+	getRate()
+	{
+		return((long)rate );
+	}
+}
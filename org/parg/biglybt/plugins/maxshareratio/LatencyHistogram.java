@@ -0,0 +1,128 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+	/**
+	 * Lock-free latency histogram with power of two nanosecond buckets: bucket i holds samples
+	 * in [2^i,2^(i+1)) so recording is a leading-zero count and an atomic increment. Percentiles
+	 * are reported as the upper bound of the bucket they fall in, so are within a factor of two.
+	 */
+
+public class
+LatencyHistogram
+{
+	private static final int	BUCKETS	= 40;	// ~9 minutes, anything longer goes in the last
+
+	private final AtomicLongArray	buckets	= new AtomicLongArray( BUCKETS );
+
+	private final AtomicLong		count	= new AtomicLong();
+	private final AtomicLong		total	= new AtomicLong();
+	private final AtomicLong		max		= new AtomicLong();
+
+	protected void
+	record(
+		long	nanos )
+	{
+		if ( nanos < 0 ){
+
+			nanos = 0;
+		}
+
+		int	bucket = 63 - Long.numberOfLeadingZeros( nanos | 1 );
+
+		buckets.incrementAndGet( bucket<BUCKETS?bucket:BUCKETS-1 );
+
+		count.incrementAndGet();
+		total.addAndGet( nanos );
+
+		while( true ){
+
+			long	current = max.get();
+
+			if ( nanos <= current || max.compareAndSet( current, nanos )){
+
+				break;
+			}
+		}
+	}
+
+	protected long
+	getCount()
+	{
+		return( count.get());
+	}
+
+	protected long
+	getMeanNanos()
+	{
+		long	num = count.get();
+
+		return( num==0?0:total.get()/num );
+	}
+
+	protected long
+	getMaxNanos()
+	{
+		return( max.get());
+	}
+
+		/**
+		 * @param fraction	e.g. 0.99
+		 * @return upper bound in nanos of the bucket holding the percentile (capped at the max),
+		 * 0 if no samples
+		 */
+
+	protected long
+	getPercentileNanos(
+		double	fraction )
+	{
+		long	num = 0;
+
+		long[]	counts = new long[BUCKETS];
+
+		for ( int i=0;i<BUCKETS;i++ ){
+
+			counts[i] = buckets.get( i );
+
+			num += counts[i];
+		}
+
+		if ( num == 0 ){
+
+			return( 0 );
+		}
+
+		long	target	= (long)Math.ceil( num * fraction );
+		long	seen	= 0;
+
+		for ( int i=0;i<BUCKETS;i++ ){
+
+			seen += counts[i];
+
+			if ( seen >= target ){
+
+				return( Math.min(( 1L << ( i + 1 )) - 1, max.get()));
+			}
+		}
+
+		return( max.get());
+	}
+
+	protected String
+	getString()
+	{
+		return( "n=" + getCount() +
+				", mean=" + toMicros( getMeanNanos()) +
+				"us, p50<" + toMicros( getPercentileNanos( 0.5 )) +
+				"us, p99<" + toMicros( getPercentileNanos( 0.99 )) +
+				"us, max=" + toMicros( getMaxNanos()) + "us" );
+	}
+
+	private static String
+	toMicros(
+		long	nanos )
+	{
+		return( String.format( "%.1f", nanos / 1000.0 ));
+	}
+}
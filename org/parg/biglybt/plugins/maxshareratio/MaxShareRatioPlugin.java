@@ -2,30 +2,33 @@ package org.parg.biglybt.plugins.maxshareratio;
 
 
 import java.io.File;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.biglybt.core.CoreFactory;
 import com.biglybt.core.config.*;
-import com.biglybt.core.disk.DiskManagerPiece;
 import com.biglybt.core.download.DownloadManagerState;
 import com.biglybt.core.ipfilter.*;
-import com.biglybt.core.peer.PEPeer;
 import com.biglybt.core.peer.PEPeerManager;
-import com.biglybt.core.peermanager.piecepicker.PiecePicker;
-import com.biglybt.core.peermanager.piecepicker.PiecePriorityProvider;
-import com.biglybt.core.peermanager.piecepicker.util.BitFlags;
-import com.biglybt.core.util.Average;
+import com.biglybt.core.util.AEThread2;
+import com.biglybt.core.util.ByteFormatter;
 import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.HashWrapper;
 import com.biglybt.core.util.SystemTime;
 import com.biglybt.pif.*;
 import com.biglybt.pif.download.*;
 import com.biglybt.pif.logging.*;
 import com.biglybt.pif.peers.*;
 import com.biglybt.pif.torrent.*;
+import com.biglybt.pif.ui.UIInputReceiver;
+import com.biglybt.pif.ui.UIInputReceiverListener;
+import com.biglybt.pif.ui.UIInputValidator;
 import com.biglybt.pif.ui.UIManager;
+import com.biglybt.pif.ui.config.BooleanParameter;
+import com.biglybt.pif.ui.config.IntParameter;
+import com.biglybt.pif.ui.config.StringListParameter;
 import com.biglybt.pif.ui.config.StringParameter;
 import com.biglybt.pif.ui.menus.*;
 import com.biglybt.pif.ui.model.BasicPluginConfigModel;
@@ -49,6 +52,17 @@ MaxShareRatioPlugin
 	public static final int MIN_UPLOAD_SPEED				= 512;
 	public static final int MAX_SEEDS_PER_TORRENT			= 20;
 	public static final int MAX_UPLOAD_SLOTS				= 100;
+	public static final int UPLOAD_SLOTS_TOTAL_DEFAULT		= 200;
+	public static final int PERIODIC_SLOTS					= 10;
+	public static final int PERIODIC_MAX_PER_TICK			= 100;
+	public static final int TRACKER_SLOTS					= 60;
+	public static final int TRACKER_MAX_PER_TICK			= 200;
+	public static final int TRACKER_TARGET_PERCENT_DEFAULT	= 100;
+	public static final int EARLY_MIN_LEECHERS_DEFAULT		= 10;
+	public static final int EARLY_LEECHERS_PER_SEED_DEFAULT	= 3;
+	public static final int VIEW_LOG_MAX_CHARS				= 64*1024;
+	
+	private static final String	BUDGET_SPENT_PARAM		= "budget.spent";
 	
 	static{
 		
@@ -66,55 +80,147 @@ MaxShareRatioPlugin
 	private static final Object	country_key 	= new Object();
 	private static final Object	net_key 		= new Object();
 
+	private static final CountryCache	country_cache	= new CountryCache();
+	
 	private static LocationProvider
 	getCountryProvider()
 	{
-		if ( country_provider != null ){
-
-			if ( country_provider.isDestroyed()){
-
-				country_provider 			= null;
-				country_provider_last_check	= 0;
-			}
+		LocationProvider	provider = country_provider;
+		
+		if ( provider != null && !provider.isDestroyed()){
+			
+			return( provider );
 		}
-
-		if ( country_provider == null ){
-
-			long	now = SystemTime.getMonotonousTime();
-
-			if ( country_provider_last_check == 0 || now - country_provider_last_check > 20*1000 ){
-
-				country_provider_last_check = now;
-
-				java.util.List<LocationProvider> providers = CoreFactory.getSingleton().getPluginManager().getDefaultPluginInterface().getUtilities().getLocationProviders();
-
-				for ( LocationProvider provider: providers ){
-
-					if ( 	provider.hasCapabilities(
-								LocationProvider.CAP_ISO3166_BY_IP |
-								LocationProvider.CAP_COUNTY_BY_IP )){
-
-						country_provider = provider;
+		
+		synchronized( country_key ){
+			
+			if ( country_provider != null ){
+	
+				if ( country_provider.isDestroyed()){
+	
+					country_provider 			= null;
+					country_provider_last_check	= 0;
+					
+					country_cache.clear();
+				}
+			}
+	
+			if ( country_provider == null ){
+	
+				long	now = SystemTime.getMonotonousTime();
+	
+				if ( country_provider_last_check == 0 || now - country_provider_last_check > 20*1000 ){
+	
+					country_provider_last_check = now;
+	
+					java.util.List<LocationProvider> providers = CoreFactory.getSingleton().getPluginManager().getDefaultPluginInterface().getUtilities().getLocationProviders();
+	
+					for ( LocationProvider p: providers ){
+	
+						if ( 	p.hasCapabilities(
+									LocationProvider.CAP_ISO3166_BY_IP |
+									LocationProvider.CAP_COUNTY_BY_IP )){
+	
+							country_provider = p;
+						}
 					}
 				}
 			}
+	
+			return( country_provider );
 		}
-
-		return( country_provider );
 	}
 	
 	
 	private PluginInterface		plugin_interface;
 	private LoggerChannel		logger;
+	private volatile EventLog	event_log;
 	private LocaleUtilities 	loc_utils;
 
 	private TorrentAttribute	enabled_attribute;
 	private TorrentAttribute	continue_when_complete_attribute;
+	private TorrentAttribute	max_seeds_attribute;
+	private TorrentAttribute	strategy_attribute;
+	private TorrentAttribute	selection_attribute;
+	private TorrentAttribute	auto_enabled_attribute;
+	private TorrentAttribute	manual_attribute;
+	private TorrentAttribute	applied_rate_attribute;
+	private TorrentAttribute	max_uploads_attribute;
 
-	private Map<Download,Boolean>	download_map 		= new HashMap<Download, Boolean>();
-	private Map<Download,Average>	download_uploads 	= new HashMap<Download, Average>();
+	private final Map<Download,DownloadState>	download_states	= new ConcurrentHashMap<Download,DownloadState>();
+	
+	private final DownloadTimeWheel	periodic_wheel = new DownloadTimeWheel( PERIODIC_SLOTS, PERIODIC_MAX_PER_TICK );
+	
+	private final SeedCuller		seed_culler	= new SeedCuller();
+	
+	private final SeedReputationCache			seed_cache		= new SeedReputationCache();
+	private final Map<HashWrapper,Download>		hash_map		= new ConcurrentHashMap<HashWrapper,Download>();
+	
+	private volatile CountrySet			bad_ccs = null;
+	
+	private volatile CountryRangeTable	range_table;
+	private String						range_table_file		= "";
+	private String						range_table_signature	= "";
+	private int							range_table_generation;
+	private boolean						range_table_loading;
+	private final Object				range_table_lock		= new Object();
+	
+	private BooleanParameter	pipeline_enable;
+	private IntParameter		pipeline_max_depth;
+	private IntParameter		max_seeds;
+	private StringListParameter	default_strategy;
+	
+	private final Map<String,PieceSelectionStrategy>	strategies		= new ConcurrentHashMap<String,PieceSelectionStrategy>();
+	private final Map<String,StrategyStats>				strategy_stats	= new ConcurrentHashMap<String,StrategyStats>();
+	
+	private final PluginMetrics		metrics	= new PluginMetrics();
+	
+	private BooleanParameter	metrics_export;
+	
+	private final AtomicBoolean	metrics_exporting	= new AtomicBoolean();
+	
+	private final UploadAllocator	upload_allocator	= new UploadAllocator();
+	
+	private IntParameter		upload_slots_total;
+	
+	private final DownloadBudget	download_budget;
+	private volatile String			budget_spent;
+	
+	private IntParameter		budget_daily_mb;
+	
+	private final DownloadTimeWheel			tracker_wheel		= new DownloadTimeWheel( TRACKER_SLOTS, TRACKER_MAX_PER_TICK );
+	private final TrackerRatioAggregator	tracker_aggregator	= new TrackerRatioAggregator();
 	
-	private volatile Set<String>		bad_ccs = null;
+	private BooleanParameter	tracker_auto;
+	private IntParameter		tracker_target_percent;
+	
+	private final EarlyJoinEvaluator	early_join;
+	
+	private BooleanParameter	early_enable;
+	private IntParameter		early_min_leechers;
+	private IntParameter		early_leechers_per_seed;
+	
+	private final ShareClock	clock;
+	
+	public
+	MaxShareRatioPlugin()
+	{
+		this( new ShareClock());
+	}
+	
+		/**
+		 * @param _clock	time source for selection, the swarm simulator passes a simulated one
+		 */
+	
+	protected
+	MaxShareRatioPlugin(
+		ShareClock		_clock )
+	{
+		clock	= _clock;
+		
+		download_budget	= new DownloadBudget( clock );
+		early_join		= new EarlyJoinEvaluator( clock );
+	}
 	
 	public void 
 	load(	
@@ -130,12 +236,23 @@ MaxShareRatioPlugin
 						byte[]			torrent_hash,
 						String			ip )
 					{
+						long	start = System.nanoTime();
+						
 						try{
-							return( isBlocked( torrent_hash, InetAddress.getByName( ip )));
+							byte[]	address = CountryCache.parseLiteral( ip );
 							
-						}catch( Throwable e ){
-														
-							return( false );
+							if ( address == null ){
+								
+									// not an IP literal (e.g. I2P/Tor) so no country - never resolve it
+								
+								return( false );
+							}
+							
+							return( isBlocked( torrent_hash, ip, address ));
+							
+						}finally{
+							
+							metrics.getBlockedLatency().record( System.nanoTime() - start );
 						}
 					}
 					
@@ -144,29 +261,70 @@ MaxShareRatioPlugin
 						byte[]			torrent_hash,
 						InetAddress		ip )
 					{
-						LocationProvider lp = getCountryProvider();
+						long	start = System.nanoTime();
 						
-						if ( lp != null ){
+						try{
+							return( isBlocked( torrent_hash, ip.getHostAddress(), ip.getAddress()));
 							
-							String cc = lp.getISO3166CodeForIP( ip );
-				
-							if ( bad_ccs == null ){
-								
-								System.out.println( "Blocking " + ip.getHostAddress() + " as not initialised" );
-								
-								return( true );
-							}
+						}finally{
 							
-							if ( bad_ccs.contains( cc )){
-								
-								logger.log( "Blocking " + ip.getHostAddress() + " as cc is " + cc );
+							metrics.getBlockedLatency().record( System.nanoTime() - start );
+						}
+					}
+						
+					private boolean
+					isBlocked(
+						byte[]			torrent_hash,
+						String			ip,
+						byte[]			address )
+					{
+						if ( isKnownSeedOverLimit( torrent_hash, address )){
+							
+							seed_cache.reconnectAvoided();
+							
+							return( true );
+						}
+						
+						short	cc;
+						
+						CountryRangeTable	table = range_table;
+						
+						if ( table != null ){
+							
+							cc = table.lookup( address );
+							
+						}else{
+							
+							LocationProvider lp = getCountryProvider();
+							
+							if ( lp == null ){
 								
-								return( true );
+								return( false );
 							}
 							
-							// System.out.println( "Permitting " + ip.getHostAddress() + " as cc is " + cc );
+							cc = CountrySet.encode( country_cache.getCountry( lp, address ));
+						}
+						
+						CountrySet	bad = bad_ccs;
+						
+						if ( bad == null ){
+							
+							countBlocked((short)-1 );
+							
+							return( true );
+						}
+						
+						if ( bad.contains( cc )){
+							
+							countryBlocked( torrent_hash, cc );
+							
+							countBlocked( cc );
+							
+							return( true );
 						}
 						
+						// System.out.println( "Permitting " + ip + " as cc is " + cc );
+						
 						return( false );
 					}
 				});
@@ -177,6 +335,21 @@ MaxShareRatioPlugin
 		}
 	}
 	
+	protected void
+	createAttributes(
+		TorrentManager		torrent_manager )
+	{
+		enabled_attribute					= torrent_manager.getPluginAttribute( "enabled" );
+		continue_when_complete_attribute	= torrent_manager.getPluginAttribute( "continue_when_complete" );
+		max_seeds_attribute					= torrent_manager.getPluginAttribute( "max_seeds" );
+		strategy_attribute					= torrent_manager.getPluginAttribute( "strategy" );
+		selection_attribute					= torrent_manager.getPluginAttribute( "selection" );
+		auto_enabled_attribute				= torrent_manager.getPluginAttribute( "auto_enabled" );
+		manual_attribute					= torrent_manager.getPluginAttribute( "manual" );
+		applied_rate_attribute				= torrent_manager.getPluginAttribute( "applied_rate" );
+		max_uploads_attribute				= torrent_manager.getPluginAttribute( "max_uploads" );
+	}
+	
 	public void 
 	initialize(	
 		PluginInterface 	_pi )
@@ -185,8 +358,40 @@ MaxShareRatioPlugin
 		
 		logger				= plugin_interface.getLogger().getTimeStampedChannel( "UpMaxer" ); 
 
-		enabled_attribute					= plugin_interface.getTorrentManager().getPluginAttribute( "enabled" );
-		continue_when_complete_attribute	= plugin_interface.getTorrentManager().getPluginAttribute( "continue_when_complete" );
+		event_log			= new EventLog( logger, clock );
+
+		plugin_interface.addListener(
+			new PluginListener()
+			{
+				public void
+				initializationComplete()
+				{
+				}
+				
+				public void
+				closedownInitiated()
+				{
+					saveDownloadBudget();
+				}
+				
+				public void
+				closedownComplete()
+				{
+						// stop the writer thread once nothing else will log
+					
+					event_log.destroy();
+				}
+			});
+
+		createAttributes( plugin_interface.getTorrentManager());
+
+		budget_spent = plugin_interface.getPluginconfig().getPluginStringParameter( BUDGET_SPENT_PARAM, "" );
+
+		download_budget.importSpent( budget_spent );
+
+		registerStrategy( new RarestPieceStrategy());
+		registerStrategy( new YieldPieceStrategy());
+		registerStrategy( new RandomPieceStrategy());
 
 		loc_utils = plugin_interface.getUtilities().getLocaleUtilities();
 
@@ -201,6 +406,8 @@ MaxShareRatioPlugin
 		view_model.getActivity().setVisible( false );
 		view_model.getProgress().setVisible( false );
 		
+		view_model.getLogArea().setMaximumSize( VIEW_LOG_MAX_CHARS );
+		
 		logger.addListener(
 				new LoggerChannelListener()
 				{
@@ -221,15 +428,7 @@ MaxShareRatioPlugin
 							view_model.getLogArea().appendText( str + "\n" );
 						}
 						
-						StringWriter sw = new StringWriter();
-						
-						PrintWriter	pw = new PrintWriter( sw );
-						
-						error.printStackTrace( pw );
-						
-						pw.flush();
-						
-						view_model.getLogArea().appendText( sw.toString() + "\n" );
+						view_model.getLogArea().appendText( EventLog.getTraceString( error ) + "\n" );
 					}
 				});		
 		
@@ -258,6 +457,19 @@ MaxShareRatioPlugin
 					
 						text = getMessage( "maxshareratio.ui.label.enabled" );
 						
+						DownloadState	state = download_states.get( dl );
+						
+						PeerManagerAttachment	attachment = state==null?null:state.getAttachment();
+						
+						if ( attachment != null ){
+							
+							double	score = attachment.getProvider().getLastScore();
+							
+							if ( score >= 0 ){
+								
+								text += " (" + String.format( "%.2f", score ) + ")";
+							}
+						}
 					}else{
 						
 						text = getMessage( "maxshareratio.ui.label.disabled" );
@@ -270,6 +482,33 @@ MaxShareRatioPlugin
 		
 		table_manager.addColumn( sms_status_column );
 		
+		TableColumn	sms_metrics_column = 
+			table_manager.createColumn(
+					TableManager.TABLE_MYTORRENTS_INCOMPLETE,
+					"maxshareratio.ui.label.metrics.column" );
+		
+		sms_metrics_column.setAlignment(TableColumn.ALIGN_LEAD);
+		sms_metrics_column.setPosition(TableColumn.POSITION_INVISIBLE);
+		sms_metrics_column.setRefreshInterval(TableColumn.INTERVAL_LIVE);
+		sms_metrics_column.setType(TableColumn.TYPE_TEXT);
+		
+		sms_metrics_column.addCellRefreshListener(
+			new TableCellRefreshListener()
+			{
+				public void 
+				refresh(
+					TableCell cell )
+				{
+					Download	dl = (Download)cell.getDataSource();
+					
+					DownloadState	state = download_states.get( dl );
+					
+					cell.setText( state==null?"":state.getCounters().getString());
+				}
+			});
+		
+		table_manager.addColumn( sms_metrics_column );
+		
 		
 		TableContextMenuItem	enable_menu = 
 			table_manager.addContextMenuItem(  
@@ -340,6 +579,11 @@ MaxShareRatioPlugin
 					
 					Download	download = (Download)row.getDataSource();
 					
+						// the user's choice, leave it alone from now on
+					
+					download.setBooleanAttribute( manual_attribute, true );
+					download.setBooleanAttribute( auto_enabled_attribute, false );
+					
 					setMaxUpEnabled( 
 						download, ((Boolean)menu.getData()).booleanValue());
 				}
@@ -445,6 +689,120 @@ MaxShareRatioPlugin
 		stop_when_complete_menu2.addFillListener( swc_fill_listener );
 		stop_when_complete_menu2.addListener( swc_listener );
 
+		final UIManager	f_ui_manager = ui_manager;
+		
+		TableContextMenuItem	max_seeds_menu = 
+			table_manager.addContextMenuItem(  
+				TableManager.TABLE_MYTORRENTS_INCOMPLETE,
+				"maxshareratio.max_seeds.contextmenu" );
+		
+		max_seeds_menu.addListener(
+			new MenuItemListener()
+			{
+				public void
+				selected(
+					MenuItem	menu,
+					Object 		target )
+				{
+					final Download	download = (Download)((TableRow)target).getDataSource();
+					
+					UIInputReceiver	entry = f_ui_manager.getInputReceiver();
+					
+					entry.setLocalisedTitle( getMessage( "maxshareratio.max_seeds.contextmenu" ));
+					entry.setLocalisedMessage( getMessage( "maxshareratio.max_seeds.prompt" ));
+					
+					String	existing = download.getAttribute( max_seeds_attribute );
+					
+					entry.setPreenteredText( existing==null?"":existing, false );
+					
+					entry.setInputValidator(
+						new UIInputValidator()
+						{
+							public String
+							validateInput(
+								String	input )
+							{
+								return( parseMaxSeeds( input )==DownloadState.MAX_SEEDS_UNSET?getMessage( "maxshareratio.max_seeds.invalid" ):null );
+							}
+						});
+					
+					entry.prompt(
+						new UIInputReceiverListener()
+						{
+							public void
+							UIInputReceiverClosed(
+								UIInputReceiver receiver )
+							{
+								if ( receiver.hasSubmittedInput()){
+									
+									setMaxSeeds( download, receiver.getSubmittedInput());
+								}
+							}
+						});
+				}
+			});
+
+		TableContextMenuItem	strategy_menu = 
+			table_manager.addContextMenuItem(  
+				TableManager.TABLE_MYTORRENTS_INCOMPLETE,
+				"maxshareratio.strategy.contextmenu" );
+		
+		strategy_menu.setStyle( MenuItem.STYLE_MENU );
+		
+		List<String>	menu_ids = new ArrayList<String>( strategies.keySet());
+		
+		Collections.sort( menu_ids );
+		
+		menu_ids.add( 0, "" );
+		
+		for ( final String id: menu_ids ){
+			
+			TableContextMenuItem	item = 
+				table_manager.addContextMenuItem( 
+					strategy_menu, 
+					id.length()==0?"maxshareratio.strategy.default":( "maxshareratio.strategy." + id ));
+			
+			item.setStyle( MenuItem.STYLE_RADIO );
+			
+			item.addFillListener(
+				new MenuItemFillListener()
+				{
+					public void
+					menuWillBeShown(
+						MenuItem	menu,
+						Object 		target )
+					{
+						TableRow[]	rows = (TableRow[])target;
+						
+						boolean	all = rows.length > 0;
+						
+						for ( TableRow row: rows ){
+							
+							if ( !id.equals( getStrategyID((Download)row.getDataSource()))){
+								
+								all = false;
+								
+								break;
+							}
+						}
+						
+						menu.setData( new Boolean( all ));
+					}
+				});
+			
+			item.addListener(
+				new MenuItemListener()
+				{
+					public void
+					selected(
+						MenuItem	menu,
+						Object 		target )
+					{
+						setStrategy((Download)((TableRow)target).getDataSource(), id );
+					}
+				});
+		}
+		
 		BasicPluginConfigModel config_model = 
 			ui_manager.createBasicPluginConfigModel( "maxshareratio.name" );
 
@@ -452,8 +810,42 @@ MaxShareRatioPlugin
 		
 		final StringParameter bad_cc = config_model.addStringParameter2( "maxshareratio.bad_cc", "maxshareratio.bad_cc", "" );
 
+		pipeline_enable		= config_model.addBooleanParameter2( "maxshareratio.pipeline.enable", "maxshareratio.pipeline.enable", false );
+		pipeline_max_depth	= config_model.addIntParameter2( "maxshareratio.pipeline.max_depth", "maxshareratio.pipeline.max_depth", 8, 1, SharePriorityProvider.MAX_PIPELINE_DEPTH );
+		
+		max_seeds			= config_model.addIntParameter2( "maxshareratio.max_seeds", "maxshareratio.max_seeds", MAX_SEEDS_PER_TORRENT );
+		
+		upload_slots_total	= config_model.addIntParameter2( "maxshareratio.upload.slots.total", "maxshareratio.upload.slots.total", UPLOAD_SLOTS_TOTAL_DEFAULT, 1, 10000 );
+		
+		budget_daily_mb		= config_model.addIntParameter2( "maxshareratio.budget.daily_mb", "maxshareratio.budget.daily_mb", 0 );
+		
+		tracker_auto			= config_model.addBooleanParameter2( "maxshareratio.tracker.auto", "maxshareratio.tracker.auto", false );
+		tracker_target_percent	= config_model.addIntParameter2( "maxshareratio.tracker.target_percent", "maxshareratio.tracker.target_percent", TRACKER_TARGET_PERCENT_DEFAULT, 1, 100000 );
+		
+		early_enable			= config_model.addBooleanParameter2( "maxshareratio.early.enable", "maxshareratio.early.enable", false );
+		early_min_leechers		= config_model.addIntParameter2( "maxshareratio.early.min_leechers", "maxshareratio.early.min_leechers", EARLY_MIN_LEECHERS_DEFAULT, 1, 100000 );
+		early_leechers_per_seed	= config_model.addIntParameter2( "maxshareratio.early.leechers_per_seed", "maxshareratio.early.leechers_per_seed", EARLY_LEECHERS_PER_SEED_DEFAULT, 0, 1000 );
+		
+		String[]	strategy_ids 	= strategies.keySet().toArray( new String[0] );
+		String[]	strategy_labels	= new String[strategy_ids.length];
+		
+		Arrays.sort( strategy_ids );
+		
+		for ( int i=0;i<strategy_ids.length;i++ ){
+			
+			strategy_labels[i] = getMessage( "maxshareratio.strategy." + strategy_ids[i] );
+		}
+		
+		default_strategy	= config_model.addStringListParameter2( "maxshareratio.strategy.default", "maxshareratio.strategy.default", strategy_ids, strategy_labels, RarestPieceStrategy.ID );
+
+		final StringParameter geoip_file = config_model.addStringParameter2( "maxshareratio.geoip.file", "maxshareratio.geoip.file", "" );
+		
+		metrics_export		= config_model.addBooleanParameter2( "maxshareratio.metrics.export", "maxshareratio.metrics.export", false );
+		
 		readBadCC( bad_cc.getValue());
 		
+		readRangeTable( geoip_file.getValue());
+		
 		plugin_interface.getPluginconfig().addListener(
 			new PluginConfigListener()
 			{
@@ -461,462 +853,1422 @@ MaxShareRatioPlugin
 				configSaved()
 				{
 					readBadCC(  bad_cc.getValue());
+					
+					readRangeTable( geoip_file.getValue());
+					
+					checkTrackerAutoOff();
 				}
 			});
 		
 		plugin_interface.getDownloadManager().addListener( this );
 		
+		checkTrackerAutoOff();
+		
 		plugin_interface.getUtilities().createTimer( "stats", true ).addPeriodicEvent(
 			1000,
 			new UTTimerEventPerformer()
 			{
 				private int	ticks = 0;
 				
+				private final List<Download>	enabled_downloads	= new ArrayList<Download>();
+				private final List<Download>	due_downloads		= new ArrayList<Download>();
+				private final List<Download>	tracker_downloads	= new ArrayList<Download>();
+				private final List<Download>	early_downloads		= new ArrayList<Download>();
+				
+				private DownloadState[]			allocation_states	= new DownloadState[32];
+				
 				public void 
 				perform(
 					UTTimerEvent event )
 				{
-					synchronized( MaxShareRatioPlugin.this ){
+					periodic_wheel.getDownloads( enabled_downloads );
+					
+					for ( Download download: enabled_downloads ){
 						
-						for ( Download download: download_map.keySet()){
-							
-							updateUploadAverage( download );
+						DownloadState	state = download_states.get( download );
+						
+						if ( state != null ){
+						
+							state.addUploadSample( download.getStats().getUploadAverage());
 						}
 					}
 				
 					ticks++;
 					
-					if ( ticks % 10 == 0 ){
-					
-						Download[] downloads = plugin_interface.getDownloadManager().getDownloads();
+					if ( ticks % 60 == 0 ){
+						
+						saveDownloadBudget();
+					}
 					
-						for ( Download download: downloads ){
+					if ( ticks % 600 == 0 ){
+						
+						long	hits 	= country_cache.getHits();
+						long	misses	= country_cache.getMisses();
+						
+						if ( hits + misses > 0 ){
+						
+							event_log.log( EventLog.CAT_GENERAL, "Country cache: hits=%d, misses=%d", hits, misses );
+						}
+						
+						long	recorded	= seed_cache.getRecorded();
+						
+						if ( recorded > 0 ){
 							
-							boolean enabled = isMaxUpEnabled( download );
-								
-							if ( 	enabled && 
-									download.getState() == Download.ST_SEEDING && 
-									isStopWhenComplete( download )){
+							event_log.log( EventLog.CAT_GENERAL, "Seed cache: dropped=%d, reconnects avoided=%d", recorded, seed_cache.getAvoided());
+						}
+						
+						for ( StrategyStats stats: strategy_stats.values()){
+							
+							if ( stats.getSelections() > 0 || stats.getUploaded() > 0 ){
 								
-								if ( !download.isChecking()){
-									
-									try{
-										log( download, "Stopping as stop-when-complete" );
-										
-										download.stop();
-										
-									}catch( Throwable e ){
-										
-										log( download, "Failed to stop download" );
-									}
-								}
+								event_log.log( EventLog.CAT_GENERAL, "Strategy %s", stats.getString());
+							}
+						}
+						
+						event_log.log( EventLog.CAT_GENERAL, "Metrics: %s", metrics.getSummary());
+						
+						if ( tracker_auto.getValue()){
+							
+							for ( TrackerRatioAggregator.HostTotals totals: tracker_aggregator.getHosts()){
+								
+								event_log.log( EventLog.CAT_GENERAL, "Tracker %s", totals.getString());
 							}
+						}
+						
+						long	daily_budget = getDailyBudgetBytes();
+						
+						if ( daily_budget > 0 ){
 							
-							if ( enabled ){
+							event_log.log( EventLog.CAT_GENERAL, "Download budget: %s", download_budget.getString( daily_budget ));
+						}
+						
+						if ( metrics_export.getValue()){
+							
+							exportMetrics();
+						}
+					}
+					
+					if ( ticks % 10 == 0 ){
+						
+						view_model.getStatus().setText( metrics.getSummary());
+					}
+					
+					if ( ticks % PERIODIC_SLOTS == 0 ){
+						
+						allocateUploads();
+					}
+					
+					periodic_wheel.tick( due_downloads );
+					
+					for ( Download download: due_downloads ){
+						
+						try{
+							performPeriodic( download );
+							
+						}catch( Throwable e ){
+							
+							Debug.printStackTrace( e );
+						}
+					}
+					
+					if ( early_join.hasCandidates()){
+						
+						early_join.getCandidates( early_downloads );
+						
+						for ( Download download: early_downloads ){
+							
+							try{
+								checkEarlyJoin( download );
 								
-								PluginCoreUtils.unwrap( download ).getDownloadState().setLongParameter( DownloadManagerState.PARAM_MAX_UPLOADS, MAX_UPLOAD_SLOTS );
+							}catch( Throwable e ){
 								
-								PeerManager pm = download.getPeerManager();
+								early_join.remove( download );
 								
-								if ( pm != null ){
-									
-									int	connected_seeds = pm.getStats().getConnectedSeeds();
-
-									Peer[] peers = pm.getPeers();
-									
-									Arrays.sort( 
-										peers,
-										new Comparator<Peer>()
-										{
-											public int 
-											compare(
-												Peer o1, 
-												Peer o2) 
-											{
-												boolean c1 = o1.isChoked();
-												boolean c2 = o2.isChoked();
-												
-												long x = o2.getStats().getTotalReceived() - o1.getStats().getTotalReceived();
-												int	receive_diff;
-												
-												if ( x < 0 ){
-													receive_diff 	= -1;
-												}else if ( x > 0 ){
-													receive_diff	= 1;
-												}else{
-													receive_diff	= 0;
-												}
-												
-												if ( c1 && c2 ){
-													
-													return( receive_diff);
-													
-												}else if ( c1 ){
-													
-													return( -1 );
-													
-												}else if ( c2 ){
-													
-													return( 1 );
-													
-												}else{
-													
-													return( receive_diff );
-												}
-											}
-										});
-									
-									for ( Peer peer: peers ){
+								Debug.printStackTrace( e );
+							}
+						}
+					}
+					
+					if ( tracker_auto.getValue()){
+						
+						tracker_wheel.tick( tracker_downloads );
+						
+						for ( Download download: tracker_downloads ){
+							
+							try{
+								checkTrackerRatio( download );
 								
-										if ( connected_seeds < MAX_SEEDS_PER_TORRENT ){
-											
-											break;
-										}
-										
-										if ( peer.isSeed()){
-											
-											pm.removePeer( peer );
-											
-											connected_seeds--;
-										}
-									}
-								}
+							}catch( Throwable e ){
+								
+								Debug.printStackTrace( e );
 							}
 						}
 					}
 				}
+				
+				private void
+				allocateUploads()
+				{
+					if ( enabled_downloads.size() > allocation_states.length ){
+						
+						allocation_states = new DownloadState[enabled_downloads.size()];
+					}
+					
+					int	num = 0;
+					
+					for ( Download download: enabled_downloads ){
+						
+						DownloadState	state = download_states.get( download );
+						
+						if ( state != null ){
+						
+							allocation_states[num++] = state;
+						}
+					}
+					
+					int	global_rate = plugin_interface.getPluginconfig().getCoreIntParameter( PluginConfig.CORE_PARAM_INT_MAX_UPLOAD_SPEED_KBYTES_PER_SEC );
+					
+					upload_allocator.allocate( allocation_states, num, upload_slots_total.getValue(), global_rate*1024 );
+					
+					Arrays.fill( allocation_states, 0, num, null );
+				}
 			});
 	}
 	
-	protected void
-	readBadCC(
-		String	str )
+		/**
+		 * Called every second for each new download being watched until the EarlyJoinEvaluator
+		 * decides, so that a matching swarm is joined within seconds of being added
+		 */
+	
+	protected void
+	checkEarlyJoin(
+		Download		download )
+	{
+		if ( 	!isEarlyJoinEnabled() ||
+				isMaxUpEnabled( download ) ||
+				download.getBooleanAttribute( manual_attribute )){
+			
+			early_join.remove( download );
+			
+			return;
+		}
+		
+		int	decision = early_join.evaluate( download, early_min_leechers.getValue(), early_leechers_per_seed.getValue());
+		
+		if ( decision == EarlyJoinEvaluator.ENABLE ){
+			
+			log( download, "Enabling early, %s", early_join.getLastSwarm());
+			
+			setMaxUpEnabled( download, true );
+			
+		}else if ( decision == EarlyJoinEvaluator.REJECT ){
+			
+			log( download, "Not enabling, swarm doesn't match (%s)", early_join.getLastSwarm());
+		}
+	}
+	
+		/**
+		 * Visits each download once every TRACKER_SLOTS seconds to keep its tracker's totals current.
+		 * Incomplete downloads are enabled while their tracker's ratio is below target, and those so
+		 * enabled are disabled again once it has recovered. Downloads the user has enabled or
+		 * disabled themselves are left alone
+		 */
+	
+	protected void
+	checkTrackerRatio(
+		Download		download )
+	{
+		TrackerRatioAggregator.HostTotals	totals = tracker_aggregator.update( download );
+		
+			// partial totals during the first rotation could go either way
+		
+		if ( totals == null || !totals.isFullyCounted()){
+			
+			return;
+		}
+		
+		if ( totals.updateBoosting( tracker_target_percent.getValue() / 100.0 )){
+			
+			event_log.log( EventLog.CAT_GENERAL, "Tracker %s, %s target of %d%%", totals.getString(), totals.isBoosting()?"below":"recovered from", tracker_target_percent.getValue());
+		}
+		
+		if ( download.getBooleanAttribute( manual_attribute )){
+			
+			return;
+		}
+		
+		boolean	enabled = isMaxUpEnabled( download );
+		
+		if ( totals.isBoosting()){
+			
+			if ( !enabled && !download.isComplete()){
+				
+				log( download, "Enabling as ratio for %s is below target", totals.getHost());
+				
+				download.setBooleanAttribute( auto_enabled_attribute, true );
+				
+				setMaxUpEnabled( download, true );
+			}
+		}else if ( enabled && download.getBooleanAttribute( auto_enabled_attribute )){
+			
+			log( download, "Disabling as ratio for %s has recovered", totals.getHost());
+			
+			download.setBooleanAttribute( auto_enabled_attribute, false );
+			
+			setMaxUpEnabled( download, false );
+		}
+	}
+	
+		/**
+		 * Downloads enabled for their tracker's ratio are only disabled again by checkTrackerRatio,
+		 * which doesn't run with tracker.auto off, so they're disabled when it is turned off
+		 * (or was while we weren't running)
+		 */
+	
+	protected void
+	checkTrackerAutoOff()
+	{
+		if ( tracker_auto.getValue()){
+			
+			return;
+		}
+		
+		for ( Download download: plugin_interface.getDownloadManager().getDownloads()){
+			
+			if ( download.getBooleanAttribute( auto_enabled_attribute )){
+				
+				download.setBooleanAttribute( auto_enabled_attribute, false );
+				
+				if ( isMaxUpEnabled( download )){
+					
+					log( download, "Disabling as tracker ratio management is off" );
+					
+					setMaxUpEnabled( download, false );
+				}
+			}
+		}
+	}
+	
+		/**
+		 * Per-download work done once every PERIODIC_SLOTS seconds, spread across ticks by the wheel
+		 */
+	
+	protected void
+	performPeriodic(
+		Download		download )
+	{
+		boolean enabled = isMaxUpActive( download );
+			
+		if ( 	enabled && 
+				download.getState() == Download.ST_SEEDING && 
+				isStopWhenComplete( download )){
+			
+			if ( !download.isChecking()){
+				
+				try{
+					log( download, "Stopping as stop-when-complete" );
+					
+					download.stop();
+					
+				}catch( Throwable e ){
+					
+					log( download, "Failed to stop download" );
+				}
+			}
+		}
+		
+		DownloadState	state = download_states.get( download );
+		
+		if ( enabled && state != null ){
+			
+			DownloadStats	stats = download.getStats();
+			
+			long	up		= stats.getUploaded();
+			long	down	= stats.getDownloaded();
+			
+			if ( state.updateTransferTotals( up, down )){
+				
+				long	up_delta	= state.getUploadedDelta();
+				long	down_delta	= state.getDownloadedDelta();
+				
+				getStrategyStats( getStrategy( download )).addTransfer( up_delta, down_delta );
+				
+				countEvent( download, MetricCounters.BYTES_UPLOADED, up_delta );
+				countEvent( download, MetricCounters.BYTES_DOWNLOADED, down_delta );
+			}
+			
+			PeerManagerAttachment	attachment = state.getAttachment();
+			
+			if ( attachment != null ){
+				
+				saveSelectionState( attachment.getProvider());
+			}
+			
+			int	slots = state.getUploadSlots();
+			
+				// parked (or not yet allocated) downloads keep whatever slot setting they have
+			
+			if ( slots > 0 ){
+				
+				applyUploadSlots( download, slots );
+			}
+			
+			applyRateLimit( download, state, state.getUploadRateLimit());
+			
+			PeerManager pm = download.getPeerManager();
+			
+			if ( pm != null ){
+				
+				state.setUploadDemand( pm.getStats().getConnectedLeechers());
+				
+				int	culled = seed_culler.cull( pm, getMaxSeeds( download ), seed_cache, download.getTorrent().getHash());
+				
+				if ( culled > 0 ){
+					
+					countEvent( download, MetricCounters.SEEDS_CULLED, culled );
+					
+					log( download, "Dropped %d seeds, freeing %d connections and %d B/s", culled, culled, seed_culler.getLastRateFreed());
+				}
+			}
+		}
+	}
+	
+		/**
+		 * A seed we've already dropped from an enabled download is turned away if accepting it
+		 * would put the download at or over its seed limit, as it would just get dropped again
+		 */
+	
+	protected boolean
+	isKnownSeedOverLimit(
+		byte[]		torrent_hash,
+		byte[]		address )
+	{
+		if ( torrent_hash == null ){
+			
+			return( false );
+		}
+		
+		Download	download = hash_map.get( new HashWrapper( torrent_hash ));
+		
+		if ( download == null || !isMaxUpActive( download )){
+			
+			return( false );
+		}
+		
+		if ( !seed_cache.isKnownSeed( torrent_hash, address )){
+			
+			return( false );
+		}
+		
+		PeerManager	pm = download.getPeerManager();
+		
+		if ( pm == null ){
+			
+			return( false );
+		}
+		
+		return( pm.getStats().getConnectedSeeds() + 1 >= getMaxSeeds( download ));
+	}
+	
+	protected void
+	readBadCC(
+		String	str )
+	{
+		String[] ccs = str.split( "," );
+		
+		String log_str = "";
+		
+		for ( int i=0;i<ccs.length;i++ ){
+			
+			String cc = ccs[i].trim();
+			
+			ccs[i] = cc;
+			
+			if ( cc.length() > 0 ){
+				
+				log_str += (log_str.length()==0?"":",") + cc;
+			}
+		}
+		
+		CountrySet new_bad_cc = new CountrySet( ccs );
+		
+		event_log.log( EventLog.CAT_GENERAL, "Bad CC contains %d entries: %s", new_bad_cc.size(), log_str );
+		
+		bad_ccs = new_bad_cc;
+	}
+	
+		/**
+		 * Called on every config save. The file is (re)loaded when the path changes or the file
+		 * has been modified since it was last loaded. Loads run one at a time on a single loader
+		 * and each has a generation, a load that has been superseded by the time it finishes
+		 * isn't published
+		 */
+	
+	protected void
+	readRangeTable(
+		String	str )
+	{
+		String	path = str.trim();
+		
+		File	file = new File( path );
+		
+		String	signature = path.length()==0?"":( path + ":" + file.lastModified() + ":" + file.length());
+		
+		synchronized( range_table_lock ){
+			
+			if ( signature.equals( range_table_signature )){
+				
+				return;
+			}
+			
+			range_table_file		= path;
+			range_table_signature	= signature;
+			
+			range_table_generation++;
+			
+			if ( path.length() == 0 ){
+				
+				range_table = null;
+				
+			}else if ( range_table_loading ){
+				
+					// the loader picks up the latest when it finishes
+				
+				return;
+				
+			}else{
+				
+				range_table_loading = true;
+			}
+		}
+		
+		if ( path.length() == 0 ){
+			
+			event_log.log( EventLog.CAT_GENERAL, "GeoIP file not set, using location provider" );
+			
+			return;
+		}
+		
+		new AEThread2( "MaxShareRatio:geoip", true )
+		{
+			public void
+			run()
+			{
+				loadRangeTables();
+			}
+		}.start();
+	}
+	
+	private void
+	loadRangeTables()
+	{
+		int	loaded_generation = -1;
+		
+		while( true ){
+			
+			File	file;
+			int		generation;
+			
+			synchronized( range_table_lock ){
+				
+				if ( range_table_generation == loaded_generation || range_table_file.length() == 0 ){
+					
+					range_table_loading = false;
+					
+					return;
+				}
+				
+				file		= new File( range_table_file );
+				generation	= range_table_generation;
+			}
+			
+			loaded_generation = generation;
+			
+			CountryRangeTable	table 	= null;
+			Throwable			error	= null;
+			
+			long	start = SystemTime.getMonotonousTime();
+			
+			try{
+				table = CountryRangeTable.load( file );
+				
+			}catch( Throwable e ){
+				
+				error = e;
+			}
+			
+			synchronized( range_table_lock ){
+				
+				if ( generation != range_table_generation ){
+					
+					continue;
+				}
+				
+				range_table = table;
+			}
+			
+			if ( table != null ){
+				
+				event_log.log( EventLog.CAT_GENERAL, "Loaded %d GeoIP ranges from %s in %dms", table.size(), file, SystemTime.getMonotonousTime() - start );
+				
+			}else{
+				
+				event_log.log( EventLog.CAT_ERROR, error, "Failed to load GeoIP file %s, using location provider", file );
+			}
+		}
+	}
+	
+	public void
+	downloadAdded(
+		Download	download )
+	{
+		if ( download.getTorrent() != null ){
+			
+			tracker_wheel.add( download );
+			
+			tracker_aggregator.add( download );
+		}
+		
+			// no state yet for a new download so this is just its attribute - only enabling creates one
+		
+		if ( isMaxUpEnabled( download )){
+			
+			attach( download );
+			
+		}else if ( 	isEarlyJoinEnabled() &&
+					!download.isComplete() &&
+					!download.getBooleanAttribute( manual_attribute )){
+			
+			if ( early_join.addCandidate( download )){
+				
+				log( download, "Watching new download's swarm" );
+			}
+		}
+	}
+	
+	public void
+	downloadRemoved(
+		Download	download )
+	{
+		tracker_wheel.remove( download );
+		
+		tracker_aggregator.remove( download );
+		
+		early_join.remove( download );
+		
+		DownloadState	state = download_states.remove( download );
+		
+		if ( state != null ){
+			
+			detach( download, state );
+		}
+	}
+	
+		/**
+		 * Only enabled downloads get a peer listener - and hence a priority provider and peer manager
+		 * listeners - so that the many disabled downloads cost nothing. Adding the listener results
+		 * in an immediate peerManagerAdded if the download is already running
+		 */
+	
+	protected void
+	attach(
+		Download		download )
+	{
+		if ( download.getTorrent() == null ){
+			
+			return;
+		}
+		
+		periodic_wheel.add( download );
+		
+		hash_map.put( new HashWrapper( download.getTorrent().getHash()), download );
+		
+		DownloadState	state = getDownloadState( download );
+		
+			// transfer while disabled isn't down to any strategy
+		
+		state.resetTransferTotals();
+		
+		synchronized( state ){
+			
+			if ( state.isPeerListenerAdded()){
+				
+				return;
+			}
+			
+			state.setPeerListenerAdded( true );
+		}
+		
+		download.addPeerListener( this );
+	}
+	
+	protected void
+	detach(
+		Download		download,
+		DownloadState	state )
+	{
+		periodic_wheel.remove( download );
+		
+		if ( download.getTorrent() != null ){
+			
+			hash_map.remove( new HashWrapper( download.getTorrent().getHash()));
+		}
+		
+		boolean	remove_listener;
+		
+		synchronized( state ){
+			
+			remove_listener = state.isPeerListenerAdded();
+			
+			state.setPeerListenerAdded( false );
+		}
+		
+		if ( remove_listener ){
+			
+			download.removePeerListener( this );
+		}
+		
+		detach( state );
+	}
+	
+	public void
+	peerManagerAdded(
+		final Download		download,
+		PeerManager			peer_manager )
+	{
+		PeerManagerImpl	_pm = (PeerManagerImpl)peer_manager;
+		
+		final PEPeerManager pm = _pm.getDelegate();
+		
+			// attach created the state, none means we're racing downloadRemoved
+		
+		DownloadState	state = download_states.get( download );
+		
+		if ( state == null ){
+			
+			return;
+		}
+		
+		final PieceAvailabilityIndex	avail_index 	= new PieceAvailabilityIndex( pm, (int)download.getTorrent().getPieceCount(), clock );
+		
+		final PieceInterestIndex		interest_index 	= new PieceInterestIndex( avail_index );
+		
+		SharePriorityProvider	provider = new SharePriorityProvider( this, download, pm, avail_index, interest_index );
+		
+		try{
+			Map	saved_state = download.getMapAttribute( selection_attribute );
+			
+			if ( saved_state != null ){
+				
+				provider.restoreState( saved_state );
+			}
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+		}
+		
+		PeerManagerListener2	seed_listener = 
+			new PeerManagerListener2() 
+			{	
+				public void 
+				eventOccurred(
+					PeerManagerEvent event )
+				{	
+					if ( !isMaxUpActive( download )){
+						
+						return;
+					}
+					
+					try{
+						final PeerManager	pm = event.getPeerManager();
+						
+						final Peer peer = event.getPeer();
+						
+						if ( peer != null && pm != null){
+							
+							int	connected_seeds = pm.getStats().getConnectedSeeds();
+							
+							if ( connected_seeds < getMaxSeeds( download )){
+								
+								int	type = event.getType();
+								
+								if ( type == PeerManagerEvent.ET_PEER_ADDED ){
+						
+									if ( peer.isSeed()){
+										
+										seed_cache.addSeed( download.getTorrent().getHash(), peer.getIp());
+										
+										pm.removePeer( peer );
+									}
+								}
+							}
+						}
+					}catch( Throwable e ){
+						
+					}
+				}
+			};
+			
+			// shouldn't have an existing one but make sure we don't leave it hooked
+		
+		detach( state );
+		
+		state.setAttachment( new PeerManagerAttachment( peer_manager, pm, interest_index, provider, seed_listener ));
+		
+		if ( download_states.get( download ) != state ){
+			
+			detach( state );
+		}
+	}
+	
+	public void
+	peerManagerRemoved(
+		Download		download,
+		PeerManager		peer_manager )
+	{
+		DownloadState	state = download_states.get( download );
+		
+		if ( state != null ){
+			
+			PeerManagerAttachment	attachment = state.getAttachment();
+			
+			if ( attachment != null && attachment.getPeerManager() == peer_manager ){
+				
+				detach( state );
+			}
+		}
+	}
+	
+	protected void
+	detach(
+		DownloadState		state )
+	{
+		PeerManagerAttachment	attachment;
+		
+		synchronized( state ){
+			
+			attachment = state.getAttachment();
+			
+			state.setAttachment( null );
+		}
+		
+		if ( attachment != null ){
+			
+			try{
+				attachment.destroy();
+				
+				SharePriorityProvider	provider = attachment.getProvider();
+				
+				provider.getDownload().setMapAttribute( selection_attribute, provider.getFinalState());
+				
+			}catch( Throwable e ){
+				
+				Debug.printStackTrace( e );
+			}
+		}
+	}
+	
+	protected DownloadState
+	getDownloadState(
+		Download		download )
+	{
+		DownloadState	state = download_states.get( download );
+		
+		if ( state == null ){
+		
+			state = new DownloadState( download.getBooleanAttribute( enabled_attribute ));
+			
+			state.setAppliedRateLimit( getAppliedRateLimit( download ));
+			
+			DownloadState existing = download_states.putIfAbsent( download, state );
+			
+			if ( existing != null ){
+				
+				state = existing;
+			}
+		}
+		
+		return( state );
+	}
+	
+		/**
+		 * Doesn't create state so that a lookup racing downloadRemoved can't leave one behind - 
+		 * a download without state falls back to its attribute
+		 */
+	
+	protected boolean
+	isMaxUpEnabled(
+		Download		download )
+	{
+		DownloadState	state = download_states.get( download );
+		
+		if ( state == null ){
+			
+			return( download.getBooleanAttribute( enabled_attribute ));
+		}
+		
+		return( state.isEnabled());
+	}
+	
+		/**
+		 * For paths that only run for attached downloads (provider, IP filter): no state means
+		 * the download has been removed, not that it hasn't been looked at yet
+		 */
+	
+	protected boolean
+	isMaxUpActive(
+		Download		download )
+	{
+		DownloadState	state = download_states.get( download );
+		
+		return( state != null && state.isEnabled());
+	}
+	
+		/**
+		 * @return bytes per 24 hours that may be downloaded for target pieces, 0 if unlimited
+		 */
+	
+	protected long
+	getDailyBudgetBytes()
+	{
+		return( budget_daily_mb.getValue()*1024L*1024L );
+	}
+	
+	protected DownloadBudget
+	getDownloadBudget()
+	{
+		return( download_budget );
+	}
+	
+	protected ShareClock
+	getClock()
+	{
+		return( clock );
+	}
+	
+	protected long
+	getUploadAverage(
+		Download		download )
+	{
+		DownloadState	state = download_states.get( download );
+		
+		if ( state == null ){
+
+			return( 0 );
+		}
+		
+		return( state.getUploadAverage());
+	}
+	
+	protected void
+	setMaxUpEnabled(
+		Download		download,
+		boolean			enabled )
+	{
+		DownloadState	state = getDownloadState( download );
+		
+		state.setEnabled( enabled );
+		
+		download.setBooleanAttribute( enabled_attribute, enabled );
+		
+		if ( enabled ){
+			
+			attach( download );
+			
+		}else{
+			
+			detach( download, state );
+			
+			applyRateLimit( download, state, 0 );
+			
+			restoreUploadSlots( download );
+			
+				// the state is only good for picking up where we left off
+			
+			download.setMapAttribute( selection_attribute, null );
+		}
+	}
+	
+		/**
+		 * Applies the allocator's rate limit unless the user has set one of their own, in which
+		 * case it is left alone. A limit of 0 removes any the plugin set. The limit set is kept
+		 * with the download as it outlives a restart and must still be recognised as ours
+		 */
+	
+	protected void
+	applyRateLimit(
+		Download		download,
+		DownloadState	state,
+		int				limit )
+	{
+		int	current	= download.getUploadRateLimitBytesPerSecond();
+		int	applied	= state.getAppliedRateLimit();
+		
+		if ( current != 0 && current != applied ){
+			
+				// the user's, so ours has gone
+			
+			if ( applied != DownloadState.RATE_LIMIT_NOT_APPLIED ){
+				
+				setAppliedRateLimit( download, state, DownloadState.RATE_LIMIT_NOT_APPLIED );
+			}
+			
+			return;
+		}
+		
+		if ( limit == 0 ){
+			
+			if ( applied != DownloadState.RATE_LIMIT_NOT_APPLIED ){
+				
+				download.setUploadRateLimitBytesPerSecond( 0 );
+				
+				setAppliedRateLimit( download, state, DownloadState.RATE_LIMIT_NOT_APPLIED );
+			}
+		}else if ( limit != current ){
+			
+			download.setUploadRateLimitBytesPerSecond( limit );
+			
+			setAppliedRateLimit( download, state, limit );
+		}
+	}
+	
+	private void
+	setAppliedRateLimit(
+		Download		download,
+		DownloadState	state,
+		int				limit )
+	{
+		state.setAppliedRateLimit( limit );
+		
+		download.setAttribute( applied_rate_attribute, limit==DownloadState.RATE_LIMIT_NOT_APPLIED?null:String.valueOf( limit ));
+	}
+	
+	private int
+	getAppliedRateLimit(
+		Download		download )
+	{
+		String	str = download.getAttribute( applied_rate_attribute );
+		
+		if ( str != null ){
+			
+			try{
+				return( Integer.parseInt( str ));
+				
+			}catch( Throwable e ){
+			}
+		}
+		
+		return( DownloadState.RATE_LIMIT_NOT_APPLIED );
+	}
+	
+		/**
+		 * Sets the allocator's slots, first keeping the download's own setting so that it can be
+		 * put back when the download is disabled
+		 */
+	
+	private void
+	applyUploadSlots(
+		Download		download,
+		int				slots )
+	{
+		DownloadManagerState	dm_state = PluginCoreUtils.unwrap( download ).getDownloadState();
+		
+		if ( download.getAttribute( max_uploads_attribute ) == null ){
+			
+			download.setAttribute( max_uploads_attribute, String.valueOf( dm_state.getLongParameter( DownloadManagerState.PARAM_MAX_UPLOADS )));
+		}
+		
+		dm_state.setLongParameter( DownloadManagerState.PARAM_MAX_UPLOADS, slots );
+	}
+	
+	private void
+	restoreUploadSlots(
+		Download		download )
+	{
+		String	str = download.getAttribute( max_uploads_attribute );
+		
+		if ( str == null ){
+			
+			return;
+		}
+		
+		try{
+			PluginCoreUtils.unwrap( download ).getDownloadState().setLongParameter( DownloadManagerState.PARAM_MAX_UPLOADS, Long.parseLong( str ));
+			
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+		}
+		
+		download.setAttribute( max_uploads_attribute, null );
+	}
+	
+		/**
+		 * Stores the provider's selection state with the download if it has changed so that it
+		 * resumes warm after a restart or peer manager recreation
+		 */
+	
+	private void
+	saveSelectionState(
+		SharePriorityProvider	provider )
+	{
+		Map<String,Object>	map = provider.getStateToSave();
+		
+		if ( map != null ){
+			
+			provider.getDownload().setMapAttribute( selection_attribute, map );
+		}
+	}
+	
+	public void
+	registerStrategy(
+		PieceSelectionStrategy	strategy )
+	{
+		strategies.put( strategy.getID(), strategy );
+		
+		if ( !strategy_stats.containsKey( strategy.getID())){
+			
+			strategy_stats.put( strategy.getID(), new StrategyStats( strategy.getID()));
+		}
+	}
+	
+		/**
+		 * The download's own strategy if it has one and it is registered, otherwise the default
+		 */
+	
+	protected PieceSelectionStrategy
+	getStrategy(
+		Download	download )
+	{
+			// called by the provider, which may still be running as the download is removed
+		
+		DownloadState	state = download_states.get( download );
+		
+		String	id = state==null?null:state.getStrategyID();
+		
+		if ( id == null ){
+			
+			id = download.getAttribute( strategy_attribute );
+			
+			if ( id == null ){
+				
+				id = "";
+			}
+			
+			if ( state != null ){
+				
+				state.setStrategyID( id );
+			}
+		}
+		
+		PieceSelectionStrategy	strategy = id.length()==0?null:strategies.get( id );
+		
+		if ( strategy == null ){
+			
+			strategy = strategies.get( default_strategy.getValue());
+		}
+		
+		if ( strategy == null ){
+			
+			strategy = strategies.get( RarestPieceStrategy.ID );
+		}
+		
+		return( strategy );
+	}
+	
+	protected String
+	getStrategyID(
+		Download	download )
 	{
-		Set<String> new_bad_cc = new HashSet<String>();
+		DownloadState	state = download_states.get( download );
 		
-		String[] ccs = str.split( "," );
+		String	id = state==null?null:state.getStrategyID();
 		
-		String log_str = "";
+		if ( id == null ){
+			
+			id = download.getAttribute( strategy_attribute );
+		}
 		
-		for ( String cc: ccs ){
+		return( id==null?"":id );
+	}
+	
+		/**
+		 * @param id	null or empty to use the default
+		 */
+	
+	protected void
+	setStrategy(
+		Download	download,
+		String		id )
+	{
+		if ( id == null ){
 			
-			cc = cc.trim();
+			id = "";
+		}
+		
+		download.setAttribute( strategy_attribute, id.length()==0?null:id );
+		
+			// a disabled download only needs the attribute, its state is created when enabled
+		
+		DownloadState	state = download_states.get( download );
+		
+		if ( state != null ){
 			
-			if ( cc.length() > 0 ){
-				
-				new_bad_cc.add( cc );
-				
-				log_str += (log_str.length()==0?"":",") + cc;
-			}
+			state.setStrategyID( id );
 		}
 		
-		logger.log( "Bad CC contains " + new_bad_cc.size() + " entries: " + log_str );
+		log( download, "Strategy set to %s", id.length()==0?"default":id );
+	}
+	
+	protected PluginMetrics
+	getMetrics()
+	{
+		return( metrics );
+	}
+	
+	protected void
+	countEvent(
+		Download	download,
+		int			counter )
+	{
+		countEvent( download, counter, 1 );
+	}
+	
+		/**
+		 * Counts against the download and the plugin totals
+		 */
+	
+	protected void
+	countEvent(
+		Download	download,
+		int			counter,
+		long		value )
+	{
+		DownloadState	state = download_states.get( download );
+		
+		if ( state != null ){
+			
+			state.getCounters().add( counter, value );
+		}
 		
-		bad_ccs = new_bad_cc;
+		metrics.getCounters().add( counter, value );
 	}
 	
-	public void
-	downloadAdded(
-		Download	download )
+	private void
+	countryBlocked(
+		byte[]		torrent_hash,
+		short		cc )
 	{
-		if ( download.getTorrent() != null ){
+		metrics.countryBlocked( cc );
+		
+		Download	download = torrent_hash==null?null:hash_map.get( new HashWrapper( torrent_hash ));
+		
+		if ( download == null ){
+			
+			metrics.getCounters().increment( MetricCounters.PEERS_BLOCKED );
+			
+		}else{
 			
-			download.addPeerListener( this );
+			countEvent( download, MetricCounters.PEERS_BLOCKED );
 		}
 	}
 	
-	public void
-	downloadRemoved(
-		Download	download )
+		/**
+		 * Saves the budget's hourly spend if it has changed, so that it survives a restart
+		 */
+	
+	private void
+	saveDownloadBudget()
 	{
+		String	str = download_budget.exportSpent();
 		
+		if ( !str.equals( budget_spent )){
+			
+			plugin_interface.getPluginconfig().setPluginParameter( BUDGET_SPENT_PARAM, str );
+			
+			budget_spent = str;
+		}
 	}
 	
-	public void
-	peerManagerAdded(
-		final Download		download,
-		PeerManager			peer_manager )
+	private void
+	exportMetrics()
 	{
-		PeerManagerImpl	_pm = (PeerManagerImpl)peer_manager;
+			// keyed by hash as names needn't be unique, and only downloads we've done something for
 		
-		final PEPeerManager pm = _pm.getDelegate();
+		final Map<String,String>			names		= new TreeMap<String,String>();
+		final Map<String,MetricCounters>	downloads	= new TreeMap<String,MetricCounters>();
 		
-		pm.getPiecePicker().addPriorityProvider(
-			new PiecePriorityProvider(){
-				private long	start_time	= SystemTime.getCurrentTime();
-				private long[]	priorities 	= new long[(int)download.getTorrent().getPieceCount()];
-				
-				private int		current_piece = -1;
-				private long	current_piece_done_time;
-				
-				private int		idle_secs_marker;
-				private int		idle_secs_max		= UP_IDLE_LIMIT_SECS_DEFAULT;
+		for ( Map.Entry<Download,DownloadState> entry: download_states.entrySet()){
+			
+			Download		download	= entry.getKey();
+			DownloadState	state		= entry.getValue();
+			
+			Torrent	torrent = download.getTorrent();
+			
+			if ( torrent == null || !state.hasBeenEnabled()){
 				
-				public long[]
-	        	updatePriorities(
-	        		PiecePicker		picker )
-				{
-					if ( !isMaxUpEnabled( download )){
-						
-						return( null );
-					}
+				continue;
+			}
+			
+			String	hash = ByteFormatter.encodeString( torrent.getHash());
+			
+			names.put( hash, download.getName());
+			downloads.put( hash, state.getCounters());
+		}
+		
+		final File	json_file	= plugin_interface.getPluginconfig().getPluginUserFile( "metrics.json" );
+		final File	csv_file	= plugin_interface.getPluginconfig().getPluginUserFile( "metrics.csv" );
+		
+			// file writes kept off the timer thread, skipping this export if the last is still going
+		
+		if ( !metrics_exporting.compareAndSet( false, true )){
+			
+			return;
+		}
+		
+		new AEThread2( "MaxShareRatio:metrics", true )
+		{
+			public void
+			run()
+			{
+				try{
+					metrics.exportJSON( json_file, names, downloads );
 					
-					DiskManagerPiece[]	pieces = pm.getDiskManager().getPieces();
-
-					if ( current_piece != -1 ){
-						
-						if ( pieces[current_piece].isDone()){
-							
-							long	now = SystemTime.getCurrentTime();
-							
-							if ( current_piece_done_time == 0 ){
-								
-								log( download, "Piece " + current_piece + " ready for upload" );
-								
-								current_piece_done_time = now;
-								
-							}else if ( 	current_piece_done_time > now ||
-										now - current_piece_done_time > MIN_PIECE_MILLIS ){
-										
-								int	up_idle_secs = pm.getStats().getTimeSinceLastDataSentInSeconds();
-								
-								if ( up_idle_secs > idle_secs_max ){
-								
-									idle_secs_max += UP_IDLE_LIMIT_SECS_INC * 2;
-									
-									log( download, "Increasing idle limit to " + idle_secs_max );
-									
-									int	num_interested = 0;
-									
-									List<PEPeer>	peers = (List<PEPeer>)pm.getPeers();
-									
-									for ( PEPeer peer: peers ){
-										
-										BitFlags	flags = peer.getAvailable();
-										
-										if ( flags != null && !flags.flags[current_piece]){
-											
-											num_interested++;
-										}
-									}
-									
-									if ( num_interested < MIN_INTERESTED_PEERS ){
-									
-										log( download, "Abandoning piece " + current_piece + ", upload too slow and insufficient interested peers" );
-									
-										current_piece = -1;
-									}
-								}else{
-									
-									if ( up_idle_secs < UP_IDLE_LIMIT_SECS_DEFAULT ){
-										
-										if ( idle_secs_max > UP_IDLE_LIMIT_SECS_DEFAULT ){
-										
-											idle_secs_max	= UP_IDLE_LIMIT_SECS_DEFAULT;
-											
-											log( download, "Decreasing idle limit to " + idle_secs_max );
-										}
-									}
-								}
-							}
-						}
-					}
+					metrics.exportCSV( csv_file );
 					
-					if ( current_piece == -1 ){
+				}catch( Throwable e ){
 					
-						Arrays.fill( priorities, Integer.MIN_VALUE );
-						
-						long	now = SystemTime.getCurrentTime();
+					event_log.log( EventLog.CAT_ERROR, e, "Failed to export metrics" );
 					
-						if ( now < start_time || now - start_time > INITIAL_DELAY_MILLIS ){
-								
-							int[]	avails 		= picker.getAvailability();
-							int		min_avail 	= Integer.MAX_VALUE;
-							
-							List<Integer>	min_pieces 			= null;
-							List<Integer>	min_pieces_unchoked = null;
-							
-							for (int i=0;i<avails.length;i++){
-							
-								DiskManagerPiece	piece = pieces[i];
-								
-								int	avail = avails[i];
-								
-								if ( 	avail > 0 &&		// no point in selecting a piece that isn't available
-										avail <= min_avail && 
-										piece.isNeeded() && 
-										!piece.isDone() &&
-										pm.getPiece( i ) == null ){
-										
-										// only download a piece if at least 3 other peers
-										// need it
-									
-									int	num_interested	= 0;
-									int	num_unchoked	= 0;
-									
-									List<PEPeer>	peers = (List<PEPeer>)pm.getPeers();
-									
-									for ( PEPeer peer: peers ){
-										
-										BitFlags	flags = peer.getAvailable();
-										
-										if ( flags != null && !flags.flags[i]){
-											
-											num_interested++;
-										}
-										
-										if ( !peer.isChokingMe()){
-											
-											num_unchoked++;
-										}
-									}
-									
-									if ( num_interested >= MIN_INTERESTED_PEERS ){
-										
-										if ( avail < min_avail || min_pieces == null ){
-											
-											min_pieces 			= new ArrayList<Integer>();
-											min_pieces_unchoked	= new ArrayList<Integer>();		
-											
-											min_avail = avail;
-										}
-									
-										min_pieces.add( i );
-										
-										if ( num_unchoked > 0 ){
-											
-											min_pieces_unchoked.add(i);
-										}
-									}
-								}
-							}
-							
-							if ( min_pieces != null){
-								
-								if ( min_pieces_unchoked.size() == 0 ){
-									
-									current_piece = min_pieces.get( new Random().nextInt( min_pieces.size()));
-									
-								}else{
-									
-									current_piece = min_pieces_unchoked.get( new Random().nextInt( min_pieces_unchoked.size()));
-								}
-								
-								priorities[current_piece]	= 100000;
-								current_piece_done_time		= 0;
-								
-								log( download, "Selecting new piece " + current_piece + ", availability=" + min_avail );
-							}
-						}
-					}
-						
-					return( priorities );
-				}
-			});
-		
-		peer_manager.addListener(
-			new PeerManagerListener2() 
-			{	
-				public void 
-				eventOccurred(
-					PeerManagerEvent event )
-				{	
-					if ( !isMaxUpEnabled( download )){
-						
-						return;
-					}
+				}finally{
 					
-					try{
-						final PeerManager	pm = event.getPeerManager();
-						
-						final Peer peer = event.getPeer();
-						
-						if ( peer != null && pm != null){
-							
-							int	connected_seeds = pm.getStats().getConnectedSeeds();
-							
-							if ( connected_seeds < MAX_SEEDS_PER_TORRENT ){
-								
-								int	type = event.getType();
-								
-								if ( type == PeerManagerEvent.ET_PEER_ADDED ){
-						
-									if ( peer.isSeed()){
-																			
-										pm.removePeer( peer );
-									}
-								}
-							}
-						}
-					}catch( Throwable e ){
-						
-					}
+					metrics_exporting.set( false );
 				}
-			});
+			}
+		}.start();
+	}
+	
+	protected StrategyStats
+	getStrategyStats(
+		PieceSelectionStrategy	strategy )
+	{
+		StrategyStats	stats = strategy_stats.get( strategy.getID());
+		
+		if ( stats == null ){
 			
+			stats = new StrategyStats( strategy.getID());
+			
+			strategy_stats.put( strategy.getID(), stats );
+		}
+		
+		return( stats );
 	}
 	
-	public void
-	peerManagerRemoved(
-		Download		download,
-		PeerManager		peer_manager )
+	protected boolean
+	isEarlyJoinEnabled()
 	{
+		return( early_enable.getValue());
 	}
 	
-	protected synchronized boolean
-	isMaxUpEnabled(
-		Download		download )
+	protected boolean
+	isPipelineEnabled()
+	{
+		return( pipeline_enable.getValue());
+	}
+	
+	protected int
+	getPipelineMaxDepth()
+	{
+		return( pipeline_max_depth.getValue());
+	}
+	
+		/**
+		 * Per-download seed limit if set, otherwise the configured default
+		 */
+	
+	protected int
+	getMaxSeeds(
+		Download	download )
 	{
-		Boolean	state = download_map.get( download );
+		DownloadState	state = download_states.get( download );
 		
-		if ( state == null ){
+		int	res = state==null?DownloadState.MAX_SEEDS_UNSET:state.getMaxSeeds();
 		
-			state = new Boolean( download.getBooleanAttribute( enabled_attribute ));
+		if ( res == DownloadState.MAX_SEEDS_UNSET ){
+			
+			String	str = download.getAttribute( max_seeds_attribute );
+			
+			res = str==null?DownloadState.MAX_SEEDS_DEFAULT:parseMaxSeeds( str );
+			
+			if ( res == DownloadState.MAX_SEEDS_UNSET ){
+				
+				res = DownloadState.MAX_SEEDS_DEFAULT;
+			}
+			
+			if ( state != null ){
+				
+				state.setMaxSeeds( res );
+			}
 		}
 		
-		download_map.put( download, state );
+		if ( res == DownloadState.MAX_SEEDS_DEFAULT ){
+			
+			res = max_seeds.getValue();
+		}
 		
-		return( state );
+		return( res );
 	}
 	
-	protected synchronized void
-	updateUploadAverage(
-		Download		download )
-	{	
-		Average	average = download_uploads.get( download );
+	protected void
+	setMaxSeeds(
+		Download	download,
+		String		str )
+	{
+		int	value = parseMaxSeeds( str );
 		
-		if ( average == null ){
+		if ( value == DownloadState.MAX_SEEDS_UNSET ){
 			
-			average = Average.getInstance( 1000, 60 );
+			log( download, "Invalid seed limit '%s', must be 0 or more", str.trim());
 			
-			download_uploads.put( download, average );
+			return;
 		}
 		
-		average.addValue( download.getStats().getUploadAverage());
-	}
-	
-	protected synchronized long
-	getUploadAverage(
-		Download		download )
-	{
-		Average	average = download_uploads.get( download );
+		download.setAttribute( max_seeds_attribute, value==DownloadState.MAX_SEEDS_DEFAULT?null:String.valueOf( value ));
 		
-		if ( average == null ){
-
-			return( 0 );
+		DownloadState	state = download_states.get( download );
+		
+		if ( state != null ){
+			
+			state.setMaxSeeds( value );
 		}
 		
-		return( average.getAverage());
+		log( download, "Seed limit set to %s", value==DownloadState.MAX_SEEDS_DEFAULT?"default":String.valueOf( value ));
 	}
 	
-	protected synchronized void
-	setMaxUpEnabled(
-		Download		download,
-		boolean			enabled )
+		/**
+		 * @return the limit, MAX_SEEDS_DEFAULT if blank or MAX_SEEDS_UNSET if not a number of 0 or more
+		 */
+	
+	protected static int
+	parseMaxSeeds(
+		String		str )
 	{
-		download_map.put( download, enabled );
+		str = str.trim();
 		
-		download.setBooleanAttribute( enabled_attribute, enabled );
+		if ( str.length() == 0 ){
+			
+			return( DownloadState.MAX_SEEDS_DEFAULT );
+		}
+		
+		try{
+			int	value = Integer.parseInt( str );
+			
+			return( value<0?DownloadState.MAX_SEEDS_UNSET:value );
+			
+		}catch( Throwable e ){
+			
+			return( DownloadState.MAX_SEEDS_UNSET );
+		}
 	}
 	
 	protected boolean
@@ -944,8 +2296,25 @@ MaxShareRatioPlugin
 	protected void
 	log(
 		Download	dl,
-		String		str )
+		String		format,
+		Object...	format_args )
+	{
+		event_log.log( EventLog.CAT_DOWNLOAD, dl, format, format_args );
+	}
+	
+		/**
+		 * IP filter path, may be called before initialize
+		 */
+	
+	private void
+	countBlocked(
+		short		cc )
 	{
-		logger.log( dl.getName() + ": " + str );
+		EventLog	log = event_log;
+		
+		if ( log != null ){
+			
+			log.countBlocked( cc );
+		}
 	}
 }
@@ -0,0 +1,86 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+	/**
+	 * Event counters, kept per download and for the plugin as a whole. Updated from the peer
+	 * manager threads (selection), the network threads (IP filter) and the stats timer so the
+	 * counts are atomics.
+	 */
+
+public class
+MetricCounters
+{
+	public static final int	PIECES_SELECTED			= 0;
+	public static final int	PIECES_ABANDONED		= 1;
+	public static final int	PIECES_COMPLETED		= 2;
+	public static final int	IDLE_LIMIT_INCREASES	= 3;
+	public static final int	SEEDS_CULLED			= 4;
+	public static final int	PEERS_BLOCKED			= 5;
+	public static final int	BYTES_UPLOADED			= 6;
+	public static final int	BYTES_DOWNLOADED		= 7;
+	public static final int	PIECES_MOVED_ON			= 8;
+
+	public static final String[]	NAMES = {
+		"pieces_selected",
+		"pieces_abandoned",
+		"pieces_completed",
+		"idle_limit_increases",
+		"seeds_culled",
+		"peers_blocked",
+		"bytes_uploaded",
+		"bytes_downloaded",
+		"pieces_moved_on",
+	};
+
+	private final AtomicLongArray	counts = new AtomicLongArray( NAMES.length );
+
+	protected void
+	increment(
+		int		counter )
+	{
+		counts.incrementAndGet( counter );
+	}
+
+	protected void
+	add(
+		int		counter,
+		long	value )
+	{
+		counts.addAndGet( counter, value );
+	}
+
+	protected long
+	get(
+		int		counter )
+	{
+		return( counts.get( counter ));
+	}
+
+		/**
+		 * @return bytes uploaded per byte downloaded while enabled, -1 if nothing downloaded
+		 */
+
+	protected double
+	getRatio()
+	{
+		long	down = counts.get( BYTES_DOWNLOADED );
+
+		return( down==0?-1:(double)counts.get( BYTES_UPLOADED )/down );
+	}
+
+	protected String
+	getString()
+	{
+		double	ratio = getRatio();
+
+		return( "selected=" + get( PIECES_SELECTED ) +
+				", completed=" + get( PIECES_COMPLETED ) +
+				", abandoned=" + get( PIECES_ABANDONED ) +
+				", moved on=" + get( PIECES_MOVED_ON ) +
+				", idle increases=" + get( IDLE_LIMIT_INCREASES ) +
+				", seeds culled=" + get( SEEDS_CULLED ) +
+				", blocked=" + get( PEERS_BLOCKED ) +
+				", ratio=" + ( ratio<0?"-":String.format( "%.2f", ratio )));
+	}
+}
@@ -0,0 +1,73 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import com.biglybt.core.peer.PEPeerManager;
+import com.biglybt.core.peermanager.piecepicker.PiecePicker;
+import com.biglybt.pif.peers.PeerManager;
+import com.biglybt.pif.peers.PeerManagerListener2;
+
+	/**
+	 * Everything hooked into a download's peer manager, kept together so it can all be unhooked
+	 * when the peer manager goes away or the download is removed
+	 */
+
+public class
+PeerManagerAttachment
+{
+	private final PeerManager				peer_manager;
+	private final PEPeerManager				pm;
+	private final PieceInterestIndex		interest_index;
+	private final SharePriorityProvider		provider;
+	private final PeerManagerListener2		seed_listener;
+
+	protected
+	PeerManagerAttachment(
+		PeerManager				_peer_manager,
+		PEPeerManager			_pm,
+		PieceInterestIndex		_interest_index,
+		SharePriorityProvider	_provider,
+		PeerManagerListener2	_seed_listener )
+	{
+		peer_manager	= _peer_manager;
+		pm				= _pm;
+		interest_index	= _interest_index;
+		provider		= _provider;
+		seed_listener	= _seed_listener;
+
+		peer_manager.addListener( interest_index );
+
+		pm.getPiecePicker().addPriorityProvider( provider );
+
+		peer_manager.addListener( seed_listener );
+	}
+
+	protected PeerManager
+	getPeerManager()
+	{
+		return( peer_manager );
+	}
+
+	protected SharePriorityProvider
+	getProvider()
+	{
+		return( provider );
+	}
+
+	protected void
+	destroy()
+	{
+		peer_manager.removeListener( seed_listener );
+
+		PiecePicker	picker = pm.getPiecePicker();
+
+		if ( picker != null ){
+
+			picker.removePriorityProvider( provider );
+		}
+
+		provider.destroy();
+
+		peer_manager.removeListener( interest_index );
+
+		interest_index.destroy();
+	}
+}
@@ -0,0 +1,417 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.biglybt.core.disk.DiskManagerPiece;
+import com.biglybt.core.peer.PEPeerManager;
+import com.biglybt.core.peer.PEPiece;
+
+	/**
+	 * Eligible (needed, not done) pieces bucketed by availability so that the rarest candidates
+	 * can be found without walking the whole piece array.
+	 *
+	 * Buckets are intrusive doubly linked lists over piece numbers. Bitfield arrival/removal is
+	 * applied as it happens. Haves aren't signalled to plugins so a piece's cached availability can
+	 * lag behind (below) the picker's - entries are validated against the picker's array as the
+	 * lowest buckets are walked and moved up if stale. A periodic full resync picks up anything
+	 * else we can't see (file priority changes, rechecks).
+	 *
+	 * Bucket 0 is never walked: its pieces can't be candidates and on a new or poorly seeded
+	 * swarm it holds most of the torrent. A piece that gains availability only through haves
+	 * stays there until the next resync.
+	 *
+	 * The find and getCandidate methods are public as the index is handed to third party
+	 * PieceSelectionStrategy implementations via PieceSelectionContext.
+	 */
+
+public class
+PieceAvailabilityIndex
+{
+	public static final int RESYNC_MILLIS		= 30*1000;
+
+	private final PEPeerManager		pm;
+	private final ShareClock		clock;
+
+	private final int		num_pieces;
+
+	private final int[]		cached_avail;
+	private final int[]		next;
+	private final int[]		prev;
+	private final boolean[]	linked;
+
+	private int[]			bucket_heads;
+
+	private long			last_resync	= -1;
+
+	private final int[]		candidates;
+	private int				num_candidates;
+	private int				candidate_avail;
+	private int				last_visited;
+
+	protected
+	PieceAvailabilityIndex(
+		PEPeerManager		_pm,
+		int					_num_pieces,
+		ShareClock			_clock )
+	{
+		pm			= _pm;
+		clock		= _clock;
+		num_pieces	= _num_pieces;
+
+		cached_avail	= new int[num_pieces];
+		next			= new int[num_pieces];
+		prev			= new int[num_pieces];
+		linked			= new boolean[num_pieces];
+		candidates		= new int[num_pieces];
+
+		bucket_heads	= new int[16];
+
+		Arrays.fill( bucket_heads, -1 );
+	}
+
+	protected synchronized void
+	addAvailability(
+		boolean[]	flags )
+	{
+		adjustAvailability( flags, 1 );
+	}
+
+	protected synchronized void
+	removeAvailability(
+		boolean[]	flags )
+	{
+		adjustAvailability( flags, -1 );
+	}
+
+	private void
+	adjustAvailability(
+		boolean[]	flags,
+		int			delta )
+	{
+		if ( flags == null || flags.length != num_pieces ){
+
+			last_resync = -1;
+
+			return;
+		}
+
+		for ( int i=0;i<num_pieces;i++ ){
+
+			if ( flags[i] ){
+
+				int	avail = cached_avail[i] + delta;
+
+				if ( avail < 0 ){
+
+					avail = 0;
+				}
+
+				if ( linked[i] ){
+
+					move( i, avail );
+
+				}else{
+
+					cached_avail[i] = avail;
+				}
+			}
+		}
+	}
+
+		/**
+		 * Called when a piece's completion state changes - a piece that fails a recheck needs to
+		 * be put back into consideration
+		 */
+
+	protected synchronized void
+	pieceStateChanged()
+	{
+		last_resync = -1;
+	}
+
+		/**
+		 * Finds the eligible, available pieces of minimum availability, considering only those with
+		 * availability no greater than max_avail. Results are available via getCandidate()
+		 *
+		 * @return number of candidates found
+		 */
+
+	public synchronized int
+	findRarest(
+		int[]		avails,
+		int			max_avail )
+	{
+		return( collect( avails, max_avail, candidates.length, true ));
+	}
+
+		/**
+		 * As findRarest but continues into higher availability buckets until limit candidates have
+		 * been found, for selection strategies that weigh other things against rarity.
+		 * getCandidateAvailability() returns the lowest availability found
+		 */
+
+	public synchronized int
+	findCandidates(
+		int[]		avails,
+		int			max_avail,
+		int			limit )
+	{
+		return( collect( avails, max_avail, Math.min( limit, candidates.length ), false ));
+	}
+
+		/**
+		 * Eligible, available pieces with availability no greater than max_avail drawn uniformly at
+		 * random (with replacement), stopping at limit candidates or after max_probes draws, whichever
+		 * is first. Each candidate is equally likely to be any of the eligible pieces and the cost is
+		 * bounded by max_probes whatever the piece count, but if eligible pieces are sparse this can
+		 * find none while findCandidates would. getCandidateAvailability() is the lowest availability
+		 * found
+		 */
+
+	public synchronized int
+	sampleCandidates(
+		int[]		avails,
+		int			max_avail,
+		Random		random,
+		int			limit,
+		int			max_probes )
+	{
+		DiskManagerPiece[]	pieces = pm.getDiskManager().getPieces();
+
+		checkResync( avails, pieces );
+
+		PEPiece[]	pe_pieces = pm.getPieces();
+
+		num_candidates	= 0;
+		candidate_avail	= -1;
+		last_visited	= 0;
+
+		limit = Math.min( limit, candidates.length );
+
+		for ( int i=0;i<max_probes&&num_candidates<limit;i++ ){
+
+			int	piece = random.nextInt( num_pieces );
+
+			int	avail = avails[piece];
+
+			last_visited++;
+
+			if ( linked[piece] && avail > 0 && avail <= max_avail ){
+
+				DiskManagerPiece	dm_piece = pieces[piece];
+
+				if ( !dm_piece.isDone() && dm_piece.isNeeded() && pe_pieces[piece] == null ){
+
+					if ( candidate_avail == -1 || avail < candidate_avail ){
+
+						candidate_avail = avail;
+					}
+
+					candidates[num_candidates++] = piece;
+				}
+			}
+		}
+
+		return( num_candidates );
+	}
+
+	private int
+	collect(
+		int[]		avails,
+		int			max_avail,
+		int			limit,
+		boolean		first_bucket_only )
+	{
+		DiskManagerPiece[]	pieces = pm.getDiskManager().getPieces();
+
+		checkResync( avails, pieces );
+
+			// started pieces, the array rather than getPiece() per candidate
+
+		PEPiece[]	pe_pieces = pm.getPieces();
+
+		num_candidates	= 0;
+		candidate_avail	= -1;
+		last_visited	= 0;
+
+		for ( int bucket=1;bucket<bucket_heads.length&&bucket<=max_avail&&num_candidates<limit;bucket++ ){
+
+			int	piece = bucket_heads[bucket];
+
+			while( piece != -1 && num_candidates < limit ){
+
+				int	next_piece = next[piece];
+
+				last_visited++;
+
+				int	avail = avails[piece];
+
+				if ( avail != bucket ){
+
+						// stale, re-file it. if it moves up it'll get revisited when we get there
+
+					move( piece, avail );
+
+				}else{
+
+					DiskManagerPiece	dm_piece = pieces[piece];
+
+					if ( dm_piece.isDone() || !dm_piece.isNeeded()){
+
+							// resync will put it back should this change
+
+						unlink( piece );
+
+					}else if ( pe_pieces[piece] == null ){
+
+						if ( num_candidates == 0 ){
+
+							candidate_avail = bucket;
+						}
+
+						candidates[num_candidates++] = piece;
+					}
+				}
+
+				piece = next_piece;
+			}
+
+			if ( num_candidates > 0 && first_bucket_only ){
+
+				break;
+			}
+		}
+
+		return( num_candidates );
+	}
+
+	public synchronized int
+	getCandidate(
+		int		index )
+	{
+		return( candidates[index] );
+	}
+
+	public synchronized int
+	getCandidateAvailability()
+	{
+		return( candidate_avail );
+	}
+
+		/**
+		 * @return pieces looked at by the last find, for checking its cost
+		 */
+
+	protected synchronized int
+	getLastVisited()
+	{
+		return( last_visited );
+	}
+
+	private void
+	checkResync(
+		int[]				avails,
+		DiskManagerPiece[]	pieces )
+	{
+		long	now = clock.getMonotonousTime();
+
+		if ( last_resync == -1 || now - last_resync > RESYNC_MILLIS ){
+
+			resync( avails, pieces );
+
+			last_resync = now;
+		}
+	}
+
+	private void
+	resync(
+		int[]				avails,
+		DiskManagerPiece[]	pieces )
+	{
+		Arrays.fill( bucket_heads, -1 );
+
+		for ( int i=0;i<num_pieces;i++ ){
+
+			linked[i]		= false;
+			cached_avail[i]	= avails[i];
+
+			DiskManagerPiece	piece = pieces[i];
+
+			if ( piece.isNeeded() && !piece.isDone()){
+
+				link( i, avails[i] );
+			}
+		}
+	}
+
+	private void
+	move(
+		int		piece,
+		int		avail )
+	{
+		unlink( piece );
+
+		link( piece, avail );
+	}
+
+	private void
+	link(
+		int		piece,
+		int		avail )
+	{
+		if ( avail >= bucket_heads.length ){
+
+			int[]	new_heads = new int[Math.max( avail+1, bucket_heads.length*2 )];
+
+			Arrays.fill( new_heads, -1 );
+
+			System.arraycopy( bucket_heads, 0, new_heads, 0, bucket_heads.length );
+
+			bucket_heads = new_heads;
+		}
+
+		int	head = bucket_heads[avail];
+
+		next[piece]	= head;
+		prev[piece]	= -1;
+
+		if ( head != -1 ){
+
+			prev[head] = piece;
+		}
+
+		bucket_heads[avail]	= piece;
+		cached_avail[piece]	= avail;
+		linked[piece]		= true;
+	}
+
+	private void
+	unlink(
+		int		piece )
+	{
+		if ( !linked[piece] ){
+
+			return;
+		}
+
+		int	p = prev[piece];
+		int	n = next[piece];
+
+		if ( p == -1 ){
+
+			bucket_heads[cached_avail[piece]] = n;
+
+		}else{
+
+			next[p] = n;
+		}
+
+		if ( n != -1 ){
+
+			prev[n] = p;
+		}
+
+		linked[piece] = false;
+	}
+}
@@ -0,0 +1,287 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.biglybt.core.peer.PEPeer;
+import com.biglybt.pif.peers.*;
+import com.biglybt.pifimpl.local.PluginCoreUtils;
+
+	/**
+	 * Tracks, per download, how many connected peers have told us which pieces they hold. The
+	 * piece picker already maintains per-piece availability incrementally (bitfields, haves and
+	 * peer removal) so the number of peers lacking piece i is simply
+	 *
+	 * 		bitfield_peers - availability[i]
+	 *
+	 * which avoids walking every peer's flags for every candidate piece.
+	 *
+	 * A peer counts once an availability event arrives for it or it already has a bitfield when
+	 * added. Peers added without one are rechecked on every later event so that a bitfield whose
+	 * event we missed is still counted.
+	 */
+
+public class
+PieceInterestIndex
+	implements PeerManagerListener2
+{
+	private final PieceAvailabilityIndex	avail_index;
+
+	private final Map<Peer,PeerListener2>	peer_listeners 	= new HashMap<Peer,PeerListener2>();
+	private final Set<Peer>					bitfield_peers 	= new HashSet<Peer>();
+	private final Set<Peer>					pending_peers 	= new HashSet<Peer>();
+
+	private volatile int	bitfield_peer_count;
+	private volatile int	pending_peer_count;
+
+	protected
+	PieceInterestIndex(
+		PieceAvailabilityIndex	_avail_index )
+	{
+		avail_index	= _avail_index;
+	}
+
+	public void
+	eventOccurred(
+		PeerManagerEvent event )
+	{
+		int	type = event.getType();
+
+		checkPendingPeers();
+
+		if ( type == PeerManagerEvent.ET_PIECE_COMPLETION_CHANGED ){
+
+			avail_index.pieceStateChanged();
+
+			return;
+		}
+
+		final Peer	peer = event.getPeer();
+
+		if ( peer == null ){
+
+			return;
+		}
+
+		if ( type == PeerManagerEvent.ET_PEER_ADDED ){
+
+			PeerListener2 listener =
+				new PeerListener2()
+				{
+					public void
+					eventOccurred(
+						PeerEvent	peer_event )
+					{
+						int	peer_type = peer_event.getType();
+
+						checkPendingPeers();
+
+						if ( peer_type == PeerEvent.ET_ADD_AVAILABILITY ){
+
+							addBitfieldPeer( peer );
+
+							avail_index.addAvailability( getFlags( peer_event ));
+
+						}else if ( peer_type == PeerEvent.ET_REMOVE_AVAILABILITY ){
+
+							removeBitfieldPeer( peer );
+
+							avail_index.removeAvailability( getFlags( peer_event ));
+						}
+					}
+				};
+
+			synchronized( this ){
+
+				if ( peer_listeners.containsKey( peer )){
+
+					return;
+				}
+
+				peer_listeners.put( peer, listener );
+			}
+
+			peer.addListener( listener );
+
+				// bitfield may have arrived before we got to hear about the peer
+
+			if ( hasBitfield( peer )){
+
+				addBitfieldPeer( peer );
+
+			}else{
+
+				addPendingPeer( peer );
+			}
+		}else if ( type == PeerManagerEvent.ET_PEER_REMOVED ){
+
+			PeerListener2	listener;
+
+			synchronized( this ){
+
+				listener = peer_listeners.remove( peer );
+			}
+
+			if ( listener != null ){
+
+				peer.removeListener( listener );
+			}
+
+			removeBitfieldPeer( peer );
+		}
+	}
+
+	private boolean[]
+	getFlags(
+		PeerEvent	event )
+	{
+		Object	data = event.getData();
+
+		if ( data instanceof boolean[] ){
+
+			return((boolean[])data );
+		}
+
+			// unexpected, the availability index will resync
+
+		return( null );
+	}
+
+	private boolean
+	hasBitfield(
+		Peer	peer )
+	{
+		PEPeer	pe_peer = PluginCoreUtils.unwrap( peer );
+
+		if ( pe_peer != null ){
+
+			return( pe_peer.getAvailable() != null );
+		}
+
+		return( peer.getAvailable() != null );
+	}
+
+	private synchronized void
+	addPendingPeer(
+		Peer	peer )
+	{
+		if ( !bitfield_peers.contains( peer ) && pending_peers.add( peer )){
+
+			pending_peer_count = pending_peers.size();
+		}
+	}
+
+		/**
+		 * Counts peers added without a bitfield that now have one
+		 */
+
+	private void
+	checkPendingPeers()
+	{
+		if ( pending_peer_count == 0 ){
+
+			return;
+		}
+
+		synchronized( this ){
+
+			Iterator<Peer>	it = pending_peers.iterator();
+
+			while( it.hasNext()){
+
+				Peer	peer = it.next();
+
+				if ( hasBitfield( peer )){
+
+					it.remove();
+
+					if ( bitfield_peers.add( peer )){
+
+						bitfield_peer_count = bitfield_peers.size();
+					}
+				}
+			}
+
+			pending_peer_count = pending_peers.size();
+		}
+	}
+
+	private synchronized void
+	addBitfieldPeer(
+		Peer	peer )
+	{
+		if ( pending_peers.remove( peer )){
+
+			pending_peer_count = pending_peers.size();
+		}
+
+		if ( bitfield_peers.add( peer )){
+
+			bitfield_peer_count = bitfield_peers.size();
+		}
+	}
+
+	private synchronized void
+	removeBitfieldPeer(
+		Peer	peer )
+	{
+		if ( pending_peers.remove( peer )){
+
+			pending_peer_count = pending_peers.size();
+		}
+
+		if ( bitfield_peers.remove( peer )){
+
+			bitfield_peer_count = bitfield_peers.size();
+		}
+	}
+
+	protected void
+	destroy()
+	{
+		Map<Peer,PeerListener2>	listeners;
+
+		synchronized( this ){
+
+			listeners = new HashMap<Peer,PeerListener2>( peer_listeners );
+
+			peer_listeners.clear();
+			bitfield_peers.clear();
+			pending_peers.clear();
+
+			bitfield_peer_count = 0;
+			pending_peer_count	= 0;
+		}
+
+		for ( Map.Entry<Peer,PeerListener2> entry: listeners.entrySet()){
+
+			entry.getKey().removeListener( entry.getValue());
+		}
+	}
+
+	protected int
+	getBitfieldPeerCount()
+	{
+		return( bitfield_peer_count );
+	}
+
+		/**
+		 * @param avails	the picker's current availability array
+		 * @param have		whether we have the piece, the picker counting our own copy
+		 * @return number of peers known to lack the piece
+		 */
+
+	protected int
+	getInterestedCount(
+		int[]		avails,
+		int			piece,
+		boolean		have )
+	{
+		int	res = bitfield_peer_count - ( have?avails[piece]-1:avails[piece] );
+
+		return( res<0?0:res );
+	}
+}
@@ -0,0 +1,66 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.List;
+import java.util.Random;
+
+import com.biglybt.core.peer.PEPeer;
+
+	/**
+	 * Per-download view handed to a PieceSelectionStrategy
+	 */
+
+public interface
+PieceSelectionContext
+{
+		/**
+		 * @return the picker's availability array, not to be modified
+		 */
+
+	public int[]
+	getAvailability();
+
+		/**
+		 * @return the highest availability a piece can have and still be lacked by enough peers to be
+		 * worth downloading
+		 */
+
+	public int
+	getMaxAvailability();
+
+		/**
+		 * @return the download's eligible pieces by availability - use its find methods then
+		 * getCandidate() rather than walking the availability array
+		 */
+
+	public PieceAvailabilityIndex
+	getAvailabilityIndex();
+
+	public List<PEPeer>
+	getPeers();
+
+		/**
+		 * @return true if the piece is already a target, such a piece can't be selected again
+		 */
+
+	public boolean
+	isTarget(
+		int		piece );
+
+	public Random
+	getRandom();
+
+		/**
+		 * @return the download's scorer, shared between strategies so clear() it when done
+		 */
+
+	public YieldScorer
+	getYieldScorer();
+
+		/**
+		 * Optionally records a score for the selection for diagnostics
+		 */
+
+	public void
+	setScore(
+		double	score );
+}
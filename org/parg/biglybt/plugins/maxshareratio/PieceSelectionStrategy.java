@@ -0,0 +1,25 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+	/**
+	 * Chooses the next target piece for an enabled download. Implementations are shared between
+	 * downloads so must keep any per-download state in the context; they are called on the
+	 * download's peer manager thread.
+	 *
+	 * Strategies are registered with MaxShareRatioPlugin.registerStrategy and assigned per download
+	 * (or via the default) from the UI.
+	 */
+
+public interface
+PieceSelectionStrategy
+{
+	public String
+	getID();
+
+		/**
+		 * @return the piece to target next or -1 if nothing is worth downloading right now
+		 */
+
+	public int
+	selectPiece(
+		PieceSelectionContext	context );
+}
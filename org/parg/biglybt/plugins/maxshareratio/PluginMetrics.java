@@ -0,0 +1,260 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.biglybt.util.JSONUtils;
+
+	/**
+	 * Plugin wide metrics: totals of the per-download counters, latency of the two hot paths
+	 * (updatePriorities on the peer manager threads, isBlocked on the connection path) and IP
+	 * filter blocks by country. Exported as a JSON snapshot and as a CSV time series so that
+	 * settings can be compared across runs.
+	 */
+
+public class
+PluginMetrics
+{
+	private final MetricCounters	counters		= new MetricCounters();
+
+	private final LatencyHistogram	update_latency	= new LatencyHistogram();
+	private final LatencyHistogram	blocked_latency	= new LatencyHistogram();
+
+	private final AtomicLongArray	blocked_by_country	= new AtomicLongArray( CountrySet.NUM_CODES );
+
+	protected MetricCounters
+	getCounters()
+	{
+		return( counters );
+	}
+
+	protected LatencyHistogram
+	getUpdateLatency()
+	{
+		return( update_latency );
+	}
+
+	protected LatencyHistogram
+	getBlockedLatency()
+	{
+		return( blocked_latency );
+	}
+
+	protected void
+	countryBlocked(
+		short		cc )
+	{
+		if ( cc >= 0 && cc < CountrySet.NUM_CODES ){
+
+			blocked_by_country.incrementAndGet( cc );
+		}
+	}
+
+	protected String
+	getSummary()
+	{
+		return( counters.getString() +
+				"; updatePriorities p99<" + String.format( "%.1f", update_latency.getPercentileNanos( 0.99 ) / 1000.0 ) + "us" +
+				"; isBlocked p99<" + String.format( "%.1f", blocked_latency.getPercentileNanos( 0.99 ) / 1000.0 ) + "us" );
+	}
+
+		/**
+		 * Writes a snapshot of everything, replacing any previous one
+		 *
+		 * @param names			download hash -> its name
+		 * @param downloads		download hash -> its counters
+		 */
+
+	protected void
+	exportJSON(
+		File						file,
+		Map<String,String>			names,
+		Map<String,MetricCounters>	downloads )
+
+		throws IOException
+	{
+		Map<String,Object>	map = new LinkedHashMap<String,Object>();
+
+		map.put( "time", System.currentTimeMillis());
+		map.put( "totals", toMap( counters ));
+
+		Map<String,Object>	latency = new LinkedHashMap<String,Object>();
+
+		latency.put( "update_priorities", toMap( update_latency ));
+		latency.put( "is_blocked", toMap( blocked_latency ));
+
+		map.put( "latency", latency );
+
+		Map<String,Object>	countries = new LinkedHashMap<String,Object>();
+
+		for ( short cc=0;cc<CountrySet.NUM_CODES;cc++ ){
+
+			long	blocked = blocked_by_country.get( cc );
+
+			if ( blocked > 0 ){
+
+				countries.put( CountrySet.decode( cc ), blocked );
+			}
+		}
+
+		map.put( "blocked_by_country", countries );
+
+		List<Object>	list = new ArrayList<Object>();
+
+		for ( Map.Entry<String,MetricCounters> entry: downloads.entrySet()){
+
+			Map<String,Object>	dl_map = new LinkedHashMap<String,Object>();
+
+			dl_map.put( "hash", entry.getKey());
+			dl_map.put( "name", names.get( entry.getKey()));
+
+			dl_map.putAll( toMap( entry.getValue()));
+
+			list.add( dl_map );
+		}
+
+		map.put( "downloads", list );
+
+		File	temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+		PrintWriter	pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( temp ), "UTF-8" ));
+
+		try{
+			pw.println( JSONUtils.encodeToJSON( map ));
+
+		}finally{
+
+			pw.close();
+		}
+
+		file.delete();
+
+		if ( !temp.renameTo( file )){
+
+			throw( new IOException( "Failed to rename " + temp + " to " + file ));
+		}
+	}
+
+		/**
+		 * Appends a line of the totals, writing the header if the file is new. A file written with
+		 * different columns, as by a version with fewer counters, is renamed aside with the time
+		 * and a new one started
+		 */
+
+	protected void
+	exportCSV(
+		File		file )
+
+		throws IOException
+	{
+		StringBuilder	header_sb = new StringBuilder( "time" );
+
+		for ( String name: MetricCounters.NAMES ){
+
+			header_sb.append( ',' ).append( name );
+		}
+
+		header_sb.append( ",update_p50_nanos,update_p99_nanos,blocked_p50_nanos,blocked_p99_nanos" );
+
+		String	header = header_sb.toString();
+
+		if ( file.exists() && !header.equals( readFirstLine( file ))){
+
+			String	name	= file.getName();
+			int		pos		= name.lastIndexOf( '.' );
+
+			File	old_file = new File( file.getParentFile(), ( pos==-1?name:name.substring( 0, pos )) + "-" + System.currentTimeMillis() + ( pos==-1?"":name.substring( pos )));
+
+			if ( !file.renameTo( old_file )){
+
+				throw( new IOException( "Failed to rename " + file + " to " + old_file ));
+			}
+		}
+
+		boolean	is_new = !file.exists();
+
+		PrintWriter	pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( file, true ), "UTF-8" ));
+
+		try{
+			if ( is_new ){
+
+				pw.println( header );
+			}
+
+			StringBuilder	line = new StringBuilder( String.valueOf( System.currentTimeMillis()));
+
+			for ( int i=0;i<MetricCounters.NAMES.length;i++ ){
+
+				line.append( ',' ).append( counters.get( i ));
+			}
+
+			line.append( ',' ).append( update_latency.getPercentileNanos( 0.5 ));
+			line.append( ',' ).append( update_latency.getPercentileNanos( 0.99 ));
+			line.append( ',' ).append( blocked_latency.getPercentileNanos( 0.5 ));
+			line.append( ',' ).append( blocked_latency.getPercentileNanos( 0.99 ));
+
+			pw.println( line );
+
+		}finally{
+
+			pw.close();
+		}
+	}
+
+	private static String
+	readFirstLine(
+		File		file )
+
+		throws IOException
+	{
+		BufferedReader	reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ));
+
+		try{
+			return( reader.readLine());
+
+		}finally{
+
+			reader.close();
+		}
+	}
+
+	private static Map<String,Object>
+	toMap(
+		MetricCounters	counters )
+	{
+		Map<String,Object>	map = new LinkedHashMap<String,Object>();
+
+		for ( int i=0;i<MetricCounters.NAMES.length;i++ ){
+
+			map.put( MetricCounters.NAMES[i], counters.get( i ));
+		}
+
+		return( map );
+	}
+
+	private static Map<String,Object>
+	toMap(
+		LatencyHistogram	histogram )
+	{
+		Map<String,Object>	map = new LinkedHashMap<String,Object>();
+
+		map.put( "count", histogram.getCount());
+		map.put( "mean_nanos", histogram.getMeanNanos());
+		map.put( "p50_nanos", histogram.getPercentileNanos( 0.5 ));
+		map.put( "p99_nanos", histogram.getPercentileNanos( 0.99 ));
+		map.put( "max_nanos", histogram.getMaxNanos());
+
+		return( map );
+	}
+}
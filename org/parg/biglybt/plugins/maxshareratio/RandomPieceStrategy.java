@@ -0,0 +1,51 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+	/**
+	 * Baseline for comparison: any eligible piece lacked by enough peers, ignoring rarity.
+	 *
+	 * Draws pieces at random until one is eligible (at most MAX_PROBES draws) rather than collecting
+	 * every eligible piece, which at 100k pieces costs tens of milliseconds per selection. Every
+	 * eligible piece is equally likely whatever its neighbours. Should the draws come up empty the
+	 * eligible pieces are sparse, so collecting them all is then cheap and one is picked from those.
+	 */
+
+public class
+RandomPieceStrategy
+	implements PieceSelectionStrategy
+{
+	public static final String	ID				= "random";
+	public static final int		MAX_CANDIDATES	= 8;
+	public static final int		MAX_PROBES		= 4096;
+
+	public String
+	getID()
+	{
+		return( ID );
+	}
+
+	public int
+	selectPiece(
+		PieceSelectionContext	context )
+	{
+		PieceAvailabilityIndex	index = context.getAvailabilityIndex();
+
+		int[]	avails		= context.getAvailability();
+		int		max_avail	= context.getMaxAvailability();
+
+		int	num_candidates = index.sampleCandidates( avails, max_avail, context.getRandom(), MAX_CANDIDATES, MAX_PROBES );
+
+			// each draw is uniform over the eligible pieces, so is the first that isn't a target
+
+		for ( int i=0;i<num_candidates;i++ ){
+
+			int	piece = index.getCandidate( i );
+
+			if ( !context.isTarget( piece )){
+
+				return( piece );
+			}
+		}
+
+		return( RarestPieceStrategy.pickCandidate( context, index.findCandidates( avails, max_avail, avails.length )));
+	}
+}
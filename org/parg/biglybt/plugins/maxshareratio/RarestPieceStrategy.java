@@ -0,0 +1,67 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.Random;
+
+	/**
+	 * The original rule: a random piece from those of lowest availability
+	 */
+
+public class
+RarestPieceStrategy
+	implements PieceSelectionStrategy
+{
+	public static final String	ID	= "rarest";
+
+	public String
+	getID()
+	{
+		return( ID );
+	}
+
+	public int
+	selectPiece(
+		PieceSelectionContext	context )
+	{
+		int	num_candidates = context.getAvailabilityIndex().findRarest( context.getAvailability(), context.getMaxAvailability());
+
+		return( pickCandidate( context, num_candidates ));
+	}
+
+		/**
+		 * Reservoir sample of the index's current candidates: one pass, each candidate that isn't a
+		 * target being equally likely whatever its position
+		 *
+		 * @return -1 if there's none
+		 */
+
+	protected static int
+	pickCandidate(
+		PieceSelectionContext	context,
+		int						num_candidates )
+	{
+		PieceAvailabilityIndex	index	= context.getAvailabilityIndex();
+		Random					random	= context.getRandom();
+
+		int	piece	= -1;
+		int	seen	= 0;
+
+		for ( int i=0;i<num_candidates;i++ ){
+
+			int	candidate = index.getCandidate( i );
+
+				// a target that hasn't been started by the picker yet still looks like a candidate
+
+			if ( !context.isTarget( candidate )){
+
+				seen++;
+
+				if ( random.nextInt( seen ) == 0 ){
+
+					piece = candidate;
+				}
+			}
+		}
+
+		return( piece );
+	}
+}
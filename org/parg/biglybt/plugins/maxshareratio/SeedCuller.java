@@ -0,0 +1,198 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import com.biglybt.pif.peers.Peer;
+import com.biglybt.pif.peers.PeerManager;
+import com.biglybt.pif.peers.PeerStats;
+
+	/**
+	 * Drops the least useful connected seeds of a download once it has more than its seed limit.
+	 *
+	 * The peer state is read once per pass into a packed long per seed - whether the seed is
+	 * unchoking us, then bytes received from it, then its index - so ranking needs no further calls
+	 * into the peers and a partial quickselect picks out just the seeds to drop. Seeds that choke us
+	 * and have given us least are dropped first.
+	 *
+	 * Only used from the stats timer so the buffers are reused across passes and downloads.
+	 */
+
+public class
+SeedCuller
+{
+	private static final int	INDEX_BITS		= 20;
+	private static final int	RECEIVED_BITS	= 41;
+
+	private static final long	INDEX_MASK		= ( 1L << INDEX_BITS ) - 1;
+	private static final long	RECEIVED_MAX	= ( 1L << RECEIVED_BITS ) - 1;
+
+	private long[]		keys	= new long[256];
+	private int[]		rates	= new int[256];
+
+	private int			last_culled;
+	private long		last_rate_freed;
+
+		/**
+		 * @param seed_cache	dropped seeds are recorded here against the torrent hash
+		 * @return number of seeds removed
+		 */
+
+	protected int
+	cull(
+		PeerManager				pm,
+		int						max_seeds,
+		SeedReputationCache		seed_cache,
+		byte[]					torrent_hash )
+	{
+		last_culled		= 0;
+		last_rate_freed	= 0;
+
+		int	connected_seeds = pm.getStats().getConnectedSeeds();
+
+		if ( connected_seeds < max_seeds ){
+
+			return( 0 );
+		}
+
+		Peer[]	peers = pm.getPeers();
+
+		if ( peers.length > keys.length ){
+
+			keys	= new long[peers.length];
+			rates	= new int[peers.length];
+		}
+
+		int	num_seeds = 0;
+
+		for ( int i=0;i<peers.length && i<=INDEX_MASK;i++ ){
+
+			Peer	peer = peers[i];
+
+			if ( !peer.isSeed()){
+
+				continue;
+			}
+
+			PeerStats	stats = peer.getStats();
+
+			long	received = Math.min( stats.getTotalReceived(), RECEIVED_MAX );
+
+			long	key = ( peer.isChoked()?0:1L ) << ( INDEX_BITS + RECEIVED_BITS );
+
+			key |= received << INDEX_BITS;
+			key |= i;
+
+			rates[num_seeds]	= stats.getDownloadAverage();
+			keys[num_seeds++]	= key;
+		}
+
+			// as before, get strictly below the limit
+
+		int	to_drop = Math.min( connected_seeds - max_seeds + 1, num_seeds );
+
+		if ( to_drop <= 0 ){
+
+			return( 0 );
+		}
+
+		if ( to_drop < num_seeds ){
+
+			select( keys, rates, 0, num_seeds - 1, to_drop );
+		}
+
+		for ( int i=0;i<to_drop;i++ ){
+
+			Peer	peer = peers[(int)( keys[i] & INDEX_MASK )];
+
+			seed_cache.addSeed( torrent_hash, peer.getIp());
+
+			pm.removePeer( peer );
+
+			last_rate_freed += rates[i];
+		}
+
+		last_culled = to_drop;
+
+		return( to_drop );
+	}
+
+		/**
+		 * @return number of sockets freed by the last pass
+		 */
+
+	protected int
+	getLastCulled()
+	{
+		return( last_culled );
+	}
+
+		/**
+		 * @return combined receive rate (bytes/sec) of the seeds dropped by the last pass
+		 */
+
+	protected long
+	getLastRateFreed()
+	{
+		return( last_rate_freed );
+	}
+
+		/**
+		 * Partial quickselect leaving the k smallest keys in [0,k) in no particular order, rates
+		 * are kept in step
+		 */
+
+	private static void
+	select(
+		long[]	keys,
+		int[]	rates,
+		int		left,
+		int		right,
+		int		k )
+	{
+		while( left < right ){
+
+			long	pivot = keys[( left + right ) >>> 1];
+
+			int	i = left;
+			int	j = right;
+
+			while( i <= j ){
+
+				while( keys[i] < pivot ){
+
+					i++;
+				}
+
+				while( keys[j] > pivot ){
+
+					j--;
+				}
+
+				if ( i <= j ){
+
+					long	tk = keys[i];
+					keys[i]	= keys[j];
+					keys[j]	= tk;
+
+					int		tr = rates[i];
+					rates[i] = rates[j];
+					rates[j] = tr;
+
+					i++;
+					j--;
+				}
+			}
+
+			if ( k - 1 <= j ){
+
+				right = j;
+
+			}else if ( k - 1 >= i ){
+
+				left = i;
+
+			}else{
+
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.biglybt.core.util.HashWrapper;
+import com.biglybt.core.util.SystemTime;
+
+	/**
+	 * Remembers (torrent, address) pairs that we've dropped for being seeds so that the IP filter
+	 * can turn them away on reconnect rather than accepting the connection, exchanging handshake and
+	 * bitfield and dropping them again. Bounded and time limited - a seed is only remembered for
+	 * EXPIRY_MILLIS after it was last dropped.
+	 */
+
+public class
+SeedReputationCache
+{
+	public static final int		MAX_ENTRIES		= 16*1024;
+	public static final long	EXPIRY_MILLIS	= 30*60*1000;
+
+	private final Map<HashWrapper,Long>	seeds =
+		new LinkedHashMap<HashWrapper,Long>( 1024, 0.75f, true )
+		{
+			protected boolean
+			removeEldestEntry(
+				Map.Entry<HashWrapper,Long> eldest )
+			{
+				return( size() > MAX_ENTRIES );
+			}
+		};
+
+	private final AtomicLong	recorded	= new AtomicLong();
+	private final AtomicLong	avoided		= new AtomicLong();
+
+	protected void
+	addSeed(
+		byte[]		torrent_hash,
+		String		ip )
+	{
+		byte[]	address = CountryCache.parseLiteral( ip );
+
+		if ( torrent_hash == null || address == null ){
+
+			return;
+		}
+
+		HashWrapper	key = getKey( torrent_hash, address );
+
+		synchronized( seeds ){
+
+			seeds.put( key, SystemTime.getMonotonousTime());
+		}
+
+		recorded.incrementAndGet();
+	}
+
+	protected boolean
+	isKnownSeed(
+		byte[]		torrent_hash,
+		byte[]		address )
+	{
+		if ( torrent_hash == null || address == null ){
+
+			return( false );
+		}
+
+		HashWrapper	key = getKey( torrent_hash, address );
+
+		synchronized( seeds ){
+
+			Long	time = seeds.get( key );
+
+			if ( time == null ){
+
+				return( false );
+			}
+
+			if ( SystemTime.getMonotonousTime() - time > EXPIRY_MILLIS ){
+
+				seeds.remove( key );
+
+				return( false );
+			}
+		}
+
+		return( true );
+	}
+
+		/**
+		 * Called when a reconnect has been turned away
+		 */
+
+	protected void
+	reconnectAvoided()
+	{
+		avoided.incrementAndGet();
+	}
+
+	protected long
+	getRecorded()
+	{
+		return( recorded.get());
+	}
+
+	protected long
+	getAvoided()
+	{
+		return( avoided.get());
+	}
+
+	private static HashWrapper
+	getKey(
+		byte[]		torrent_hash,
+		byte[]		address )
+	{
+		byte[]	key = new byte[ torrent_hash.length + address.length ];
+
+		System.arraycopy( torrent_hash, 0, key, 0, torrent_hash.length );
+		System.arraycopy( address, 0, key, torrent_hash.length, address.length );
+
+		return( new HashWrapper( key ));
+	}
+}
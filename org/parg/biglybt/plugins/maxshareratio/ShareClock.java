@@ -0,0 +1,25 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import com.biglybt.core.util.SystemTime;
+
+	/**
+	 * Time source for the piece selection logic, handed by the plugin to the components that need
+	 * one. Normally just SystemTime, the swarm simulator substitutes simulated time so that hours
+	 * of selection behaviour can be replayed in seconds and reproduced exactly.
+	 */
+
+public class
+ShareClock
+{
+	protected long
+	getCurrentTime()
+	{
+		return( SystemTime.getCurrentTime());
+	}
+
+	protected long
+	getMonotonousTime()
+	{
+		return( SystemTime.getMonotonousTime());
+	}
+}
@@ -0,0 +1,674 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.biglybt.core.disk.DiskManagerPiece;
+import com.biglybt.core.peer.PEPeer;
+import com.biglybt.core.peer.PEPeerManager;
+import com.biglybt.core.peermanager.piecepicker.PiecePicker;
+import com.biglybt.core.peermanager.piecepicker.PiecePriorityProvider;
+import com.biglybt.core.util.Debug;
+import com.biglybt.pif.download.Download;
+
+	/**
+	 * Restricts the piece picker to a small set of target pieces, chosen by the download's
+	 * PieceSelectionStrategy for which this acts as the context. By default there is a single
+	 * target; in pipeline mode up to getPipelineMaxDepth() targets are kept in flight, the number
+	 * being sized from the download's recent upload rate and from how many peers are around to
+	 * want the pieces. Each target has its own IdleLimitController deciding when to let it go.
+	 * When a download budget is set each new target must first be granted by the plugin's
+	 * DownloadBudget.
+	 *
+	 * This is called by the picker on the peer manager thread so the steady state path doesn't
+	 * allocate: the priority array is filled once and thereafter only target slots are touched.
+	 * The selection state is snapshotted for the plugin to persist only when the targets change.
+	 */
+
+public class
+SharePriorityProvider
+	implements PiecePriorityProvider, PieceSelectionContext
+{
+	public static final int	MAX_PIPELINE_DEPTH				= 64;
+	public static final int	PIPELINE_BYTES_PER_SEC_PER_PIECE	= 64*1024;
+	public static final int	RESUME_SETTLED_MILLIS				= 5*60*1000;
+
+	private static final long	PRIORITY_TARGET		= 100000;
+	private static final long	PRIORITY_EXCLUDED	= Integer.MIN_VALUE;
+
+	private final MaxShareRatioPlugin		plugin;
+	private final ShareClock				clock;
+	private final Download					download;
+	private final PEPeerManager				pm;
+	private final PieceAvailabilityIndex	avail_index;
+	private final PieceInterestIndex		interest_index;
+
+	private final Random		random		= new Random();
+	private final YieldScorer	scorer		= new YieldScorer();
+
+	private int[]				current_avails;
+	private int					current_max_avail;
+	private double				current_score;
+
+	private volatile double		last_score	= -1;
+
+	private SwarmSettleDetector	settle_detector;
+
+	private long[]	priorities;
+
+	private final int[]					target_pieces		= new int[MAX_PIPELINE_DEPTH];
+	private final IdleLimitController[]	target_controllers	= new IdleLimitController[MAX_PIPELINE_DEPTH];
+
+	private int		num_targets;
+
+	private long		budget_refused_time;
+	private boolean		budget_held;
+
+	private boolean		state_changed;
+
+	private final AtomicReference<Map<String,Object>>	state_to_save = new AtomicReference<Map<String,Object>>();
+
+	protected
+	SharePriorityProvider(
+		MaxShareRatioPlugin		_plugin,
+		Download				_download,
+		PEPeerManager			_pm,
+		PieceAvailabilityIndex	_avail_index,
+		PieceInterestIndex		_interest_index )
+	{
+		plugin			= _plugin;
+		clock			= plugin.getClock();
+		download		= _download;
+		pm				= _pm;
+		avail_index		= _avail_index;
+		interest_index	= _interest_index;
+
+		priorities 	= new long[(int)download.getTorrent().getPieceCount()];
+
+		Arrays.fill( priorities, PRIORITY_EXCLUDED );
+
+		settle_detector = new SwarmSettleDetector( clock, false );
+
+		for ( int i=0;i<MAX_PIPELINE_DEPTH;i++ ){
+
+			target_controllers[i] = new IdleLimitController();
+		}
+	}
+
+	public long[]
+	updatePriorities(
+		PiecePicker		picker )
+	{
+		long	start = System.nanoTime();
+
+		try{
+			return( updatePrioritiesSupport( picker ));
+
+		}finally{
+
+			plugin.getMetrics().getUpdateLatency().record( System.nanoTime() - start );
+		}
+	}
+
+	private long[]
+	updatePrioritiesSupport(
+		PiecePicker		picker )
+	{
+		if ( !plugin.isMaxUpActive( download )){
+
+			return( null );
+		}
+
+		DiskManagerPiece[]	pieces = pm.getDiskManager().getPieces();
+
+		for ( int i=0;i<num_targets;i++ ){
+
+			if ( !checkTarget( picker, pieces, i )){
+
+				removeTarget( i-- );
+			}
+		}
+
+		if ( num_targets < getPipelineDepth() && isSwarmSettled( picker ) && !isBudgetHeld()){
+
+			selectTarget( picker );
+		}
+
+		if ( state_changed ){
+
+			state_changed = false;
+
+			state_to_save.set( exportState());
+		}
+
+		return( priorities );
+	}
+
+	private boolean
+	isSwarmSettled(
+		PiecePicker		picker )
+	{
+		boolean	was_settled = settle_detector.getSettleMillis() >= 0;
+
+		if ( !settle_detector.isSettled( picker.getAvailability(), interest_index.getBitfieldPeerCount())){
+
+			return( false );
+		}
+
+		if ( !was_settled ){
+
+			plugin.log( download, "Swarm settled after %ds, bitfield peers=%d", settle_detector.getSettleMillis()/1000, interest_index.getBitfieldPeerCount());
+		}
+
+		return( true );
+	}
+
+		/**
+		 * @return false if the target should be released
+		 */
+
+	private boolean
+	checkTarget(
+		PiecePicker				picker,
+		DiskManagerPiece[]		pieces,
+		int						index )
+	{
+		int	piece = target_pieces[index];
+
+		if ( !pieces[piece].isDone()){
+
+			return( true );
+		}
+
+		long	now = clock.getCurrentTime();
+
+		IdleLimitController	controller = target_controllers[index];
+
+		if ( !controller.isStarted()){
+
+			plugin.log( download, "Piece %d ready for upload", piece );
+
+			plugin.countEvent( download, MetricCounters.PIECES_COMPLETED );
+
+			controller.start( now, pm.getStats().getTotalDataBytesSent());
+
+			state_changed = true;
+
+			return( true );
+		}
+
+		if ( !controller.isUpdateDue( now )){
+
+			return( true );
+		}
+
+		long	total_sent = pm.getStats().getTotalDataBytesSent();
+
+		int	old_limit = controller.getIdleLimitSecs();
+
+		int	up_idle_secs	= pm.getStats().getTimeSinceLastDataSentInSeconds();
+		int	num_interested	= interest_index.getInterestedCount( picker.getAvailability(), piece, true );
+
+		int	action = controller.update( now, total_sent, num_targets, up_idle_secs, plugin.getUploadAverage( download ), num_interested );
+
+		int	new_limit = controller.getIdleLimitSecs();
+
+		if ( new_limit != old_limit ){
+
+			state_changed = true;
+		}
+
+		if ( new_limit > old_limit ){
+
+			plugin.log( download, "Increasing idle limit to %d", new_limit );
+
+			plugin.countEvent( download, MetricCounters.IDLE_LIMIT_INCREASES );
+
+		}else if ( new_limit == MaxShareRatioPlugin.UP_IDLE_LIMIT_SECS_DEFAULT && old_limit > new_limit ){
+
+			plugin.log( download, "Idle limit back to %d", new_limit );
+		}
+
+		if ( action == IdleLimitController.ABANDON ){
+
+			plugin.log( download, "Abandoning piece %d, upload idle for %ds, interested peers=%d", piece, up_idle_secs, num_interested );
+
+			plugin.countEvent( download, MetricCounters.PIECES_ABANDONED );
+
+			return( false );
+
+		}else if ( action == IdleLimitController.MOVE_ON ){
+
+			plugin.log( download, "Moving on from piece %d, uploaded %d and few peers still lack it", piece, controller.getUploaded());
+
+			plugin.countEvent( download, MetricCounters.PIECES_MOVED_ON );
+
+			return( false );
+		}
+
+		return( true );
+	}
+
+	private void
+	selectTarget(
+		PiecePicker		picker )
+	{
+		current_avails = picker.getAvailability();
+
+			// only download a piece if at least 3 other peers need it. peers lacking
+			// a piece is bitfield peers - availability so this caps the availability
+
+		current_max_avail = interest_index.getBitfieldPeerCount() - MaxShareRatioPlugin.MIN_INTERESTED_PEERS;
+
+		PieceSelectionStrategy	strategy = plugin.getStrategy( download );
+
+		int	piece;
+
+		try{
+			current_score = -1;
+
+			piece = strategy.selectPiece( this );
+
+		}catch( Throwable e ){
+
+			Debug.out( e );
+
+			piece = -1;
+
+		}finally{
+
+			current_avails = null;
+		}
+
+		if ( piece < 0 || piece >= priorities.length || isTarget( piece )){
+
+			return;
+		}
+
+		if ( !isWithinBudget( picker, piece )){
+
+			return;
+		}
+
+		addTarget( piece );
+
+		last_score = current_score;
+
+		plugin.getStrategyStats( strategy ).selectionMade();
+
+		plugin.countEvent( download, MetricCounters.PIECES_SELECTED );
+
+		if ( last_score < 0 ){
+
+			plugin.log( download, "Selecting new piece %d (%s), availability=%d, targets=%d", piece, strategy.getID(), picker.getAvailability()[piece], num_targets );
+
+		}else{
+
+			plugin.log( download, "Selecting new piece %d (%s), availability=%d, score=%.2f, targets=%d", piece, strategy.getID(), picker.getAvailability()[piece], last_score, num_targets );
+		}
+	}
+
+		/**
+		 * Offers the piece to the plugin's DownloadBudget, if one is set, as an opportunity
+		 * with the strategy's score as the expected multiple, scoring it if the strategy didn't
+		 */
+
+	private boolean
+	isWithinBudget(
+		PiecePicker		picker,
+		int				piece )
+	{
+		long	daily_limit = plugin.getDailyBudgetBytes();
+
+		if ( daily_limit <= 0 ){
+
+			return( true );
+		}
+
+		double	multiple = current_score;
+
+		if ( multiple < 0 ){
+
+			try{
+				scorer.preparePeers( pm.getPeers());
+
+				multiple = scorer.score( piece, picker.getAvailability()[piece] );
+
+			}finally{
+
+				scorer.clear();
+			}
+		}
+
+		long	bytes = pm.getDiskManager().getPieces()[piece].getLength();
+
+		if ( plugin.getDownloadBudget().request( this, bytes, multiple, daily_limit )){
+
+			budget_held = false;
+
+			return( true );
+		}
+
+		budget_refused_time = clock.getCurrentTime();
+
+		if ( !budget_held ){
+
+			budget_held = true;
+
+			plugin.log( download, "Holding off piece %d, expected multiple %.2f not worth the download budget", piece, multiple );
+		}
+
+		return( false );
+	}
+
+	private boolean
+	isBudgetHeld()
+	{
+		if ( budget_refused_time == 0 ){
+
+			return( false );
+		}
+
+		long	now = clock.getCurrentTime();
+
+		if ( now < budget_refused_time || now - budget_refused_time >= DownloadBudget.RETRY_MILLIS ){
+
+			budget_refused_time = 0;
+
+			return( false );
+		}
+
+		return( true );
+	}
+
+	protected void
+	destroy()
+	{
+		plugin.getDownloadBudget().withdraw( this );
+	}
+
+	public int[]
+	getAvailability()
+	{
+		return( current_avails );
+	}
+
+	public int
+	getMaxAvailability()
+	{
+		return( current_max_avail );
+	}
+
+	public PieceAvailabilityIndex
+	getAvailabilityIndex()
+	{
+		return( avail_index );
+	}
+
+	public List<PEPeer>
+	getPeers()
+	{
+		return( pm.getPeers());
+	}
+
+	public boolean
+	isTarget(
+		int		piece )
+	{
+		return( priorities[piece] == PRIORITY_TARGET );
+	}
+
+	public Random
+	getRandom()
+	{
+		return( random );
+	}
+
+		/**
+		 * Makes selection reproducible, for simulation
+		 */
+
+	protected void
+	setRandomSeed(
+		long	seed )
+	{
+		random.setSeed( seed );
+	}
+
+	public YieldScorer
+	getYieldScorer()
+	{
+		return( scorer );
+	}
+
+	public void
+	setScore(
+		double	score )
+	{
+		current_score = score;
+	}
+
+	private void
+	addTarget(
+		int		piece )
+	{
+		target_pieces[num_targets] = piece;
+
+		target_controllers[num_targets].reset();
+
+		num_targets++;
+
+		priorities[piece] = PRIORITY_TARGET;
+
+		state_changed = true;
+	}
+
+	protected Download
+	getDownload()
+	{
+		return( download );
+	}
+
+		/**
+		 * @return score the strategy gave the last piece selected (for the yield strategy the
+		 * expected upload bytes per downloaded byte), -1 if it didn't give one
+		 */
+
+	protected double
+	getLastScore()
+	{
+		return( last_score );
+	}
+
+	private void
+	removeTarget(
+		int		index )
+	{
+		int	piece = target_pieces[index];
+
+		priorities[piece] = PRIORITY_EXCLUDED;
+
+		IdleLimitController	controller = target_controllers[index];
+
+		num_targets--;
+
+			// swap the controllers so the slots keep one each
+
+		target_pieces[index]		= target_pieces[num_targets];
+		target_controllers[index]	= target_controllers[num_targets];
+
+		target_controllers[num_targets] = controller;
+
+		state_changed = true;
+	}
+
+	private Map<String,Object>
+	exportState()
+	{
+		Map<String,Object>	map = new HashMap<String,Object>();
+
+		List<Long>	targets = new ArrayList<Long>( num_targets );
+
+			// one per target, empty if the piece isn't ready for upload yet
+
+		List<Map<String,Object>>	controllers = new ArrayList<Map<String,Object>>( num_targets );
+
+		long	now = clock.getCurrentTime();
+
+		for ( int i=0;i<num_targets;i++ ){
+
+			targets.add((long)target_pieces[i] );
+
+			IdleLimitController	controller = target_controllers[i];
+
+			Map<String,Object>	c_map = new HashMap<String,Object>();
+
+			if ( controller.isStarted()){
+
+				c_map.put( "held", controller.getHeldMillis( now ));
+				c_map.put( "limit", (long)controller.getIdleLimitSecs());
+				c_map.put( "uploaded", controller.getUploaded());
+			}
+
+			controllers.add( c_map );
+		}
+
+		map.put( "targets", targets );
+		map.put( "controllers", controllers );
+		map.put( "time", now );
+
+		return( map );
+	}
+
+		/**
+		 * Picks up where a previous provider for the download left off: its targets are resumed
+		 * and, if that was within RESUME_SETTLED_MILLIS, the swarm is taken as already settled.
+		 * Older state says nothing about the swarm now so it has to settle again. Must be called
+		 * before the provider is added to the picker
+		 */
+
+	protected void
+	restoreState(
+		Map<?,?>		map )
+	{
+		Object	targets = map.get( "targets" );
+
+		Object	controllers = map.get( "controllers" );
+
+		if ( targets instanceof List ){
+
+			DiskManagerPiece[]	pieces = pm.getDiskManager().getPieces();
+
+			List<?>	target_list		= (List<?>)targets;
+			List<?>	controller_list	= controllers instanceof List?(List<?>)controllers:null;
+
+			long	now 		= clock.getCurrentTime();
+			long	total_sent	= pm.getStats().getTotalDataBytesSent();
+
+			for ( int i=0;i<target_list.size();i++ ){
+
+				Object	target = target_list.get( i );
+
+				if ( target instanceof Number && num_targets < MAX_PIPELINE_DEPTH ){
+
+					int	piece = ((Number)target).intValue();
+
+					if ( piece >= 0 && piece < priorities.length && !isTarget( piece ) && pieces[piece].isNeeded()){
+
+						addTarget( piece );
+
+							// a piece that's no longer done (recheck) starts over when it is
+
+						Object	c_map = controller_list==null||i>=controller_list.size()?null:controller_list.get( i );
+
+						if ( c_map instanceof Map && pieces[piece].isDone()){
+
+							Object	held		= ((Map<?,?>)c_map).get( "held" );
+							Object	limit		= ((Map<?,?>)c_map).get( "limit" );
+							Object	uploaded	= ((Map<?,?>)c_map).get( "uploaded" );
+
+							if ( held instanceof Number && limit instanceof Number ){
+
+								target_controllers[num_targets-1].restore(
+										now,
+										total_sent,
+										((Number)held).longValue(),
+										((Number)limit).intValue(),
+										uploaded instanceof Number?((Number)uploaded).longValue():0 );
+							}
+						}
+					}
+				}
+			}
+		}
+
+		Object	time = map.get( "time" );
+
+		long	age = time instanceof Number?clock.getCurrentTime() - ((Number)time).longValue():-1;
+
+		boolean	settled = age >= 0 && age <= RESUME_SETTLED_MILLIS;
+
+		if ( settled ){
+
+			settle_detector = new SwarmSettleDetector( clock, true );
+		}
+
+		state_changed = false;
+
+		plugin.log( download, "Resumed %d target(s), swarm %s", num_targets, settled?"settled":"to settle" );
+	}
+
+		/**
+		 * @return state changed since the last call, null if none
+		 */
+
+	protected Map<String,Object>
+	getStateToSave()
+	{
+		return( state_to_save.getAndSet( null ));
+	}
+
+		/**
+		 * For when the provider has been removed from the picker: the current state whether it has
+		 * changed or not, as time held moves on without marking it changed
+		 */
+
+	protected Map<String,Object>
+	getFinalState()
+	{
+		state_to_save.set( null );
+
+		return( exportState());
+	}
+
+		/**
+		 * Each target is expected to sustain around PIPELINE_BYTES_PER_SEC_PER_PIECE of upload, so
+		 * the depth tracks the measured upload rate. It is capped by demand - there is no point in
+		 * having more targets than there are groups of MIN_INTERESTED_PEERS peers to serve them to
+		 */
+
+	private int
+	getPipelineDepth()
+	{
+		if ( !plugin.isPipelineEnabled()){
+
+			return( 1 );
+		}
+
+		long	up_rate = plugin.getUploadAverage( download );
+
+		long	depth = 1 + up_rate / PIPELINE_BYTES_PER_SEC_PER_PIECE;
+
+		int	demand = interest_index.getBitfieldPeerCount() / MaxShareRatioPlugin.MIN_INTERESTED_PEERS;
+
+		depth = Math.min( depth, demand );
+		depth = Math.min( depth, Math.min( plugin.getPipelineMaxDepth(), MAX_PIPELINE_DEPTH ));
+
+		return( depth<1?1:(int)depth );
+	}
+}
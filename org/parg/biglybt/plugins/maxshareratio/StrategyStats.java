@@ -0,0 +1,73 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+	/**
+	 * Running totals for downloads while they use a given strategy so strategies can be compared on
+	 * the ratio they actually achieve
+	 */
+
+public class
+StrategyStats
+{
+	private final String		id;
+
+	private final AtomicLong	uploaded	= new AtomicLong();
+	private final AtomicLong	downloaded	= new AtomicLong();
+	private final AtomicLong	selections	= new AtomicLong();
+
+	protected
+	StrategyStats(
+		String		_id )
+	{
+		id	= _id;
+	}
+
+	protected String
+	getID()
+	{
+		return( id );
+	}
+
+	protected void
+	addTransfer(
+		long		up,
+		long		down )
+	{
+		uploaded.addAndGet( up );
+		downloaded.addAndGet( down );
+	}
+
+	protected void
+	selectionMade()
+	{
+		selections.incrementAndGet();
+	}
+
+	protected long
+	getUploaded()
+	{
+		return( uploaded.get());
+	}
+
+	protected long
+	getDownloaded()
+	{
+		return( downloaded.get());
+	}
+
+	protected long
+	getSelections()
+	{
+		return( selections.get());
+	}
+
+	protected String
+	getString()
+	{
+		long	up		= uploaded.get();
+		long	down	= downloaded.get();
+
+		return( id + ": selections=" + selections.get() + ", up=" + up + ", down=" + down + ", ratio=" + ( down==0?"-":String.format( "%.2f", (double)up/down )));
+	}
+}
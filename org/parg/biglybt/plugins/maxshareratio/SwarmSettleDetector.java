@@ -0,0 +1,131 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+	/**
+	 * Decides when a newly started download has seen enough of the swarm to start selecting.
+	 * The availability picture and the set of peers that have sent bitfields are sampled every
+	 * SAMPLE_MILLIS and the swarm counts as settled once STABLE_SAMPLES consecutive samples are
+	 * within TOLERANCE of the one before. Selecting any earlier risks picking pieces that only
+	 * look rare because most bitfields haven't arrived yet. INITIAL_DELAY_MILLIS remains as the
+	 * deadline for swarms that keep churning.
+	 *
+	 * Called on the peer manager thread only.
+	 */
+
+public class
+SwarmSettleDetector
+{
+	public static final int		SAMPLE_MILLIS	= 2500;
+	public static final int		STABLE_SAMPLES	= 2;
+	public static final double	TOLERANCE		= 0.05;
+
+	private final ShareClock	clock;
+
+	private final long	start_time;
+
+	private long	last_sample_time;
+	private int		last_peers		= -1;
+	private long	last_avail_sum	= -1;
+	private int		stable_samples;
+
+	private long	settle_time	= -1;
+
+		/**
+		 * @param _settled	for a swarm that has been seen before, settled from the start
+		 */
+
+	protected
+	SwarmSettleDetector(
+		ShareClock	_clock,
+		boolean		_settled )
+	{
+		clock		= _clock;
+		start_time	= clock.getCurrentTime();
+
+		if ( _settled ){
+
+			settle_time	= start_time;
+		}
+	}
+
+	protected boolean
+	isSettled(
+		int[]		avails,
+		int			bitfield_peers )
+	{
+		if ( settle_time >= 0 ){
+
+			return( true );
+		}
+
+		long	now = clock.getCurrentTime();
+
+		if ( now < start_time || now - start_time > MaxShareRatioPlugin.INITIAL_DELAY_MILLIS ){
+
+			settle_time = now;
+
+			return( true );
+		}
+
+		if ( now - last_sample_time < SAMPLE_MILLIS ){
+
+			return( false );
+		}
+
+		last_sample_time = now;
+
+		long	avail_sum = 0;
+
+		for ( int avail: avails ){
+
+			avail_sum += avail;
+		}
+
+			// nothing to converge on until someone has told us what they have
+
+		if ( 	bitfield_peers > 0 &&
+				isClose( bitfield_peers, last_peers ) &&
+				isClose( avail_sum, last_avail_sum )){
+
+			stable_samples++;
+
+		}else{
+
+			stable_samples = 0;
+		}
+
+		last_peers		= bitfield_peers;
+		last_avail_sum	= avail_sum;
+
+		if ( stable_samples >= STABLE_SAMPLES ){
+
+			settle_time = now;
+
+			return( true );
+		}
+
+		return( false );
+	}
+
+		/**
+		 * @return millis from start to settling, -1 if not yet settled
+		 */
+
+	protected long
+	getSettleMillis()
+	{
+		return( settle_time<0?-1:Math.max( 0, settle_time - start_time ));
+	}
+
+	private static boolean
+	isClose(
+		long	value,
+		long	previous )
+	{
+		if ( previous < 0 ){
+
+			return( false );
+		}
+
+		return( Math.abs( value - previous ) <= Math.max( previous, value ) * TOLERANCE );
+	}
+}
@@ -0,0 +1,288 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.pif.download.Download;
+import com.biglybt.pif.download.DownloadStats;
+import com.biglybt.pif.torrent.Torrent;
+
+	/**
+	 * Running uploaded/downloaded totals per announce host, as share ratio rules are usually per
+	 * tracker. Each download's totals are recorded when it is visited and only the change since the
+	 * last visit is added to its host, so the totals stay current without rescanning every
+	 * download - the caller visits a slice of the downloads per tick. A removed download takes its
+	 * contribution with it.
+	 *
+	 * Downloads are added up front so that a host knows how many it has, and its totals are only
+	 * complete once each has been visited - until then, during the first pass over the downloads,
+	 * the ratio is of whichever happened to come first so shouldn't be acted on.
+	 *
+	 * A host is boosting once its ratio drops below the target and stops only once it has
+	 * recovered to RECOVER_FACTOR times the target, so downloads near the line aren't flipped
+	 * back and forth.
+	 */
+
+public class
+TrackerRatioAggregator
+{
+	public static final double	RECOVER_FACTOR	= 1.1;
+
+	private final Map<String,HostTotals>	hosts	= new HashMap<String,HostTotals>();
+	private final Map<Download,Entry>		entries	= new HashMap<Download,Entry>();
+
+		/**
+		 * Counts the download against its host without visiting it yet
+		 */
+
+	protected synchronized void
+	add(
+		Download	download )
+	{
+		if ( !entries.containsKey( download )){
+
+			createEntry( download );
+		}
+	}
+
+		/**
+		 * Brings the download's host up to date with its current totals
+		 *
+		 * @return the host, null if the download has no announce host
+		 */
+
+	protected synchronized HostTotals
+	update(
+		Download	download )
+	{
+		Entry	entry = entries.get( download );
+
+		if ( entry == null ){
+
+			entry = createEntry( download );
+
+			if ( entry == null ){
+
+				return( null );
+			}
+		}
+
+		DownloadStats	stats = download.getStats();
+
+		long	uploaded	= stats.getUploaded();
+		long	downloaded	= stats.getDownloaded();
+
+		HostTotals	totals = entry.totals;
+
+		totals.add( uploaded - entry.uploaded, downloaded - entry.downloaded, 0, entry.counted?0:-1 );
+
+		entry.uploaded		= uploaded;
+		entry.downloaded	= downloaded;
+		entry.counted		= true;
+
+		return( totals );
+	}
+
+	private Entry
+	createEntry(
+		Download	download )
+	{
+		String	host = getHost( download );
+
+		if ( host == null ){
+
+			return( null );
+		}
+
+		HostTotals	totals = hosts.get( host );
+
+		if ( totals == null ){
+
+			totals = new HostTotals( host );
+
+			hosts.put( host, totals );
+		}
+
+		Entry	entry = new Entry( totals );
+
+		entries.put( download, entry );
+
+		totals.add( 0, 0, 1, 1 );
+
+		return( entry );
+	}
+
+	protected synchronized void
+	remove(
+		Download	download )
+	{
+		Entry	entry = entries.remove( download );
+
+		if ( entry != null ){
+
+			HostTotals	totals = entry.totals;
+
+			if ( totals.add( -entry.uploaded, -entry.downloaded, -1, entry.counted?0:-1 ) == 0 ){
+
+				hosts.remove( totals.host );
+			}
+		}
+	}
+
+	protected synchronized List<HostTotals>
+	getHosts()
+	{
+		return( new ArrayList<HostTotals>( hosts.values()));
+	}
+
+	private static String
+	getHost(
+		Download	download )
+	{
+		Torrent	torrent = download.getTorrent();
+
+		if ( torrent == null ){
+
+			return( null );
+		}
+
+		URL	url = torrent.getAnnounceURL();
+
+		if ( url == null ){
+
+			return( null );
+		}
+
+		String	host = url.getHost();
+
+		return( host==null||host.length()==0?null:host.toLowerCase());
+	}
+
+	private static class
+	Entry
+	{
+		private final HostTotals	totals;
+
+		private long	uploaded;
+		private long	downloaded;
+
+		private boolean	counted;
+
+		private
+		Entry(
+			HostTotals	_totals )
+		{
+			totals	= _totals;
+		}
+	}
+
+	public static class
+	HostTotals
+	{
+		private final String	host;
+
+		private long	uploaded;
+		private long	downloaded;
+		private int		num_downloads;
+		private int		num_uncounted;
+
+		private boolean	boosting;
+
+		private
+		HostTotals(
+			String	_host )
+		{
+			host	= _host;
+		}
+
+		public String
+		getHost()
+		{
+			return( host );
+		}
+
+			/**
+			 * @return the number of downloads after the change
+			 */
+
+		private synchronized int
+		add(
+			long	uploaded_delta,
+			long	downloaded_delta,
+			int		downloads_delta,
+			int		uncounted_delta )
+		{
+			uploaded		+= uploaded_delta;
+			downloaded		+= downloaded_delta;
+			num_downloads	+= downloads_delta;
+			num_uncounted	+= uncounted_delta;
+
+			return( num_downloads );
+		}
+
+			/**
+			 * @return true once each of the host's downloads has been visited
+			 */
+
+		public synchronized boolean
+		isFullyCounted()
+		{
+			return( num_uncounted == 0 );
+		}
+
+			/**
+			 * @return -1 if nothing downloaded
+			 */
+
+		public synchronized double
+		getRatio()
+		{
+			return( downloaded<=0?-1:(double)uploaded/downloaded );
+		}
+
+		public synchronized boolean
+		isBoosting()
+		{
+			return( boosting );
+		}
+
+			/**
+			 * @return true if the boosting state changed
+			 */
+
+		protected synchronized boolean
+		updateBoosting(
+			double		target_ratio )
+		{
+			double	ratio = getRatio();
+
+			boolean	was_boosting = boosting;
+
+			if ( ratio < 0 ){
+
+				boosting = false;
+
+			}else if ( boosting ){
+
+				boosting = ratio < target_ratio * RECOVER_FACTOR;
+
+			}else{
+
+				boosting = ratio < target_ratio;
+			}
+
+			return( boosting != was_boosting );
+		}
+
+		public synchronized String
+		getString()
+		{
+			double	ratio = getRatio();
+
+			return( host + ": ratio=" + ( ratio<0?"-":String.format( "%.3f", ratio )) + ", downloads=" + num_downloads + ( num_uncounted>0?", uncounted=" + num_uncounted:"" ) + ( boosting?", boosting":"" ));
+		}
+	}
+}
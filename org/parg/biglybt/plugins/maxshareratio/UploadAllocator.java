@@ -0,0 +1,196 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.Arrays;
+
+	/**
+	 * Shares a total budget of upload slots, and when a global upload limit is set the upload
+	 * rate, between the enabled downloads so as to maximise the total uploaded.
+	 *
+	 * A download's yield is its upload average per slot it currently has. Slots are handed out
+	 * one at a time to whichever download has the highest marginal yield for its next slot: its
+	 * yield up to the slots it already has, diminishing beyond that as yield observed with n slots
+	 * says little about n+1. Every download keeps MIN_SLOTS so that yield can still be measured,
+	 * and none gets more slots than it has leechers to fill them. A download not yet allocated is
+	 * assumed to yield the average so new swarms get a fair trial. As allocations only move in
+	 * proportion to measured yield they track the swarms as they change without oscillating.
+	 *
+	 * Rate limits are proportional to slots with RATE_HEADROOM so that bandwidth a download
+	 * doesn't use isn't stranded.
+	 *
+	 * The total is never exceeded. With more downloads than slots the highest yielding get one
+	 * slot each and the rest are parked: no slots and upload disabled (PARKED_RATE). Parked
+	 * downloads are unmeasured on the next pass so are assumed to yield the average, which
+	 * rotates them back in against downloads doing worse than that.
+	 *
+	 * Only used from the stats timer so the buffers are reused across passes.
+	 */
+
+public class
+UploadAllocator
+{
+	public static final int		MIN_SLOTS		= 2;
+	public static final double	RATE_HEADROOM	= 1.5;
+	public static final int		MIN_RATE		= 1024;
+	public static final int		PARKED_RATE		= -1;		// the core's 'upload disabled'
+
+	private double[]	yields		= new double[32];
+	private int[]		current		= new int[32];
+	private int[]		caps		= new int[32];
+	private int[]		allocated	= new int[32];
+	private double[]	sorted		= new double[32];
+
+		/**
+		 * Sets each state's upload slots and rate limit
+		 *
+		 * @param total_slots	slot budget across all the downloads
+		 * @param global_rate	global upload limit in bytes/sec, 0 if unlimited
+		 */
+
+	protected void
+	allocate(
+		DownloadState[]		states,
+		int					num,
+		int					total_slots,
+		int					global_rate )
+	{
+		if ( num == 0 ){
+
+			return;
+		}
+
+		if ( num > yields.length ){
+
+			yields		= new double[num];
+			current		= new int[num];
+			caps		= new int[num];
+			allocated	= new int[num];
+			sorted		= new double[num];
+		}
+
+		double	yield_total	= 0;
+		int		yield_num	= 0;
+
+		for ( int i=0;i<num;i++ ){
+
+			DownloadState	state = states[i];
+
+			int	slots = state.getUploadSlots();
+
+			current[i]	= slots;
+			caps[i]		= Math.max( MIN_SLOTS, Math.min( state.getUploadDemand(), MaxShareRatioPlugin.MAX_UPLOAD_SLOTS ));
+
+			if ( slots > 0 ){
+
+				yields[i] = (double)state.getUploadAverage() / slots;
+
+				yield_total += yields[i];
+				yield_num++;
+
+			}else{
+
+				yields[i] = -1;
+			}
+		}
+
+		double	yield_average = yield_num==0?1:yield_total/yield_num;
+
+		int	min_slots	= Math.max( 1, Math.min( MIN_SLOTS, total_slots / num ));
+		int	remaining	= total_slots;
+
+		for ( int i=0;i<num;i++ ){
+
+			if ( yields[i] < 0 ){
+
+				yields[i]	= yield_average;
+				current[i]	= min_slots;
+			}
+		}
+
+		if ( num > total_slots ){
+
+				// one slot each for the total_slots best yields, ties going to the earlier
+
+			System.arraycopy( yields, 0, sorted, 0, num );
+
+			Arrays.sort( sorted, 0, num );
+
+			double	threshold = sorted[num - total_slots];
+
+			for ( int i=0;i<num;i++ ){
+
+				allocated[i] = yields[i] > threshold?1:0;
+
+				remaining -= allocated[i];
+			}
+
+			for ( int i=0;i<num&&remaining>0;i++ ){
+
+				if ( allocated[i] == 0 && yields[i] == threshold ){
+
+					allocated[i] = 1;
+
+					remaining--;
+				}
+			}
+		}else{
+
+			for ( int i=0;i<num;i++ ){
+
+				allocated[i] = min_slots;
+
+				remaining -= min_slots;
+			}
+		}
+
+		while( remaining > 0 ){
+
+			int		best			= -1;
+			double	best_marginal	= -1;
+
+			for ( int i=0;i<num;i++ ){
+
+				int	slots = allocated[i];
+
+				if ( slots == 0 || slots >= caps[i] ){
+
+					continue;
+				}
+
+				double	marginal = slots<current[i]?yields[i]:yields[i]*current[i]/( slots + 1 );
+
+				if ( marginal > best_marginal ){
+
+					best			= i;
+					best_marginal	= marginal;
+				}
+			}
+
+			if ( best == -1 ){
+
+				break;
+			}
+
+			allocated[best]++;
+
+			remaining--;
+		}
+
+		int	used = total_slots - remaining;
+
+		for ( int i=0;i<num;i++ ){
+
+			int	rate = 0;
+
+			if ( allocated[i] == 0 ){
+
+				rate = PARKED_RATE;
+
+			}else if ( global_rate > 0 ){
+
+				rate = Math.max( MIN_RATE, (int)Math.min( global_rate, (long)( global_rate * RATE_HEADROOM * allocated[i] / used )));
+			}
+
+			states[i].setUploadAllocation( allocated[i], rate );
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+	/**
+	 * Best expected upload per downloaded byte (see YieldScorer) from the rarer end of the eligible
+	 * pieces
+	 */
+
+public class
+YieldPieceStrategy
+	implements PieceSelectionStrategy
+{
+	public static final String	ID				= "yield";
+	public static final int		MAX_CANDIDATES	= 64;
+
+	public String
+	getID()
+	{
+		return( ID );
+	}
+
+	public int
+	selectPiece(
+		PieceSelectionContext	context )
+	{
+		PieceAvailabilityIndex	index = context.getAvailabilityIndex();
+
+		int[]	avails = context.getAvailability();
+
+		int	num_candidates = index.findCandidates( avails, context.getMaxAvailability(), MAX_CANDIDATES );
+
+		if ( num_candidates == 0 ){
+
+			return( -1 );
+		}
+
+		YieldScorer	scorer = context.getYieldScorer();
+
+		scorer.preparePeers( context.getPeers());
+
+		try{
+			for ( int i=0;i<num_candidates;i++ ){
+
+				int	piece = index.getCandidate( i );
+
+				if ( !context.isTarget( piece )){
+
+					scorer.score( piece, avails[piece] );
+				}
+			}
+
+			int	piece = scorer.getBestPiece();
+
+			if ( piece != -1 ){
+
+				context.setScore( scorer.getBestYield());
+			}
+
+			return( piece );
+
+		}finally{
+
+			scorer.clear();
+		}
+	}
+}
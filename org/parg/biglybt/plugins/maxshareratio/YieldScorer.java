@@ -0,0 +1,191 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.util.List;
+
+import com.biglybt.core.peer.PEPeer;
+import com.biglybt.core.peer.PEPeerStats;
+import com.biglybt.core.peermanager.piecepicker.util.BitFlags;
+
+	/**
+	 * Estimates, for a candidate piece, the number of bytes we can expect to upload per byte
+	 * downloaded. Each peer lacking the piece is weighted by how likely it is to actually take the
+	 * piece from someone soon:
+	 *
+	 * 		- its estimated download rate (stalled peers count for little)
+	 * 		- whether it is interested in us and whether we are choking it
+	 * 		- how close it is to completion (nearly done peers are about to become seeds or leave)
+	 *
+	 * and we expect to get our share of that against the other sources of the piece, seeds
+	 * counting for more as they have upload to spare:
+	 *
+	 * 		yield = sum( weight of peers lacking piece ) / ( 1 + non-seed holders + SEED_WEIGHT * seeds )
+	 *
+	 * Peer weights are computed once per scoring pass so a pass costs one read of each peer's state
+	 * plus one flag read per candidate per peer. Buffers are reused, a scorer belongs to one provider.
+	 */
+
+public class
+YieldScorer
+{
+	public static final double	SEED_WEIGHT				= 2.0;
+	public static final double	NOT_INTERESTED_FACTOR	= 0.5;
+	public static final double	CHOKED_FACTOR			= 0.6;
+	public static final long	RATE_FLOOR				= 2*1024;
+	public static final long	RATE_HALF_WEIGHT		= 16*1024;
+	public static final int		NEARLY_DONE_THOUSANDTHS	= 950;
+
+	private boolean[][]	peer_flags	= new boolean[64][];
+	private double[]	peer_weights	= new double[64];
+
+	private int			num_peers;
+	private int			num_seeds;
+
+	private int			best_piece	= -1;
+	private double		best_yield;
+
+		/**
+		 * Reads the state of the current peers ready for scoring
+		 */
+
+	public void
+	preparePeers(
+		List<PEPeer>	peers )
+	{
+		int	size = peers.size();
+
+		if ( size > peer_weights.length ){
+
+			peer_flags		= new boolean[size][];
+			peer_weights	= new double[size];
+		}
+
+		num_peers	= 0;
+		num_seeds	= 0;
+
+		for ( int i=0;i<size;i++ ){
+
+			PEPeer	peer;
+
+			try{
+				peer = peers.get( i );
+
+			}catch( Throwable e ){
+
+					// list changed under us, go with what we've got
+
+				break;
+			}
+
+			if ( peer.isSeed()){
+
+				num_seeds++;
+
+				continue;
+			}
+
+			BitFlags	flags = peer.getAvailable();
+
+			if ( flags == null ){
+
+				continue;
+			}
+
+			PEPeerStats	stats = peer.getStats();
+
+			long	rate = stats.getEstimatedDownloadRateOfPeer() + RATE_FLOOR;
+
+			double	weight = (double)rate / ( rate + RATE_HALF_WEIGHT );
+
+			if ( !peer.isInterested()){
+
+				weight *= NOT_INTERESTED_FACTOR;
+			}
+
+			if ( peer.isChokedByMe()){
+
+				weight *= CHOKED_FACTOR;
+			}
+
+			int	done = peer.getPercentDoneInThousandNotation();
+
+			if ( done > NEARLY_DONE_THOUSANDTHS ){
+
+				weight *= (double)( 1000 - done ) / ( 1000 - NEARLY_DONE_THOUSANDTHS );
+			}
+
+			peer_flags[num_peers]	= flags.flags;
+			peer_weights[num_peers]	= weight;
+
+			num_peers++;
+		}
+
+		best_piece	= -1;
+		best_yield	= 0;
+	}
+
+		/**
+		 * @param avail	picker availability of the piece
+		 * @return expected upload bytes per downloaded byte
+		 */
+
+	public double
+	score(
+		int		piece,
+		int		avail )
+	{
+		double	demand = 0;
+
+		for ( int i=0;i<num_peers;i++ ){
+
+			boolean[]	flags = peer_flags[i];
+
+			if ( piece < flags.length && !flags[piece] ){
+
+				demand += peer_weights[i];
+			}
+		}
+
+		int	holders = Math.max( 0, avail - num_seeds );
+
+		double	yield = demand / ( 1 + holders + SEED_WEIGHT * num_seeds );
+
+		if ( best_piece == -1 || yield > best_yield ){
+
+			best_piece	= piece;
+			best_yield	= yield;
+		}
+
+		return( yield );
+	}
+
+		/**
+		 * @return best piece scored since preparePeers, -1 if none
+		 */
+
+	public int
+	getBestPiece()
+	{
+		return( best_piece );
+	}
+
+	public double
+	getBestYield()
+	{
+		return( best_yield );
+	}
+
+		/**
+		 * Drops references to peer state once a pass is done
+		 */
+
+	public void
+	clear()
+	{
+		for ( int i=0;i<num_peers;i++ ){
+
+			peer_flags[i] = null;
+		}
+
+		num_peers = 0;
+	}
+}
@@ -0,0 +1,1864 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.biglybt.core.disk.DiskManager;
+import com.biglybt.core.disk.DiskManagerPiece;
+import com.biglybt.core.peer.PEPeer;
+import com.biglybt.core.peer.PEPeerManager;
+import com.biglybt.core.peer.PEPeerManagerStats;
+import com.biglybt.core.peer.PEPeerStats;
+import com.biglybt.core.peer.PEPiece;
+import com.biglybt.core.peermanager.piecepicker.PiecePicker;
+import com.biglybt.core.peermanager.piecepicker.util.BitFlags;
+import com.biglybt.pif.download.Download;
+import com.biglybt.pif.download.DownloadPeerListener;
+import com.biglybt.pif.peers.Peer;
+import com.biglybt.pif.peers.PeerEvent;
+import com.biglybt.pif.peers.PeerListener2;
+import com.biglybt.pif.peers.PeerManager;
+import com.biglybt.pif.peers.PeerManagerEvent;
+import com.biglybt.pif.peers.PeerManagerStats;
+import com.biglybt.pif.peers.PeerStats;
+import com.biglybt.pif.torrent.Torrent;
+import com.biglybt.pif.torrent.TorrentAttribute;
+import com.biglybt.pif.utils.LocationProvider;
+
+	/**
+	 * Micro-benchmarks for the plugin's hot paths, runnable on any box with the plugin and core
+	 * jars on the classpath:
+	 *
+	 * 		select		strategy selection at 1k/20k/100k pieces x 50/500 peers
+	 * 		update		updatePriorities, both steady state and when it selects a new target
+	 * 		blocked		the IP filter path (literal parse, seed check, country lookup, bad set)
+	 * 					with a GeoIP table and via the location provider with warm and cold caches
+	 * 		geoip		loading a GeoIP range table (time and retained heap) and a bare lookup in it
+	 * 					against the location provider
+	 * 		cull		the periodic seed cull pass
+	 * 		enabled		isMaxUpEnabled from 1, 4 and 16 threads
+	 * 		startup		downloadAdded for a library of mostly disabled downloads, time and the
+	 * 					heap and per-download state it leaves
+	 * 		churn		downloads enabled and removed while other threads query them, which must leave
+	 * 					no per-download state behind - the exit status is 1 if any was
+	 * 		alloc		bytes allocated by steady state updatePriorities - targets in flight and held,
+	 * 					and calls that select nothing as there are no candidates, the budget is
+	 * 					refusing or upload is idle - which must be none, the exit status is 1 if
+	 * 					any were
+	 *
+	 * 		java org.parg.biglybt.plugins.maxshareratio.HotPathBenchmark [name=value ...]
+	 *
+	 * Core objects are the simulator's proxies so their per-call cost is included, 'stub' measures
+	 * it for reference. All data comes from the one seed and time is fixed via a SimulatedClock; each
+	 * benchmark reports mean and deviation over the measured iterations after warmup. For
+	 * comparable numbers between runs fix the heap (-Xms = -Xmx) and don't run anything else.
+	 */
+
+public class
+HotPathBenchmark
+{
+	private static final String[][]	DEFAULTS = {
+		{ "benchmarks",			"stub,select,update,blocked,geoip,cull,enabled,startup" },
+		{ "seed",				"1" },
+		{ "warmup",				"5" },
+		{ "iterations",			"10" },
+		{ "iteration_millis",	"1000" },
+	};
+
+	private static final int[]		PIECE_COUNTS	= { 1000, 20000, 100000 };
+	private static final int[]		PEER_COUNTS		= { 50, 500 };
+	private static final int[]		THREAD_COUNTS	= { 1, 4, 16 };
+
+	private static final long		TIME			= 1000000000000L;
+	private static final int		GEOIP_RANGES	= 100000;
+	private static final int		WARM_ADDRESSES	= 1024;
+	private static final int		COLD_ADDRESSES	= 1024*1024;
+	private static final int		DOWNLOADS		= 1000;
+	private static final int		STARTUP_DOWNLOADS	= 10000;
+	private static final int		ALLOC_CALLS		= 100000;
+	private static final int		ALLOC_MIN_ROUNDS	= 4;
+
+	private static final String[]	COUNTRIES	= { "US", "DE", "GB", "FR", "CN", "RU", "BR", "JP", "IN", "CA" };
+
+		// results are folded into this so the JIT can't discard the work
+
+	private static volatile long	sink;
+
+	public static void
+	main(
+		String[]	args )
+
+		throws Exception
+	{
+		Map<String,String>	config = new LinkedHashMap<String,String>();
+
+		for ( String[] entry: DEFAULTS ){
+
+			config.put( entry[0], entry[1] );
+		}
+
+		for ( String arg: args ){
+
+			int	pos = arg.indexOf( '=' );
+
+			if ( pos == -1 || !config.containsKey( arg.substring( 0, pos ))){
+
+				System.out.println( "usage: HotPathBenchmark [name=value ...], defaults:" );
+
+				for ( Map.Entry<String,String> entry: config.entrySet()){
+
+					System.out.println( "    " + entry.getKey() + "=" + entry.getValue());
+				}
+
+				return;
+			}
+
+			config.put( arg.substring( 0, pos ), arg.substring( pos + 1 ));
+		}
+
+		if ( !new HotPathBenchmark( config ).run( config.get( "benchmarks" ).split( "," ))){
+
+			System.exit( 1 );
+		}
+	}
+
+	private interface
+	Operation
+	{
+			/**
+			 * @return nanos taken by the measured part of the call
+			 */
+
+		public long
+		run(
+			int		index );
+	}
+
+	private final long		seed;
+	private final int		warmup;
+	private final int		iterations;
+	private final long		iteration_millis;
+
+	private final SimulatedClock	clock	= new SimulatedClock( TIME );
+
+	private
+	HotPathBenchmark(
+		Map<String,String>	config )
+	{
+		seed				= Long.parseLong( config.get( "seed" ));
+		warmup				= Integer.parseInt( config.get( "warmup" ));
+		iterations			= Integer.parseInt( config.get( "iterations" ));
+		iteration_millis	= Long.parseLong( config.get( "iteration_millis" ));
+	}
+
+		/**
+		 * @return false if a check failed
+		 */
+
+	private boolean
+	run(
+		String[]	benchmarks )
+
+		throws Exception
+	{
+		boolean	ok = true;
+
+		for ( String benchmark: benchmarks ){
+
+			benchmark = benchmark.trim();
+
+			if ( benchmark.equals( "stub" )){
+
+				benchmarkStub();
+
+			}else if ( benchmark.equals( "select" )){
+
+				for ( int pieces: PIECE_COUNTS ){
+
+					for ( int peers: PEER_COUNTS ){
+
+						benchmarkSelect( pieces, peers );
+					}
+				}
+			}else if ( benchmark.equals( "update" )){
+
+				for ( int pieces: PIECE_COUNTS ){
+
+					for ( int peers: PEER_COUNTS ){
+
+						benchmarkUpdate( pieces, peers );
+					}
+				}
+			}else if ( benchmark.equals( "blocked" )){
+
+				benchmarkBlocked();
+
+			}else if ( benchmark.equals( "geoip" )){
+
+				benchmarkGeoIP();
+
+			}else if ( benchmark.equals( "cull" )){
+
+				for ( int peers: PEER_COUNTS ){
+
+					benchmarkCull( peers );
+				}
+			}else if ( benchmark.equals( "enabled" )){
+
+				for ( int threads: THREAD_COUNTS ){
+
+					benchmarkEnabled( threads );
+				}
+			}else if ( benchmark.equals( "startup" )){
+
+				benchmarkStartup();
+
+			}else if ( benchmark.equals( "churn" )){
+
+				ok &= checkChurn( THREAD_COUNTS[1] );
+
+			}else if ( benchmark.equals( "alloc" )){
+
+				for ( int pieces: PIECE_COUNTS ){
+
+					for ( int peers: PEER_COUNTS ){
+
+						ok &= checkAllocation( pieces, peers );
+					}
+				}
+			}else{
+
+				System.out.println( "Unknown benchmark '" + benchmark + "'" );
+			}
+		}
+
+		return( ok );
+	}
+
+	private void
+	benchmarkStub()
+	{
+		final DiskManagerPiece	piece = SwarmSimulator.stub( DiskManagerPiece.class, new BenchPiece( new boolean[1], 0 ));
+
+		measureBatch(
+			"stub call",
+			new Runnable()
+			{
+				public void
+				run()
+				{
+					if ( piece.isDone()){
+
+						sink++;
+					}
+				}
+			});
+	}
+
+	private void
+	benchmarkSelect(
+		int		num_pieces,
+		int		num_peers )
+	{
+		Swarm	swarm = new Swarm( num_pieces, num_peers );
+
+		List<PieceSelectionStrategy>	strategies = new ArrayList<PieceSelectionStrategy>();
+
+		strategies.add( new RarestPieceStrategy());
+		strategies.add( new YieldPieceStrategy());
+		strategies.add( new RandomPieceStrategy());
+
+		for ( final PieceSelectionStrategy strategy: strategies ){
+
+			final BenchContext	context = new BenchContext( swarm );
+
+			measureBatch(
+				"select " + strategy.getID() + " " + num_pieces + "x" + num_peers,
+				new Runnable()
+				{
+					public void
+					run()
+					{
+						sink += strategy.selectPiece( context );
+					}
+				});
+		}
+	}
+
+	private void
+	benchmarkUpdate(
+		int		num_pieces,
+		int		num_peers )
+	{
+		final Swarm	swarm = new Swarm( num_pieces, num_peers );
+
+		final BenchPlugin	plugin = new BenchPlugin( clock );
+
+		plugin.getDownloadState( swarm.download ).setStrategyID( RarestPieceStrategy.ID );
+
+		final SharePriorityProvider	steady = swarm.createProvider( plugin );
+
+			// fill the pipeline then it just checks its targets
+
+		swarm.fillPipeline( steady );
+
+		measure(
+			"update steady " + num_pieces + "x" + num_peers,
+			new Operation()
+			{
+				public long
+				run(
+					int		index )
+				{
+					long	start = System.nanoTime();
+
+					sink += steady.updatePriorities( swarm.picker ).length;
+
+					return( System.nanoTime() - start );
+				}
+			});
+
+		measure(
+			"update select " + num_pieces + "x" + num_peers,
+			new Operation()
+			{
+				public long
+				run(
+					int		index )
+				{
+					SharePriorityProvider	provider = swarm.createProvider( plugin );
+
+					long	start = System.nanoTime();
+
+					sink += provider.updatePriorities( swarm.picker ).length;
+
+					return( System.nanoTime() - start );
+				}
+			});
+	}
+
+		/**
+		 * The provider is called by the picker on the peer manager thread and shouldn't allocate
+		 * once its targets are chosen, both while they are downloading and while they are held
+		 * done with their controllers sampling each second. Selecting and logging allocate so the
+		 * pipeline is filled and the controllers started beforehand.
+		 *
+		 * Most calls don't get as far as selecting, so neither must those: when no piece is a
+		 * candidate, when the budget refuses (re-offering each RETRY_MILLIS as the clock
+		 * advances) and when idle upload keeps the pipeline at one target in flight.
+		 *
+		 * @return false if anything was allocated
+		 */
+
+	private boolean
+	checkAllocation(
+		int		num_pieces,
+		int		num_peers )
+	{
+		if ( !( ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean )){
+
+			System.out.println( "alloc: allocated bytes not supported by this JVM" );
+
+			return( true );
+		}
+
+		com.sun.management.ThreadMXBean	bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+		if ( !bean.isThreadAllocatedMemorySupported()){
+
+			System.out.println( "alloc: allocated bytes not supported by this JVM" );
+
+			return( true );
+		}
+
+		bean.setThreadAllocatedMemoryEnabled( true );
+
+		Swarm	swarm = new Swarm( num_pieces, num_peers );
+
+		BenchPlugin	plugin = new BenchPlugin( clock );
+
+		plugin.getDownloadState( swarm.download ).setStrategyID( RarestPieceStrategy.ID );
+
+		SharePriorityProvider	provider = swarm.createProvider( plugin );
+
+		swarm.fillPipeline( provider );
+
+		boolean	ok = checkAllocation( bean, "alloc update in flight " + num_pieces + "x" + num_peers, swarm, provider, false );
+
+		long[]	priorities = provider.updatePriorities( swarm.picker );
+
+		for ( int i=0;i<num_pieces;i++ ){
+
+			if ( provider.isTarget( i )){
+
+				swarm.done[i] = true;
+			}
+		}
+
+		provider.updatePriorities( swarm.picker );
+
+		sink += priorities.length;
+
+		ok &= checkAllocation( bean, "alloc update held " + num_pieces + "x" + num_peers, swarm, provider, true );
+
+		BenchPlugin	budget_plugin = new BenchPlugin( clock );
+
+		budget_plugin.getDownloadState( swarm.download ).setStrategyID( RarestPieceStrategy.ID );
+
+		budget_plugin.daily_budget = 1;
+
+		provider = swarm.createProvider( budget_plugin );
+
+		provider.updatePriorities( swarm.picker );
+
+		ok &= checkAllocation( bean, "alloc update budget " + num_pieces + "x" + num_peers, swarm, provider, true );
+
+		BenchPlugin	idle_plugin = new BenchPlugin( clock );
+
+		idle_plugin.getDownloadState( swarm.download ).setStrategyID( RarestPieceStrategy.ID );
+
+		idle_plugin.upload_average = 0;
+
+		provider = swarm.createProvider( idle_plugin );
+
+		provider.updatePriorities( swarm.picker );
+
+		ok &= checkAllocation( bean, "alloc update idle " + num_pieces + "x" + num_peers, swarm, provider, false );
+
+			// last as it leaves the swarm with nothing to select
+
+		Arrays.fill( swarm.done, true );
+
+		provider = swarm.createProvider( plugin );
+
+		provider.updatePriorities( swarm.picker );
+
+		ok &= checkAllocation( bean, "alloc update no candidates " + num_pieces + "x" + num_peers, swarm, provider, false );
+
+		return( ok );
+	}
+
+	private boolean
+	checkAllocation(
+		com.sun.management.ThreadMXBean	bean,
+		String							name,
+		Swarm							swarm,
+		SharePriorityProvider			provider,
+		boolean							advance_clock )
+	{
+		long	thread_id	= Thread.currentThread().getId();
+		long	time		= TIME + MaxShareRatioPlugin.INITIAL_DELAY_MILLIS + 1;
+
+			// the least over the rounds so that allocations made while the JIT settles don't count,
+			// an allocation in the steady state shows up in every round. Interpreted and C1 code
+			// allocates where C2 wouldn't so there are always ALLOC_MIN_ROUNDS whatever the warmup
+
+		long	allocated = Long.MAX_VALUE;
+
+		for ( int round=0;round<Math.max( warmup+1, ALLOC_MIN_ROUNDS );round++ ){
+
+				// the measurement itself allocates, take that off
+
+			long	overhead = bean.getThreadAllocatedBytes( thread_id );
+
+			long	before = bean.getThreadAllocatedBytes( thread_id );
+
+			overhead = before - overhead;
+
+			for ( int i=0;i<ALLOC_CALLS;i++ ){
+
+				if ( advance_clock ){
+
+					time += 1000;
+
+					clock.setTime( time );
+				}
+
+				sink += provider.updatePriorities( swarm.picker ).length;
+			}
+
+			allocated = Math.min( allocated, bean.getThreadAllocatedBytes( thread_id ) - before - overhead );
+		}
+
+		System.out.println( String.format( "%-40s %14d bytes in %d calls %s", name, allocated, ALLOC_CALLS, allocated>0?"FAILED":"OK" ));
+
+		return( allocated <= 0 );
+	}
+
+	private void
+	benchmarkBlocked()
+
+		throws Exception
+	{
+		Random	random = new Random( seed );
+
+		final byte[]		hash	= new byte[20];
+		final CountrySet	bad		= new CountrySet( new String[]{ "CN", "RU" });
+
+		final SeedReputationCache	seed_cache = new SeedReputationCache();
+
+		random.nextBytes( hash );
+
+		final String[]	warm = new String[WARM_ADDRESSES];
+		final String[]	cold = new String[COLD_ADDRESSES];
+
+		for ( int i=0;i<warm.length;i++ ){
+
+			warm[i] = randomAddress( random );
+
+			if ( i % 16 == 0 ){
+
+				seed_cache.addSeed( hash, warm[i] );
+			}
+		}
+
+		for ( int i=0;i<cold.length;i++ ){
+
+			cold[i] = randomAddress( random );
+		}
+
+		File	file = writeGeoIPFile( random );
+
+		try{
+			final CountryRangeTable	table = CountryRangeTable.load( file );
+
+			for ( final String[] addresses: new String[][]{ warm, cold }){
+
+				final String	temp = addresses==warm?"warm":"cold";
+
+				measureBatch(
+					"blocked geoip " + temp,
+					new Runnable()
+					{
+						private int	next;
+
+						public void
+						run()
+						{
+							byte[]	address = CountryCache.parseLiteral( addresses[next++ & ( addresses.length - 1 )]);
+
+							if ( seed_cache.isKnownSeed( hash, address ) || bad.contains( table.lookup( address ))){
+
+								sink++;
+							}
+						}
+					});
+			}
+		}finally{
+
+			file.delete();
+		}
+
+		final LocationProvider	provider = SwarmSimulator.stub( LocationProvider.class, new BenchLocationProvider());
+
+		for ( final String[] addresses: new String[][]{ warm, cold }){
+
+			final String	temp = addresses==warm?"warm":"cold";
+
+			final CountryCache	cache = new CountryCache();
+
+			measureBatch(
+				"blocked provider " + temp,
+				new Runnable()
+				{
+					private int	next;
+
+					public void
+					run()
+					{
+						byte[]	address = CountryCache.parseLiteral( addresses[next++ & ( addresses.length - 1 )]);
+
+						if ( seed_cache.isKnownSeed( hash, address ) || bad.contains( CountrySet.encode( cache.getCountry( provider, address )))){
+
+							sink++;
+						}
+					}
+				});
+		}
+	}
+
+	private void
+	benchmarkGeoIP()
+
+		throws Exception
+	{
+		Random	random = new Random( seed );
+
+		final byte[][]	addresses = new byte[COLD_ADDRESSES][];
+
+		for ( int i=0;i<addresses.length;i++ ){
+
+			addresses[i] = CountryCache.parseLiteral( randomAddress( random ));
+		}
+
+		File	file = writeGeoIPFile( random );
+
+		try{
+			long	before = getUsedHeap();
+
+			long	start = System.nanoTime();
+
+			final CountryRangeTable	table = CountryRangeTable.load( file );
+
+			long	load_millis = ( System.nanoTime() - start ) / 1000000;
+
+			long	retained = getUsedHeap() - before;
+
+			System.out.println( String.format( "%-40s %14d ms, %d bytes retained, %.1f bytes/range", "geoip load " + table.size() + " ranges", load_millis, retained, (double)retained / table.size()));
+
+			measureBatch(
+				"geoip lookup table",
+				new Runnable()
+				{
+					private int	next;
+
+					public void
+					run()
+					{
+						sink += table.lookup( addresses[next++ & ( addresses.length - 1 )]);
+					}
+				});
+		}finally{
+
+			file.delete();
+		}
+
+		final LocationProvider	provider = SwarmSimulator.stub( LocationProvider.class, new BenchLocationProvider());
+
+		measureBatch(
+			"geoip lookup provider",
+			new Runnable()
+			{
+				private int	next;
+
+				public void
+				run()
+				{
+					try{
+						sink += provider.getISO3166CodeForIP( InetAddress.getByAddress( addresses[next++ & ( addresses.length - 1 )])).length();
+
+					}catch( UnknownHostException e ){
+
+						throw( new RuntimeException( e ));
+					}
+				}
+			});
+	}
+
+		/**
+		 * @return CSV of GEOIP_RANGES equal IPv4 ranges with random countries, to be deleted by the caller
+		 */
+
+	private static File
+	writeGeoIPFile(
+		Random	random )
+
+		throws Exception
+	{
+		File	file = File.createTempFile( "geoip", ".csv" );
+
+		PrintWriter	pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ));
+
+		try{
+			long	range = ( 1L << 32 ) / GEOIP_RANGES;
+
+			for ( int i=0;i<GEOIP_RANGES;i++ ){
+
+				pw.println(( i * range ) + "," + ( i * range + range - 1 ) + "," + COUNTRIES[random.nextInt( COUNTRIES.length )]);
+			}
+		}finally{
+
+			pw.close();
+		}
+
+		return( file );
+	}
+
+	private static long
+	getUsedHeap()
+	{
+		Runtime	runtime = Runtime.getRuntime();
+
+		for ( int i=0;i<3;i++ ){
+
+			System.gc();
+		}
+
+		return( runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	private void
+	benchmarkCull(
+		int		num_peers )
+	{
+		Random	random = new Random( seed );
+
+		final Peer[]	peers = new Peer[num_peers];
+
+		int	seeds = 0;
+
+		for ( int i=0;i<num_peers;i++ ){
+
+			boolean	is_seed = random.nextBoolean();
+
+			if ( is_seed ){
+
+				seeds++;
+			}
+
+			peers[i] = SwarmSimulator.stub( Peer.class, new BenchCullPeer( is_seed, random ));
+		}
+
+		final PeerManager		pm			= SwarmSimulator.stub( PeerManager.class, new BenchCullPeerManager( peers, seeds ));
+		final SeedCuller		culler		= new SeedCuller();
+		final SeedReputationCache	seed_cache	= new SeedReputationCache();
+		final byte[]			hash		= new byte[20];
+
+		measure(
+			"cull " + num_peers + " peers (" + seeds + " seeds)",
+			new Operation()
+			{
+				public long
+				run(
+					int		index )
+				{
+					long	start = System.nanoTime();
+
+					sink += culler.cull( pm, MaxShareRatioPlugin.MAX_SEEDS_PER_TORRENT, seed_cache, hash );
+
+					return( System.nanoTime() - start );
+				}
+			});
+	}
+
+	private void
+	benchmarkEnabled(
+		final int		num_threads )
+
+		throws Exception
+	{
+		final MaxShareRatioPlugin	plugin = new BenchPlugin( clock );
+
+		final Download[]	downloads = new Download[DOWNLOADS];
+
+		for ( int i=0;i<downloads.length;i++ ){
+
+			downloads[i] = SwarmSimulator.stub( Download.class, new BenchDownload( "download-" + i, 1000, i%2==0 ));
+		}
+
+		double[]	results = new double[iterations];
+
+		for ( int iteration=-warmup;iteration<iterations;iteration++ ){
+
+			final AtomicLong	ops		= new AtomicLong();
+			final long			end		= System.nanoTime() + iteration_millis*1000000;
+
+			Thread[]	threads = new Thread[num_threads];
+
+			for ( int i=0;i<num_threads;i++ ){
+
+				final int	offset = i;
+
+				threads[i] =
+					new Thread( "HotPathBenchmark:enabled" )
+					{
+						public void
+						run()
+						{
+							long	count	= 0;
+							long	hits	= 0;
+
+							int	next = offset * 37;
+
+							while( System.nanoTime() < end ){
+
+								for ( int j=0;j<256;j++ ){
+
+									if ( plugin.isMaxUpEnabled( downloads[next++ % downloads.length] )){
+
+										hits++;
+									}
+								}
+
+								count += 256;
+							}
+
+							ops.addAndGet( count );
+
+							sink += hits;
+						}
+					};
+
+				threads[i].start();
+			}
+
+			for ( Thread thread: threads ){
+
+				thread.join();
+			}
+
+			if ( iteration >= 0 ){
+
+				results[iteration] = ops.get() * 1000.0 / iteration_millis;
+			}
+		}
+
+		report( "enabled " + num_threads + " thread(s)", results, "ops/s" );
+	}
+
+		/**
+		 * Startup with a large library, one in ten downloads enabled: only those should get state
+		 */
+
+	private void
+	benchmarkStartup()
+
+		throws Exception
+	{
+		double[]	results 	= new double[iterations];
+		long		retained	= 0;
+		int			states		= 0;
+
+		for ( int iteration=-warmup;iteration<iterations;iteration++ ){
+
+			MaxShareRatioPlugin	plugin = new BenchPlugin( clock );
+
+			Download[]	downloads = new Download[STARTUP_DOWNLOADS];
+
+			for ( int i=0;i<downloads.length;i++ ){
+
+				downloads[i] = SwarmSimulator.stub( Download.class, new BenchDownload( "startup-" + i, 1000, i%10==0 ));
+			}
+
+			long	before	= getUsedHeap();
+
+			long	start	= System.nanoTime();
+
+			for ( Download download: downloads ){
+
+				plugin.downloadAdded( download );
+			}
+
+			long	elapsed = System.nanoTime() - start;
+
+			retained	= getUsedHeap() - before;
+			states		= getStateCount( plugin );
+
+			if ( iteration >= 0 ){
+
+				results[iteration] = elapsed / 1000000.0;
+			}
+		}
+
+		report( "startup " + STARTUP_DOWNLOADS + " downloads", results, "ms" );
+
+		System.out.println( String.format( "%-40s %14d states, %d bytes retained", "startup " + STARTUP_DOWNLOADS + " downloads", states, retained ));
+	}
+
+	private static int
+	getStateCount(
+		MaxShareRatioPlugin		plugin )
+
+		throws Exception
+	{
+		Field	field = MaxShareRatioPlugin.class.getDeclaredField( "download_states" );
+
+		field.setAccessible( true );
+
+		return(((Map<?,?>)field.get( plugin )).size());
+	}
+
+		/**
+		 * Soak for the download state lifecycle: one thread adds, enables and removes downloads as fast as
+		 * it can while the others hit the enabled checks, counters and the IP filter for recent ones -
+		 * many of them removed - as the UI, provider and filter would
+		 */
+
+	private boolean
+	checkChurn(
+		final int		num_threads )
+
+		throws Exception
+	{
+		final MaxShareRatioPlugin	plugin = new BenchPlugin( clock );
+
+		final Download[]	recent = new Download[256];
+
+		for ( int i=0;i<recent.length;i++ ){
+
+			recent[i] = SwarmSimulator.stub( Download.class, new BenchDownload( "churn-warmup-" + i, 1000, true ));
+		}
+
+		final byte[]	address = { 10, 0, 0, 1 };
+
+		long		before	= getUsedHeap();
+		long		churned	= 0;
+		int			next	= 0;
+
+		for ( int iteration=-warmup;iteration<iterations;iteration++ ){
+
+			final long	end = System.nanoTime() + iteration_millis*1000000;
+
+			Thread[]	threads = new Thread[num_threads];
+
+			for ( int i=0;i<num_threads;i++ ){
+
+				final int	offset = i;
+
+				threads[i] =
+					new Thread( "HotPathBenchmark:churn" )
+					{
+						public void
+						run()
+						{
+							long	hits	= 0;
+							int		index	= offset * 37;
+
+							while( System.nanoTime() < end ){
+
+								Download	download = recent[index++ & ( recent.length - 1 )];
+
+								if ( plugin.isMaxUpEnabled( download )){
+
+									hits++;
+								}
+
+								if ( plugin.isMaxUpActive( download )){
+
+									hits++;
+								}
+
+								if ( plugin.isKnownSeedOverLimit( download.getTorrent().getHash(), address )){
+
+									hits++;
+								}
+
+								plugin.countEvent( download, MetricCounters.PEERS_BLOCKED );
+							}
+
+							sink += hits;
+						}
+					};
+
+				threads[i].start();
+			}
+
+			while( System.nanoTime() < end ){
+
+				Download	download = SwarmSimulator.stub( Download.class, new BenchDownload( "churn-" + churned++, 1000, true ));
+
+				plugin.setMaxUpEnabled( download, true );
+
+				recent[next++ & ( recent.length - 1 )] = download;
+
+				plugin.downloadRemoved( download );
+			}
+
+			for ( Thread thread: threads ){
+
+				thread.join();
+			}
+		}
+
+		for ( Download download: recent ){
+
+			plugin.downloadRemoved( download );
+		}
+
+		long	retained = getUsedHeap() - before;
+
+		int		remaining = getStateCount( plugin );
+
+		boolean	ok = remaining == 0;
+
+		System.out.println( String.format( "%-40s %14d states left after %d downloads, %d bytes retained %s", "churn " + num_threads + " thread(s)", remaining, churned, retained, ok?"OK":"FAILED" ));
+
+		return( ok );
+	}
+
+		/**
+		 * Times the runnable in batches, for operations too quick to time individually
+		 */
+
+	private void
+	measureBatch(
+		String				name,
+		final Runnable		runnable )
+	{
+		final int	batch = 256;
+
+		double[]	results = measureIterations(
+			new Operation()
+			{
+				public long
+				run(
+					int		index )
+				{
+					long	start = System.nanoTime();
+
+					for ( int i=0;i<batch;i++ ){
+
+						runnable.run();
+					}
+
+					return( System.nanoTime() - start );
+				}
+			});
+
+		for ( int i=0;i<results.length;i++ ){
+
+			results[i] /= batch;
+		}
+
+		report( name, results, "ns/op" );
+	}
+
+	private void
+	measure(
+		String			name,
+		Operation		operation )
+	{
+		report( name, measureIterations( operation ), "ns/op" );
+	}
+
+	private double[]
+	measureIterations(
+		Operation		operation )
+	{
+		double[]	results = new double[iterations];
+
+		int	index = 0;
+
+		for ( int iteration=-warmup;iteration<iterations;iteration++ ){
+
+			long	end		= System.nanoTime() + iteration_millis*1000000;
+			long	total	= 0;
+			long	count	= 0;
+
+			while( System.nanoTime() < end ){
+
+				total += operation.run( index++ );
+
+				count++;
+			}
+
+			if ( iteration >= 0 ){
+
+				results[iteration] = (double)total / count;
+			}
+		}
+
+		return( results );
+	}
+
+	private void
+	report(
+		String		name,
+		double[]	results,
+		String		units )
+	{
+		double	mean = 0;
+
+		for ( double result: results ){
+
+			mean += result;
+		}
+
+		mean /= results.length;
+
+		double	variance = 0;
+
+		for ( double result: results ){
+
+			variance += ( result - mean ) * ( result - mean );
+		}
+
+		double	deviation = Math.sqrt( variance / results.length );
+
+		System.out.println( String.format( "%-40s %14.1f %s +- %.1f", name, mean, units, deviation ));
+	}
+
+	private static String
+	randomAddress(
+		Random	random )
+	{
+		return( ( 1 + random.nextInt( 223 )) + "." + random.nextInt( 256 ) + "." + random.nextInt( 256 ) + "." + random.nextInt( 256 ));
+	}
+
+		/**
+		 * Synthetic swarm with the interest and availability indexes fed as they would be by the
+		 * peer manager. Each peer holds each piece with probability 0.5 so availability is spread.
+		 */
+
+	private class
+	Swarm
+	{
+		private final int					num_pieces;
+		private final int[]					avails;
+		private final boolean[]				done;
+		private final PEPiece[]				started;
+		private final PEPiece				started_piece	= SwarmSimulator.stub( PEPiece.class, new Object());
+		private final DiskManagerPiece[]	pieces;
+		private final List<PEPeer>			peers	= new ArrayList<PEPeer>();
+
+		private final Download				download;
+		private final PEPeerManager			pm;
+		private final PiecePicker			picker;
+		private final PieceAvailabilityIndex	avail_index;
+		private final PieceInterestIndex		interest_index;
+
+		private
+		Swarm(
+			int		_num_pieces,
+			int		num_peers )
+		{
+			num_pieces	= _num_pieces;
+
+			Random	random = new Random( seed );
+
+			avails	= new int[num_pieces];
+			pieces	= new DiskManagerPiece[num_pieces];
+
+			done	= new boolean[num_pieces];
+			started	= new PEPiece[num_pieces];
+
+			for ( int i=0;i<num_pieces;i++ ){
+
+				pieces[i] = SwarmSimulator.stub( DiskManagerPiece.class, new BenchPiece( done, i ));
+			}
+
+			download	= SwarmSimulator.stub( Download.class, new BenchDownload( "bench-" + num_pieces + "x" + num_peers, num_pieces, true ));
+			pm			= SwarmSimulator.stub( PEPeerManager.class, new BenchPeerManager( this ));
+			picker		= SwarmSimulator.stub( PiecePicker.class, new BenchPiecePicker( avails ));
+
+			avail_index		= new PieceAvailabilityIndex( pm, num_pieces, clock );
+			interest_index	= new PieceInterestIndex( avail_index );
+
+			for ( int i=0;i<num_peers;i++ ){
+
+				BitFlags	flags = new BitFlags( num_pieces );
+
+				for ( int j=0;j<num_pieces;j++ ){
+
+					if ( random.nextBoolean()){
+
+						flags.flags[j] = true;
+
+						avails[j]++;
+					}
+				}
+
+				peers.add( SwarmSimulator.stub( PEPeer.class, new BenchPeer( flags, random )));
+
+				BenchPluginPeer	plugin_peer = new BenchPluginPeer();
+
+				Peer	peer = SwarmSimulator.stub( Peer.class, plugin_peer );
+
+				interest_index.eventOccurred( SwarmSimulator.stub( PeerManagerEvent.class, new SwarmSimulator.SimPeerManagerEvent( PeerManagerEvent.ET_PEER_ADDED, peer )));
+
+				plugin_peer.listener.eventOccurred( SwarmSimulator.stub( PeerEvent.class, new SwarmSimulator.SimPeerEvent( PeerEvent.ET_ADD_AVAILABILITY, flags.flags.clone())));
+			}
+		}
+
+			/**
+			 * @return provider past its initial delay so its first update selects
+			 */
+
+			/**
+			 * Updates until the pipeline is full, marking the targets as started as the picker
+			 * would - otherwise once the rarest pieces are all targets nothing more is selected
+			 */
+
+		private void
+		fillPipeline(
+			SharePriorityProvider	provider )
+		{
+			for ( int i=0;i<=SharePriorityProvider.MAX_PIPELINE_DEPTH;i++ ){
+
+				provider.updatePriorities( picker );
+
+				for ( int j=0;j<num_pieces;j++ ){
+
+					if ( provider.isTarget( j )){
+
+						started[j] = started_piece;
+					}
+				}
+			}
+		}
+
+		private SharePriorityProvider
+		createProvider(
+			MaxShareRatioPlugin		plugin )
+		{
+			clock.setTime( TIME );
+
+			SharePriorityProvider	provider = new SharePriorityProvider( plugin, download, pm, avail_index, interest_index );
+
+			provider.setRandomSeed( seed );
+
+			clock.setTime( TIME + MaxShareRatioPlugin.INITIAL_DELAY_MILLIS + 1 );
+
+			return( provider );
+		}
+	}
+
+	private class
+	BenchContext
+		implements PieceSelectionContext
+	{
+		private final Swarm			swarm;
+		private final Random		random	= new Random( seed );
+		private final YieldScorer	scorer	= new YieldScorer();
+
+		private
+		BenchContext(
+			Swarm	_swarm )
+		{
+			swarm	= _swarm;
+		}
+
+		public int[]
+		getAvailability()
+		{
+			return( swarm.avails );
+		}
+
+		public int
+		getMaxAvailability()
+		{
+			return( swarm.interest_index.getBitfieldPeerCount() - MaxShareRatioPlugin.MIN_INTERESTED_PEERS );
+		}
+
+		public PieceAvailabilityIndex
+		getAvailabilityIndex()
+		{
+			return( swarm.avail_index );
+		}
+
+		public List<PEPeer>
+		getPeers()
+		{
+			return( swarm.peers );
+		}
+
+		public boolean
+		isTarget(
+			int		piece )
+		{
+			return( false );
+		}
+
+		public Random
+		getRandom()
+		{
+			return( random );
+		}
+
+		public YieldScorer
+		getYieldScorer()
+		{
+			return( scorer );
+		}
+
+		public void
+		setScore(
+			double	score )
+		{
+		}
+	}
+
+	private static class
+	BenchPlugin
+		extends MaxShareRatioPlugin
+	{
+		private long	upload_average	= Integer.MAX_VALUE;
+		private long	daily_budget;
+
+		private
+		BenchPlugin(
+			ShareClock		_clock )
+		{
+			super( _clock );
+
+			registerStrategy( new RarestPieceStrategy());
+		}
+
+		protected boolean
+		isPipelineEnabled()
+		{
+			return( true );
+		}
+
+		protected int
+		getPipelineMaxDepth()
+		{
+			return( SharePriorityProvider.MAX_PIPELINE_DEPTH );
+		}
+
+		protected long
+		getUploadAverage(
+			Download		download )
+		{
+			return( upload_average );
+		}
+
+		protected long
+		getDailyBudgetBytes()
+		{
+			return( daily_budget );
+		}
+
+		protected boolean
+		isEarlyJoinEnabled()
+		{
+			return( false );
+		}
+
+		protected void
+		log(
+			Download	dl,
+			String		format,
+			Object...	format_args )
+		{
+		}
+	}
+
+	public static class
+	BenchPiece
+	{
+		private final boolean[]	done;
+		private final int		number;
+
+		protected
+		BenchPiece(
+			boolean[]	_done,
+			int			_number )
+		{
+			done	= _done;
+			number	= _number;
+		}
+
+		public boolean
+		isDone()
+		{
+			return( done[number] );
+		}
+
+		public boolean
+		isNeeded()
+		{
+			return( true );
+		}
+
+		public int
+		getPieceNumber()
+		{
+			return( number );
+		}
+
+			// boxed once, see BenchPeerStats
+
+		private static final Integer	LENGTH	= 262144;
+
+		public Integer
+		getLength()
+		{
+			return( LENGTH );
+		}
+	}
+
+	public static class
+	BenchPeerManager
+	{
+		private final Swarm					swarm;
+		private final DiskManager			disk_manager;
+		private final PEPeerManagerStats	stats;
+		private final List<PEPeer>			peers;
+
+		private
+		BenchPeerManager(
+			Swarm		_swarm )
+		{
+			swarm			= _swarm;
+			disk_manager	= SwarmSimulator.stub( DiskManager.class, new BenchDiskManager( swarm.pieces ));
+			stats			= SwarmSimulator.stub( PEPeerManagerStats.class, new BenchPeerManagerStats());
+			peers			= swarm.peers;
+		}
+
+		public DiskManager
+		getDiskManager()
+		{
+			return( disk_manager );
+		}
+
+		public PEPiece
+		getPiece(
+			int		piece )
+		{
+			return( swarm.started[piece] );
+		}
+
+		public PEPiece[]
+		getPieces()
+		{
+			return( swarm.started );
+		}
+
+		public PEPeerManagerStats
+		getStats()
+		{
+			return( stats );
+		}
+
+		public List<PEPeer>
+		getPeers()
+		{
+			return( peers );
+		}
+	}
+
+	public static class
+	BenchDiskManager
+	{
+		private final DiskManagerPiece[]	pieces;
+
+		protected
+		BenchDiskManager(
+			DiskManagerPiece[]	_pieces )
+		{
+			pieces	= _pieces;
+		}
+
+		public DiskManagerPiece[]
+		getPieces()
+		{
+			return( pieces );
+		}
+
+		public int
+		getNbPieces()
+		{
+			return( pieces.length );
+		}
+	}
+
+	public static class
+	BenchPeerManagerStats
+	{
+		public int
+		getTimeSinceLastDataSentInSeconds()
+		{
+			return( 0 );
+		}
+
+		public long
+		getTotalDataBytesSent()
+		{
+			return( 0 );
+		}
+	}
+
+	public static class
+	BenchPiecePicker
+	{
+		private final int[]	avails;
+
+		protected
+		BenchPiecePicker(
+			int[]	_avails )
+		{
+			avails	= _avails;
+		}
+
+		public int[]
+		getAvailability()
+		{
+			return( avails );
+		}
+	}
+
+	public static class
+	BenchPeer
+	{
+		private final BitFlags		flags;
+		private final boolean		interested;
+		private final boolean		choked;
+		private final PEPeerStats	stats;
+
+			// boxed once, see BenchPeerStats
+
+		private static final Integer	PERCENT_DONE	= 500;
+
+		protected
+		BenchPeer(
+			BitFlags	_flags,
+			Random		random )
+		{
+			flags		= _flags;
+			interested	= random.nextBoolean();
+			choked		= random.nextBoolean();
+			stats		= SwarmSimulator.stub( PEPeerStats.class, new BenchPeerStats( random.nextInt( 1024*1024 )));
+		}
+
+		public BitFlags
+		getAvailable()
+		{
+			return( flags );
+		}
+
+		public boolean
+		isSeed()
+		{
+			return( false );
+		}
+
+		public boolean
+		isInterested()
+		{
+			return( interested );
+		}
+
+		public boolean
+		isChokedByMe()
+		{
+			return( choked );
+		}
+
+		public PEPeerStats
+		getStats()
+		{
+			return( stats );
+		}
+
+		public Integer
+		getPercentDoneInThousandNotation()
+		{
+			return( PERCENT_DONE );
+		}
+	}
+
+	public static class
+	BenchPeerStats
+	{
+			// boxed once, as the proxy would box each call, so that the alloc check only sees
+			// what the scorer allocates
+
+		private final Long	rate;
+
+		protected
+		BenchPeerStats(
+			long	_rate )
+		{
+			rate	= _rate;
+		}
+
+		public Long
+		getEstimatedDownloadRateOfPeer()
+		{
+			return( rate );
+		}
+	}
+
+	public static class
+	BenchPluginPeer
+	{
+		private PeerListener2	listener;
+
+		public void
+		addListener(
+			PeerListener2	l )
+		{
+			listener = l;
+		}
+
+		public void
+		removeListener(
+			PeerListener2	l )
+		{
+			listener = null;
+		}
+
+			// bitfield only arrives with the availability event after the peer is added
+
+		public boolean[]
+		getAvailable()
+		{
+			return( null );
+		}
+	}
+
+	public static class
+	BenchCullPeer
+	{
+		private final boolean		seed;
+		private final boolean		choked;
+		private final String		ip;
+		private final PeerStats		stats;
+
+		protected
+		BenchCullPeer(
+			boolean		_seed,
+			Random		random )
+		{
+			seed	= _seed;
+			choked	= random.nextBoolean();
+			ip		= randomAddress( random );
+			stats	= SwarmSimulator.stub( PeerStats.class, new BenchCullPeerStats( random ));
+		}
+
+		public boolean
+		isSeed()
+		{
+			return( seed );
+		}
+
+		public boolean
+		isChoked()
+		{
+			return( choked );
+		}
+
+		public String
+		getIp()
+		{
+			return( ip );
+		}
+
+		public PeerStats
+		getStats()
+		{
+			return( stats );
+		}
+	}
+
+	public static class
+	BenchCullPeerStats
+	{
+		private final long	received;
+		private final int	rate;
+
+		protected
+		BenchCullPeerStats(
+			Random	random )
+		{
+			received	= random.nextInt( Integer.MAX_VALUE );
+			rate		= random.nextInt( 1024*1024 );
+		}
+
+		public long
+		getTotalReceived()
+		{
+			return( received );
+		}
+
+		public int
+		getDownloadAverage()
+		{
+			return( rate );
+		}
+	}
+
+	public static class
+	BenchCullPeerManager
+	{
+		private final Peer[]			peers;
+		private final PeerManagerStats	stats;
+
+		protected
+		BenchCullPeerManager(
+			Peer[]		_peers,
+			final int	seeds )
+		{
+			peers	= _peers;
+			stats	= SwarmSimulator.stub( PeerManagerStats.class, new BenchCullPeerManagerStats( seeds ));
+		}
+
+		public PeerManagerStats
+		getStats()
+		{
+			return( stats );
+		}
+
+		public Peer[]
+		getPeers()
+		{
+			return( peers );
+		}
+
+		public void
+		removePeer(
+			Peer	peer )
+		{
+				// left connected so every pass has the same work
+		}
+	}
+
+	public static class
+	BenchCullPeerManagerStats
+	{
+		private final int	seeds;
+
+		protected
+		BenchCullPeerManagerStats(
+			int		_seeds )
+		{
+			seeds	= _seeds;
+		}
+
+		public int
+		getConnectedSeeds()
+		{
+			return( seeds );
+		}
+	}
+
+	public static class
+	BenchDownload
+	{
+		private final String	name;
+		private final Torrent	torrent;
+		private final boolean	enabled;
+
+		protected
+		BenchDownload(
+			String		_name,
+			int			pieces,
+			boolean		_enabled )
+		{
+			name	= _name;
+			enabled	= _enabled;
+			torrent	= SwarmSimulator.stub( Torrent.class, new BenchTorrent( name, pieces ));
+		}
+
+		public String
+		getName()
+		{
+			return( name );
+		}
+
+		public Torrent
+		getTorrent()
+		{
+			return( torrent );
+		}
+
+		public boolean
+		getBooleanAttribute(
+			TorrentAttribute	attribute )
+		{
+			return( enabled );
+		}
+
+		public void
+		setBooleanAttribute(
+			TorrentAttribute	attribute,
+			boolean				value )
+		{
+		}
+
+		public void
+		addPeerListener(
+			DownloadPeerListener	listener )
+		{
+		}
+
+		public void
+		removePeerListener(
+			DownloadPeerListener	listener )
+		{
+		}
+
+		public String
+		getAttribute(
+			TorrentAttribute	attribute )
+		{
+			return( null );
+		}
+
+		public String
+		toString()
+		{
+			return( name );
+		}
+	}
+
+	public static class
+	BenchTorrent
+	{
+		private final String	name;
+		private final int		pieces;
+		private final URL		announce_url;
+
+		protected
+		BenchTorrent(
+			String		_name,
+			int			_pieces )
+		{
+			name	= _name;
+			pieces	= _pieces;
+
+				// spread over a few trackers as the plugin aggregates per tracker host
+
+			try{
+				announce_url = new URL( "http://tracker" + (( name.hashCode() & 0x7fffffff ) % 5 ) + ".example.com/announce" );
+
+			}catch( MalformedURLException e ){
+
+				throw( new RuntimeException( e ));
+			}
+		}
+
+		public URL
+		getAnnounceURL()
+		{
+			return( announce_url );
+		}
+
+		public long
+		getPieceCount()
+		{
+			return( pieces );
+		}
+
+		public byte[]
+		getHash()
+		{
+			return( name.getBytes());
+		}
+	}
+
+	public static class
+	BenchLocationProvider
+	{
+			// a cheap deterministic stand-in, a real provider costs far more per lookup
+
+		public String
+		getISO3166CodeForIP(
+			java.net.InetAddress	address )
+		{
+			return( COUNTRIES[( address.hashCode() & 0x7fffffff ) % COUNTRIES.length] );
+		}
+
+		public boolean
+		isDestroyed()
+		{
+			return( false );
+		}
+	}
+}
@@ -0,0 +1,1086 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.biglybt.core.disk.DiskManager;
+import com.biglybt.core.disk.DiskManagerPiece;
+import com.biglybt.core.peer.PEPeer;
+import com.biglybt.core.peer.PEPeerManager;
+import com.biglybt.core.peer.PEPiece;
+import com.biglybt.pif.download.Download;
+import com.biglybt.pif.logging.LoggerChannel;
+import com.biglybt.pif.peers.Peer;
+import com.biglybt.pif.peers.PeerEvent;
+import com.biglybt.pif.peers.PeerListener2;
+import com.biglybt.pif.peers.PeerManagerEvent;
+import com.biglybt.pif.torrent.TorrentAttribute;
+import com.biglybt.pif.torrent.TorrentManager;
+
+	/**
+	 * Behaviour checks for plugin logic that can be driven without a core, the core objects being
+	 * the simulator's proxies. Each prints what it found and OK or FAILED, the exit status is 1 if
+	 * any failed:
+	 *
+	 * 		restart		a rate limit the plugin set is still recognised as its own by the state
+	 * 					built after a restart, so is updated or cleared rather than left in place
+	 * 		avail0		finding the rarest pieces in a swarm where most pieces have no availability
+	 * 					only looks at the available ones
+	 * 		uniform		the rarest and random strategies pick each eligible piece equally often, with
+	 * 					eligible pieces in runs after gaps of differing length and some targets
+	 * 		interest	peers added before their bitfields are counted once it arrives, even if the
+	 * 					availability event for it was missed
+	 * 		ranges		an address in nested ranges gets the country of the most specific, and ranges
+	 * 					that overlap without nesting fail the load
+	 * 		budget		the download budget's spend is carried over a restart and still ages out
+	 * 		metrics		a metrics.csv with other columns is moved aside and a new one started
+	 * 		eventlog	a message that fails to format only loses itself, not the rest of its batch,
+	 * 					the caller's arguments aren't rewritten and destroy stops the writer
+	 *
+	 * 		java org.parg.biglybt.plugins.maxshareratio.PluginChecks [name=value ...]
+	 */
+
+public class
+PluginChecks
+{
+	private static final String[][]	DEFAULTS = {
+		{ "checks",		"restart,avail0,uniform,interest,ranges,budget,metrics,eventlog" },
+		{ "seed",		"1" },
+	};
+
+	private static final long		TIME			= 1000000000000L;
+	private static final int		PIECES			= 100000;
+	private static final int		AVAILABLE		= 1000;
+	private static final int		MAX_AVAIL		= 5;
+	private static final int		SELECTIONS		= 20000;
+
+	public static void
+	main(
+		String[]	args )
+
+		throws Exception
+	{
+		Map<String,String>	config = new LinkedHashMap<String,String>();
+
+		for ( String[] entry: DEFAULTS ){
+
+			config.put( entry[0], entry[1] );
+		}
+
+		for ( String arg: args ){
+
+			int	pos = arg.indexOf( '=' );
+
+			if ( pos == -1 || !config.containsKey( arg.substring( 0, pos ))){
+
+				System.out.println( "usage: PluginChecks [name=value ...], defaults:" );
+
+				for ( Map.Entry<String,String> entry: config.entrySet()){
+
+					System.out.println( "    " + entry.getKey() + "=" + entry.getValue());
+				}
+
+				return;
+			}
+
+			config.put( arg.substring( 0, pos ), arg.substring( pos + 1 ));
+		}
+
+		if ( !new PluginChecks( config ).run( config.get( "checks" ).split( "," ))){
+
+			System.exit( 1 );
+		}
+	}
+
+	private final long		seed;
+
+	private final SimulatedClock	clock	= new SimulatedClock( TIME );
+
+	private
+	PluginChecks(
+		Map<String,String>	config )
+	{
+		seed	= Long.parseLong( config.get( "seed" ));
+	}
+
+		/**
+		 * @return false if a check failed
+		 */
+
+	private boolean
+	run(
+		String[]	checks )
+
+		throws Exception
+	{
+		boolean	ok = true;
+
+		for ( String check: checks ){
+
+			check = check.trim();
+
+			if ( check.equals( "restart" )){
+
+				ok &= checkRestart();
+
+			}else if ( check.equals( "avail0" )){
+
+				ok &= checkUnavailable();
+
+			}else if ( check.equals( "uniform" )){
+
+				ok &= checkUniform();
+
+			}else if ( check.equals( "interest" )){
+
+				ok &= checkInterest();
+
+			}else if ( check.equals( "ranges" )){
+
+				ok &= checkRanges();
+
+			}else if ( check.equals( "budget" )){
+
+				ok &= checkBudget();
+
+			}else if ( check.equals( "metrics" )){
+
+				ok &= checkMetricsCSV();
+
+			}else if ( check.equals( "eventlog" )){
+
+				ok &= checkEventLog();
+
+			}else{
+
+				System.out.println( "Unknown check '" + check + "'" );
+
+				ok = false;
+			}
+		}
+
+		return( ok );
+	}
+
+	private boolean
+	report(
+		String		name,
+		boolean		passed,
+		String		found )
+	{
+		System.out.println( String.format( "%-40s %-30s %s", name, found, passed?"OK":"FAILED" ));
+
+		return( passed );
+	}
+
+		/**
+		 * A new plugin instance over the same downloads and attributes stands in for a restart
+		 */
+
+	private boolean
+	checkRestart()
+	{
+		CheckTorrentManager	torrent_manager = new CheckTorrentManager();
+
+		TorrentManager		tm = SwarmSimulator.stub( TorrentManager.class, torrent_manager );
+
+		CheckDownload		parked		= new CheckDownload( "parked" );
+		CheckDownload		capped		= new CheckDownload( "capped" );
+		CheckDownload		user		= new CheckDownload( "user" );
+
+		Download[]	downloads = {
+			SwarmSimulator.stub( Download.class, parked ),
+			SwarmSimulator.stub( Download.class, capped ),
+			SwarmSimulator.stub( Download.class, user ),
+		};
+
+		CheckPlugin	plugin = new CheckPlugin( clock, tm );
+
+		for ( Download download: downloads ){
+
+			plugin.applyRateLimit( download, plugin.getDownloadState( download ), UploadAllocator.PARKED_RATE );
+		}
+
+		boolean	ok = report( "restart applied", parked.rate_limit == UploadAllocator.PARKED_RATE, "limit=" + parked.rate_limit );
+
+		user.rate_limit = 1000;
+
+		plugin = new CheckPlugin( clock, tm );
+
+		plugin.applyRateLimit( downloads[0], plugin.getDownloadState( downloads[0] ), 0 );
+		plugin.applyRateLimit( downloads[1], plugin.getDownloadState( downloads[1] ), 5000 );
+		plugin.applyRateLimit( downloads[2], plugin.getDownloadState( downloads[2] ), 0 );
+
+		ok &= report( "restart cleared", parked.rate_limit == 0, "limit=" + parked.rate_limit );
+		ok &= report( "restart updated", capped.rate_limit == 5000, "limit=" + capped.rate_limit );
+		ok &= report( "restart user limit kept", user.rate_limit == 1000, "limit=" + user.rate_limit );
+
+		plugin = new CheckPlugin( clock, tm );
+
+		plugin.applyRateLimit( downloads[1], plugin.getDownloadState( downloads[1] ), 0 );
+
+		ok &= report( "restart cleared after update", capped.rate_limit == 0, "limit=" + capped.rate_limit );
+
+		return( ok );
+	}
+
+		/**
+		 * A new swarm: AVAILABLE pieces spread over availability 1-5, the rest with none
+		 */
+
+	private boolean
+	checkUnavailable()
+	{
+		Random	random = new Random( seed );
+
+		int[]	avails = new int[PIECES];
+
+		for ( int i=0;i<AVAILABLE;i++ ){
+
+			avails[random.nextInt( PIECES )] = 1 + random.nextInt( 5 );
+		}
+
+		int	available	= 0;
+		int	rarest		= 0;
+
+		for ( int avail: avails ){
+
+			if ( avail > 0 ){
+
+				available++;
+			}
+
+			if ( avail == 1 ){
+
+				rarest++;
+			}
+		}
+
+		PieceAvailabilityIndex	index = new PieceAvailabilityIndex( createPeerManager( PIECES ), PIECES, clock );
+
+		boolean	ok = true;
+
+		for ( int i=0;i<2;i++ ){
+
+			int	found	= index.findRarest( avails, 10 );
+			int	visited	= index.getLastVisited();
+
+			ok &= report( "avail0 rarest " + ( i==0?"after resync":"steady" ), found == rarest && visited == rarest, "found=" + found + ", visited=" + visited );
+		}
+
+		int	found	= index.findCandidates( avails, 10, AVAILABLE*2 );
+		int	visited	= index.getLastVisited();
+
+		ok &= report( "avail0 candidates", found == available && visited == available, "found=" + found + ", visited=" + visited );
+
+		return( ok );
+	}
+
+		/**
+		 * Each strategy against a layout where a scan from a random position would favour the piece
+		 * after a long run of ineligible ones: runs of eligible pieces after gaps of 1 to max_gap
+		 * pieces that either have no availability or too much, with every 7th eligible piece a target
+		 */
+
+	private boolean
+	checkUniform()
+	{
+		boolean	ok = true;
+
+			// rarest: the gaps are the other buckets, all the eligible pieces having availability 1
+
+		ok &= checkUniform( "uniform rarest", new RarestPieceStrategy(), 1000, 10, 1 );
+
+			// random over availability 1-MAX_AVAIL, densely enough that draws find them and so sparsely
+			// that it mostly falls back to collecting them
+
+		ok &= checkUniform( "uniform random", new RandomPieceStrategy(), PIECES, 2000, MAX_AVAIL );
+		ok &= checkUniform( "uniform random sparse", new RandomPieceStrategy(), PIECES, 20000, MAX_AVAIL );
+
+		return( ok );
+	}
+
+	private boolean
+	checkUniform(
+		String					name,
+		PieceSelectionStrategy	strategy,
+		int						num_pieces,
+		int						max_gap,
+		int						max_avail )
+	{
+		Random	random = new Random( seed );
+
+		int[]		avails		= new int[num_pieces];
+		boolean[]	targets		= new boolean[num_pieces];
+		boolean[]	eligible	= new boolean[num_pieces];
+
+		int	num_eligible	= 0;
+		int	piece			= 0;
+
+		while( piece < num_pieces ){
+
+			int	gap = 1 + random.nextInt( max_gap );
+
+			for ( int i=0;i<gap&&piece<num_pieces;i++ ){
+
+				avails[piece++] = random.nextBoolean()?0:( MAX_AVAIL + 1 );
+			}
+
+			int	run = 1 + random.nextInt( 5 );
+
+			for ( int i=0;i<run&&piece<num_pieces;i++ ){
+
+				avails[piece] = 1 + random.nextInt( max_avail );
+
+				if ( piece % 7 == 0 ){
+
+					targets[piece] = true;
+
+				}else{
+
+					eligible[piece] = true;
+
+					num_eligible++;
+				}
+
+				piece++;
+			}
+		}
+
+		CheckContext	context = new CheckContext( avails, MAX_AVAIL, new PieceAvailabilityIndex( createPeerManager( num_pieces ), num_pieces, clock ), targets, seed );
+
+		int[]	counts	= new int[num_pieces];
+		int		wrong	= 0;
+
+		for ( int i=0;i<SELECTIONS;i++ ){
+
+			int	selected = strategy.selectPiece( context );
+
+			if ( selected == -1 || !eligible[selected] ){
+
+				wrong++;
+
+			}else{
+
+				counts[selected]++;
+			}
+		}
+
+			// chi-squared against uniform, passing within 5 deviations of its mean
+
+		double	expected	= (double)SELECTIONS/num_eligible;
+		double	chi2		= 0;
+
+		for ( int i=0;i<num_pieces;i++ ){
+
+			if ( eligible[i] ){
+
+				chi2 += ( counts[i] - expected )*( counts[i] - expected )/expected;
+			}
+		}
+
+		int		df		= num_eligible - 1;
+		double	limit	= df + 5*Math.sqrt( 2*df );
+
+		return( report( name, wrong == 0 && chi2 < limit, String.format( "eligible=%d, wrong=%d, chi2=%.0f (< %.0f)", num_eligible, wrong, chi2, limit )));
+	}
+
+		/**
+		 * Peers added before their bitfields: one whose availability event follows, one whose
+		 * event was missed and is picked up on a later event
+		 */
+
+	private boolean
+	checkInterest()
+	{
+		int		num_pieces = 100;
+
+		PieceInterestIndex	index = new PieceInterestIndex( new PieceAvailabilityIndex( createPeerManager( num_pieces ), num_pieces, clock ));
+
+		CheckPeer	later	= new CheckPeer();
+		CheckPeer	missed	= new CheckPeer();
+		CheckPeer	known	= new CheckPeer();
+
+		Peer[]	peers = {
+			SwarmSimulator.stub( Peer.class, later ),
+			SwarmSimulator.stub( Peer.class, missed ),
+			SwarmSimulator.stub( Peer.class, known ),
+		};
+
+		index.eventOccurred( createEvent( PeerManagerEvent.class, PeerManagerEvent.ET_PEER_ADDED, peers[0], null ));
+		index.eventOccurred( createEvent( PeerManagerEvent.class, PeerManagerEvent.ET_PEER_ADDED, peers[1], null ));
+
+		boolean	ok = report( "interest added without bitfield", index.getBitfieldPeerCount() == 0, "peers=" + index.getBitfieldPeerCount());
+
+		later.available = new boolean[num_pieces];
+
+		later.fire( createEvent( PeerEvent.class, PeerEvent.ET_ADD_AVAILABILITY, null, later.available ));
+
+		ok &= report( "interest bitfield later", index.getBitfieldPeerCount() == 1, "peers=" + index.getBitfieldPeerCount());
+
+		missed.available	= new boolean[num_pieces];
+		known.available		= new boolean[num_pieces];
+
+		index.eventOccurred( createEvent( PeerManagerEvent.class, PeerManagerEvent.ET_PEER_ADDED, peers[2], null ));
+
+		ok &= report( "interest bitfield event missed", index.getBitfieldPeerCount() == 3, "peers=" + index.getBitfieldPeerCount());
+
+		index.eventOccurred( createEvent( PeerManagerEvent.class, PeerManagerEvent.ET_PEER_REMOVED, peers[1], null ));
+
+		ok &= report( "interest removed", index.getBitfieldPeerCount() == 2 && missed.listeners.isEmpty(), "peers=" + index.getBitfieldPeerCount());
+
+		return( ok );
+	}
+
+	private static <T> T
+	createEvent(
+		Class<T>	type,
+		int			event_type,
+		Peer		peer,
+		Object		data )
+	{
+		return( SwarmSimulator.stub( type, new CheckEvent( event_type, peer, data )));
+	}
+
+		/**
+		 * Nested ranges, as CIDRs and start/end, each of which must win over those containing it,
+		 * and a file with ranges that overlap without nesting which must fail to load
+		 */
+
+	private boolean
+	checkRanges()
+
+		throws Exception
+	{
+		String[]	lines = {
+			"10.0.0.0/8,US",
+			"10.1.0.0/16,GB",
+			"10.1.2.0,10.1.2.255,DE",
+			"10.1.2.0/25,FR",
+			"11.0.0.0/8,US",
+			"2001:db8::/32,US",
+			"2001:db8:1::/48,GB",
+			"ffff::/16,FR",
+			"ffff:ffff:ffff:ffff::/64,DE",
+		};
+
+		String[][]	lookups = {
+			{ "10.0.0.1",				"US" },
+			{ "10.1.0.1",				"GB" },
+			{ "10.1.2.1",				"FR" },
+			{ "10.1.2.200",				"DE" },
+			{ "10.1.3.1",				"GB" },
+			{ "10.255.255.255",			"US" },
+			{ "11.5.0.0",				"US" },
+			{ "12.0.0.0",				null },
+			{ "2001:db8:0:1::1",		"US" },
+			{ "2001:db8:1:5::1",		"GB" },
+			{ "2001:db8:2::1",			"US" },
+			{ "ffff:1::1",				"FR" },
+			{ "ffff:ffff:ffff:ffff::1",	"DE" },
+		};
+
+		CountryRangeTable	table = CountryRangeTable.load( writeRanges( lines ));
+
+		int		wrong	= 0;
+		String	first	= "";
+
+		for ( String[] lookup: lookups ){
+
+			String	cc = CountrySet.decode( table.lookup( CountryCache.parseLiteral( lookup[0] )));
+
+			if ( cc==null?lookup[1]!=null:!cc.equals( lookup[1] )){
+
+				if ( wrong++ == 0 ){
+
+					first = ", " + lookup[0] + "=" + cc;
+				}
+			}
+		}
+
+		boolean	ok = report( "ranges nested", wrong == 0, "wrong=" + wrong + first );
+
+		String	error = null;
+
+		try{
+			CountryRangeTable.load( writeRanges( new String[]{ "10.0.0.0,10.0.1.255,US", "10.0.1.0,10.0.2.255,GB" }));
+
+		}catch( IOException e ){
+
+			error = e.getMessage();
+		}
+
+		ok &= report( "ranges partial overlap", error != null, error==null?"loaded":"rejected" );
+
+		return( ok );
+	}
+
+		/**
+		 * Spend carried over a restart by a new budget importing the old one's export, and the
+		 * imported hours still ageing out
+		 */
+
+	private boolean
+	checkBudget()
+	{
+		SimulatedClock	budget_clock = new SimulatedClock( TIME );
+
+		DownloadBudget	budget = new DownloadBudget( budget_clock );
+
+		Object	owner = new Object();
+
+		long	limit = 100*1024*1024;
+
+		for ( int hour=0;hour<3;hour++ ){
+
+			budget_clock.setTime( TIME + hour*60*60*1000L );
+
+			budget.request( owner, 1024*1024, 1, limit );
+		}
+
+		String	saved = budget.exportSpent();
+
+		budget_clock.setTime( TIME + 3*60*60*1000L );
+
+		DownloadBudget	restarted = new DownloadBudget( budget_clock );
+
+		restarted.importSpent( saved );
+
+		boolean	ok = report( "budget restart", restarted.getSpent() == 3*1024*1024, "spent=" + restarted.getSpent());
+
+		budget_clock.setTime( TIME + 25*60*60*1000L );
+
+		ok &= report( "budget restart aged", restarted.getSpent() == 1024*1024, "spent=" + restarted.getSpent());
+
+		restarted.importSpent( "garbage" );
+
+		ok &= report( "budget malformed ignored", restarted.getSpent() == 1024*1024, "spent=" + restarted.getSpent());
+
+		return( ok );
+	}
+
+		/**
+		 * A metrics.csv written with fewer counters must be moved aside rather than appended to
+		 */
+
+	private boolean
+	checkMetricsCSV()
+
+		throws Exception
+	{
+		File	dir = File.createTempFile( "metrics", "" );
+
+		dir.delete();
+		dir.mkdir();
+
+		File	file = new File( dir, "metrics.csv" );
+
+		PrintWriter	pw = new PrintWriter( new FileWriter( file ));
+
+		try{
+			pw.println( "time,old_counter" );
+			pw.println( "1,2" );
+
+		}finally{
+
+			pw.close();
+		}
+
+		PluginMetrics	metrics = new PluginMetrics();
+
+		metrics.exportCSV( file );
+		metrics.exportCSV( file );
+
+		File[]	files = dir.listFiles();
+
+		BufferedReader	reader = new BufferedReader( new FileReader( file ));
+
+		int		lines = 0;
+		String	header;
+
+		try{
+			header = reader.readLine();
+
+			while( reader.readLine() != null ){
+
+				lines++;
+			}
+		}finally{
+
+			reader.close();
+		}
+
+		for ( File f: files ){
+
+			f.delete();
+		}
+
+		dir.delete();
+
+		return( report( "metrics csv columns changed", files.length == 2 && header.startsWith( "time," + MetricCounters.NAMES[0] ) && lines == 2, "files=" + files.length + ", lines=" + lines ));
+	}
+
+	private File
+	writeRanges(
+		String[]	lines )
+
+		throws IOException
+	{
+		File	file = File.createTempFile( "ranges", ".csv" );
+
+		file.deleteOnExit();
+
+		PrintWriter	pw = new PrintWriter( new FileWriter( file ));
+
+		try{
+			for ( String line: lines ){
+
+				pw.println( line );
+			}
+		}finally{
+
+			pw.close();
+		}
+
+		return( file );
+	}
+
+		/**
+		 * A batch with a bad format in the middle, held on the log's monitor so the writer takes
+		 * the three messages together
+		 */
+
+	private boolean
+	checkEventLog()
+
+		throws Exception
+	{
+		CheckLogger		logger = new CheckLogger();
+
+		EventLog		log = new EventLog( SwarmSimulator.stub( LoggerChannel.class, logger ), clock );
+
+		Download		download = SwarmSimulator.stub( Download.class, new CheckDownload( "subject" ));
+
+		Object[]		format_args = { download };
+
+		synchronized( log ){
+
+			log.log( EventLog.CAT_GENERAL, "before" );
+			log.log( EventLog.CAT_GENERAL, "bad %d", "x" );
+			log.log( EventLog.CAT_GENERAL, "after %s", format_args );
+		}
+
+		List<String>	messages = logger.waitFor( 2 );
+
+		boolean	ok = report( "eventlog bad format", messages.size() == 2 && messages.get( 1 ).equals( "after subject" ), "logged=" + messages );
+
+		ok &= report( "eventlog args kept", format_args[0] == download, "arg=" + format_args[0] );
+
+		log.destroy();
+
+		boolean	stopped = false;
+
+		for ( int i=0;i<50 && !stopped;i++ ){
+
+			stopped = true;
+
+			for ( Thread thread: Thread.getAllStackTraces().keySet()){
+
+				if ( thread.getName().equals( "MaxShareRatio:log" )){
+
+					stopped = false;
+				}
+			}
+
+			if ( !stopped ){
+
+				Thread.sleep( 100 );
+			}
+		}
+
+		ok &= report( "eventlog destroyed", stopped, "writer " + ( stopped?"stopped":"running" ));
+
+		return( ok );
+	}
+
+	private PEPeerManager
+	createPeerManager(
+		int		num_pieces )
+	{
+		DiskManagerPiece[]	pieces	= new DiskManagerPiece[num_pieces];
+		boolean[]			done	= new boolean[num_pieces];
+
+		for ( int i=0;i<num_pieces;i++ ){
+
+			pieces[i] = SwarmSimulator.stub( DiskManagerPiece.class, new HotPathBenchmark.BenchPiece( done, i ));
+		}
+
+		return( SwarmSimulator.stub( PEPeerManager.class, new CheckPeerManager( pieces )));
+	}
+
+	private static class
+	CheckPlugin
+		extends MaxShareRatioPlugin
+	{
+		private
+		CheckPlugin(
+			ShareClock		_clock,
+			TorrentManager	torrent_manager )
+		{
+			super( _clock );
+
+			createAttributes( torrent_manager );
+
+			registerStrategy( new RarestPieceStrategy());
+		}
+
+		protected boolean
+		isEarlyJoinEnabled()
+		{
+			return( false );
+		}
+
+		protected void
+		log(
+			Download	dl,
+			String		format,
+			Object...	format_args )
+		{
+		}
+	}
+
+	private static class
+	CheckPeer
+	{
+		private final List<PeerListener2>	listeners = new ArrayList<PeerListener2>();
+
+		private boolean[]	available;
+
+		public void
+		addListener(
+			PeerListener2	listener )
+		{
+			listeners.add( listener );
+		}
+
+		public void
+		removeListener(
+			PeerListener2	listener )
+		{
+			listeners.remove( listener );
+		}
+
+		public boolean[]
+		getAvailable()
+		{
+			return( available );
+		}
+
+		private void
+		fire(
+			PeerEvent	event )
+		{
+			for ( PeerListener2 listener: new ArrayList<PeerListener2>( listeners )){
+
+				listener.eventOccurred( event );
+			}
+		}
+	}
+
+	private static class
+	CheckEvent
+	{
+		private final int		type;
+		private final Peer		peer;
+		private final Object	data;
+
+		private
+		CheckEvent(
+			int			_type,
+			Peer		_peer,
+			Object		_data )
+		{
+			type	= _type;
+			peer	= _peer;
+			data	= _data;
+		}
+
+		public int
+		getType()
+		{
+			return( type );
+		}
+
+		public Peer
+		getPeer()
+		{
+			return( peer );
+		}
+
+		public Object
+		getData()
+		{
+			return( data );
+		}
+	}
+
+	private static class
+	CheckLogger
+	{
+		private final List<String>	messages = new ArrayList<String>();
+
+		public synchronized void
+		log(
+			String		str )
+		{
+			messages.add( str );
+
+			notifyAll();
+		}
+
+			/**
+			 * @return the messages logged once there are num of them, or after 5 seconds
+			 */
+
+		private synchronized List<String>
+		waitFor(
+			int		num )
+
+			throws InterruptedException
+		{
+			long	end = System.currentTimeMillis() + 5000;
+
+			while( messages.size() < num ){
+
+				long	wait = end - System.currentTimeMillis();
+
+				if ( wait <= 0 ){
+
+					break;
+				}
+
+				wait( wait );
+			}
+
+			return( new ArrayList<String>( messages ));
+		}
+	}
+
+	private static class
+	CheckContext
+		implements PieceSelectionContext
+	{
+		private final int[]						avails;
+		private final int						max_avail;
+		private final PieceAvailabilityIndex	index;
+		private final boolean[]					targets;
+		private final Random					random;
+
+		private
+		CheckContext(
+			int[]					_avails,
+			int						_max_avail,
+			PieceAvailabilityIndex	_index,
+			boolean[]				_targets,
+			long					seed )
+		{
+			avails		= _avails;
+			max_avail	= _max_avail;
+			index		= _index;
+			targets		= _targets;
+			random		= new Random( seed );
+		}
+
+		public int[]
+		getAvailability()
+		{
+			return( avails );
+		}
+
+		public int
+		getMaxAvailability()
+		{
+			return( max_avail );
+		}
+
+		public PieceAvailabilityIndex
+		getAvailabilityIndex()
+		{
+			return( index );
+		}
+
+		public List<PEPeer>
+		getPeers()
+		{
+			return( new ArrayList<PEPeer>());
+		}
+
+		public boolean
+		isTarget(
+			int		piece )
+		{
+			return( targets[piece] );
+		}
+
+		public Random
+		getRandom()
+		{
+			return( random );
+		}
+
+		public YieldScorer
+		getYieldScorer()
+		{
+			return( null );
+		}
+
+		public void
+		setScore(
+			double	score )
+		{
+		}
+	}
+
+		/**
+		 * Hands out one attribute per name, as the core does, so a new plugin instance sees the
+		 * values the last one stored
+		 */
+
+	public static class
+	CheckTorrentManager
+	{
+		private final Map<String,TorrentAttribute>	attributes = new HashMap<String,TorrentAttribute>();
+
+		public TorrentAttribute
+		getPluginAttribute(
+			String		name )
+		{
+			TorrentAttribute	attribute = attributes.get( name );
+
+			if ( attribute == null ){
+
+				attribute = SwarmSimulator.stub( TorrentAttribute.class, name );
+
+				attributes.put( name, attribute );
+			}
+
+			return( attribute );
+		}
+	}
+
+	public static class
+	CheckPeerManager
+	{
+		private final DiskManager	disk_manager;
+		private final PEPiece[]		started;
+
+		protected
+		CheckPeerManager(
+			DiskManagerPiece[]	pieces )
+		{
+			disk_manager	= SwarmSimulator.stub( DiskManager.class, new HotPathBenchmark.BenchDiskManager( pieces ));
+			started			= new PEPiece[pieces.length];
+		}
+
+		public DiskManager
+		getDiskManager()
+		{
+			return( disk_manager );
+		}
+
+		public PEPiece
+		getPiece(
+			int		piece )
+		{
+			return( started[piece] );
+		}
+
+		public PEPiece[]
+		getPieces()
+		{
+			return( started );
+		}
+	}
+
+	public static class
+	CheckDownload
+	{
+		private final String	name;
+
+		private final Map<TorrentAttribute,Object>	attributes = new HashMap<TorrentAttribute,Object>();
+
+		private int		rate_limit;
+
+		protected
+		CheckDownload(
+			String		_name )
+		{
+			name	= _name;
+		}
+
+		public String
+		getName()
+		{
+			return( name );
+		}
+
+		public boolean
+		getBooleanAttribute(
+			TorrentAttribute	attribute )
+		{
+			return( Boolean.TRUE.equals( attributes.get( attribute )));
+		}
+
+		public void
+		setBooleanAttribute(
+			TorrentAttribute	attribute,
+			boolean				value )
+		{
+			attributes.put( attribute, value );
+		}
+
+		public String
+		getAttribute(
+			TorrentAttribute	attribute )
+		{
+			return((String)attributes.get( attribute ));
+		}
+
+		public void
+		setAttribute(
+			TorrentAttribute	attribute,
+			String				value )
+		{
+			attributes.put( attribute, value );
+		}
+
+		public int
+		getUploadRateLimitBytesPerSecond()
+		{
+			return( rate_limit );
+		}
+
+		public void
+		setUploadRateLimitBytesPerSecond(
+			int		limit )
+		{
+			rate_limit = limit;
+		}
+
+		public String
+		toString()
+		{
+			return( name );
+		}
+	}
+}
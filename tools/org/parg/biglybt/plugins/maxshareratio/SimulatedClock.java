@@ -0,0 +1,38 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+	/**
+	 * Clock for the swarm simulator and the benchmarks, time only moves when set
+	 */
+
+public class
+SimulatedClock
+	extends ShareClock
+{
+	private volatile long	time;
+
+	protected
+	SimulatedClock(
+		long	_time )
+	{
+		time	= _time;
+	}
+
+	protected void
+	setTime(
+		long	_time )
+	{
+		time	= _time;
+	}
+
+	protected long
+	getCurrentTime()
+	{
+		return( time );
+	}
+
+	protected long
+	getMonotonousTime()
+	{
+		return( time );
+	}
+}
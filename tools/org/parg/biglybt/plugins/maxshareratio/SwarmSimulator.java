@@ -0,0 +1,1292 @@
+package org.parg.biglybt.plugins.maxshareratio;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.biglybt.core.disk.DiskManager;
+import com.biglybt.core.disk.DiskManagerPiece;
+import com.biglybt.core.peer.PEPeer;
+import com.biglybt.core.peer.PEPeerManager;
+import com.biglybt.core.peer.PEPeerManagerStats;
+import com.biglybt.core.peer.PEPeerStats;
+import com.biglybt.core.peer.PEPiece;
+import com.biglybt.core.peermanager.piecepicker.PiecePicker;
+import com.biglybt.core.peermanager.piecepicker.util.BitFlags;
+import com.biglybt.pif.download.Download;
+import com.biglybt.pif.peers.Peer;
+import com.biglybt.pif.peers.PeerEvent;
+import com.biglybt.pif.peers.PeerListener2;
+import com.biglybt.pif.peers.PeerManagerEvent;
+import com.biglybt.pif.torrent.Torrent;
+import com.biglybt.pif.torrent.TorrentAttribute;
+
+	/**
+	 * Offline swarm simulator for evaluating piece selection without joining a live swarm.
+	 *
+	 * The real SharePriorityProvider, availability/interest indexes and strategies are driven
+	 * against a synthetic swarm on simulated time, one tick per second: the provider is asked for
+	 * priorities as the picker would, we download its targets, and synthetic leechers fetch pieces
+	 * rarest-first (from a sample of the pieces they lack) from whoever holds them, including us
+	 * when we have the piece and have them unchoked. The stats timer's work that feeds selection -
+	 * the upload average and per-strategy transfer accounting - is replayed on the same clock.
+	 * The core objects are stubbed with proxies implementing just what the plugin calls.
+	 *
+	 * The swarm is capped at max_peers, all connected to us. Every torrent_hours a fresh torrent
+	 * is started so that long runs cover many swarm lifetimes. Everything random comes from the
+	 * one seed so a run can be reproduced exactly.
+	 *
+	 * 		java org.parg.biglybt.plugins.maxshareratio.SwarmSimulator [name=value ...]
+	 */
+
+public class
+SwarmSimulator
+{
+	private static final String[][]	DEFAULTS = {
+		{ "seed",						"1" },
+		{ "hours",						"1000" },
+		{ "torrent_hours",				"24" },
+		{ "pieces",						"2000" },
+		{ "piece_size",					"262144" },
+		{ "max_peers",					"200" },
+		{ "initial_seeds",				"5" },
+		{ "initial_leechers",			"30" },
+		{ "leecher_arrivals_per_hour",	"60" },
+		{ "seed_arrivals_per_hour",		"2" },
+		{ "leecher_aborts_per_hour",	"0.1" },
+		{ "seed_departures_per_hour",	"0.5" },
+		{ "seed_after_complete",		"0.3" },
+		{ "peer_up_min",				"16384" },
+		{ "peer_up_max",				"262144" },
+		{ "peer_down_min",				"65536" },
+		{ "peer_down_max",				"1048576" },
+		{ "our_up",						"524288" },
+		{ "our_down",					"2097152" },
+		{ "unchoke_slots",				"4" },
+		{ "strategy",					RarestPieceStrategy.ID },
+		{ "pipeline",					"true" },
+		{ "pipeline_depth",				"8" },
+		{ "budget_mb",					"0" },
+		{ "verbose",					"false" },
+	};
+
+	private static final long	START_TIME				= 1000000000000L;
+	private static final int	TICK_MILLIS				= 1000;
+	private static final int	PERIODIC_TICKS			= 10;
+	private static final int	UPLOAD_AVERAGE_TICKS	= 60;
+	private static final int	PIECE_SAMPLES			= 8;
+
+	public static void
+	main(
+		String[]	args )
+	{
+		Map<String,String>	config = new LinkedHashMap<String,String>();
+
+		for ( String[] entry: DEFAULTS ){
+
+			config.put( entry[0], entry[1] );
+		}
+
+		for ( String arg: args ){
+
+			int	pos = arg.indexOf( '=' );
+
+			if ( pos == -1 || !config.containsKey( arg.substring( 0, pos ))){
+
+				System.out.println( "usage: SwarmSimulator [name=value ...], defaults:" );
+
+				for ( Map.Entry<String,String> entry: config.entrySet()){
+
+					System.out.println( "    " + entry.getKey() + "=" + entry.getValue());
+				}
+
+				return;
+			}
+
+			config.put( arg.substring( 0, pos ), arg.substring( pos + 1 ));
+		}
+
+		new SwarmSimulator( config ).run();
+	}
+
+	private final Random	random;
+
+	private final long		hours;
+	private final long		torrent_hours;
+	private final int		num_pieces;
+	private final int		piece_size;
+	private final int		max_peers;
+	private final int		initial_seeds;
+	private final int		initial_leechers;
+	private final double	leecher_arrivals_per_hour;
+	private final double	seed_arrivals_per_hour;
+	private final double	leecher_aborts_per_hour;
+	private final double	seed_departures_per_hour;
+	private final double	seed_after_complete;
+	private final int		peer_up_min;
+	private final int		peer_up_max;
+	private final int		peer_down_min;
+	private final int		peer_down_max;
+	private final int		our_up;
+	private final int		our_down;
+	private final int		unchoke_slots;
+	private final String	strategy_id;
+	private final boolean	pipeline;
+	private final int		pipeline_depth;
+	private final long		budget_mb;
+	private final boolean	verbose;
+
+	private final SimulatedClock	clock	= new SimulatedClock( START_TIME );
+	private final SimulatedPlugin	plugin	= new SimulatedPlugin();
+
+	private final ThreadMXBean	thread_bean = ManagementFactory.getThreadMXBean();
+	private final boolean		cpu_time_supported;
+
+	private long	now;
+
+		// per torrent
+
+	private String					name;
+	private Download				download;
+	private PieceInterestIndex		interest_index;
+
+	private List<SimPeer>			peers;
+	private int[]					avails;
+	private boolean[]				done;
+	private int[]					progress;
+	private DiskManagerPiece[]		dm_pieces;
+	private final List<Integer>		active	= new ArrayList<Integer>();
+
+	private long[]					upload_window	= new long[UPLOAD_AVERAGE_TICKS];
+	private int						last_sent_tick;
+
+	private long					torrent_uploaded;
+	private long					torrent_downloaded;
+
+	private int						tick;
+
+		// totals
+
+	private long	total_uploaded;
+	private long	total_downloaded;
+	private long	update_calls;
+	private long	update_time;
+	private long	update_time_max;
+
+	private final PEPiece	in_progress_piece = stub( PEPiece.class, new Object());
+
+	private
+	SwarmSimulator(
+		Map<String,String>	config )
+	{
+		random	= new Random( Long.parseLong( config.get( "seed" )));
+
+		hours						= Long.parseLong( config.get( "hours" ));
+		torrent_hours				= Math.max( 1, Long.parseLong( config.get( "torrent_hours" )));
+		num_pieces					= Integer.parseInt( config.get( "pieces" ));
+		piece_size					= Integer.parseInt( config.get( "piece_size" ));
+		max_peers					= Integer.parseInt( config.get( "max_peers" ));
+		initial_seeds				= Integer.parseInt( config.get( "initial_seeds" ));
+		initial_leechers			= Integer.parseInt( config.get( "initial_leechers" ));
+		leecher_arrivals_per_hour	= Double.parseDouble( config.get( "leecher_arrivals_per_hour" ));
+		seed_arrivals_per_hour		= Double.parseDouble( config.get( "seed_arrivals_per_hour" ));
+		leecher_aborts_per_hour		= Double.parseDouble( config.get( "leecher_aborts_per_hour" ));
+		seed_departures_per_hour	= Double.parseDouble( config.get( "seed_departures_per_hour" ));
+		seed_after_complete			= Double.parseDouble( config.get( "seed_after_complete" ));
+		peer_up_min					= Integer.parseInt( config.get( "peer_up_min" ));
+		peer_up_max					= Integer.parseInt( config.get( "peer_up_max" ));
+		peer_down_min				= Integer.parseInt( config.get( "peer_down_min" ));
+		peer_down_max				= Integer.parseInt( config.get( "peer_down_max" ));
+		our_up						= Integer.parseInt( config.get( "our_up" ));
+		our_down					= Integer.parseInt( config.get( "our_down" ));
+		unchoke_slots				= Integer.parseInt( config.get( "unchoke_slots" ));
+		strategy_id					= config.get( "strategy" );
+		pipeline					= Boolean.parseBoolean( config.get( "pipeline" ));
+		pipeline_depth				= Integer.parseInt( config.get( "pipeline_depth" ));
+		budget_mb					= Long.parseLong( config.get( "budget_mb" ));
+		verbose						= Boolean.parseBoolean( config.get( "verbose" ));
+
+		plugin.registerStrategy( new RarestPieceStrategy());
+		plugin.registerStrategy( new YieldPieceStrategy());
+		plugin.registerStrategy( new RandomPieceStrategy());
+
+		cpu_time_supported = thread_bean.isCurrentThreadCpuTimeSupported();
+
+		if ( cpu_time_supported && !thread_bean.isThreadCpuTimeEnabled()){
+
+			thread_bean.setThreadCpuTimeEnabled( true );
+		}
+	}
+
+	private void
+	run()
+	{
+		long	rounds = Math.max( 1, hours / torrent_hours );
+
+		long	start = System.currentTimeMillis();
+
+		now = START_TIME;
+
+		PieceSelectionStrategy	strategy = null;
+
+		for ( long round=0;round<rounds;round++ ){
+
+			strategy = runTorrent( round );
+
+			if ( strategy == null ){
+
+				System.out.println( "Unknown strategy '" + strategy_id + "'" );
+
+				return;
+			}
+		}
+
+		System.out.println( "Simulated " + rounds*torrent_hours + "h (" + rounds + " torrents of " + num_pieces + " pieces) in " + ( System.currentTimeMillis() - start ) + "ms" );
+		System.out.println( "Uploaded=" + total_uploaded + ", downloaded=" + total_downloaded + ", ratio=" + ( total_downloaded==0?"-":String.format( "%.3f", (double)total_uploaded/total_downloaded )));
+		System.out.println( "Strategy " + plugin.getStrategyStats( strategy ).getString());
+
+		if ( budget_mb > 0 ){
+
+			System.out.println( "Download budget: " + plugin.getDownloadBudget().getString( plugin.getDailyBudgetBytes()));
+		}
+		System.out.println(
+			"updatePriorities: calls=" + update_calls +
+			", " + ( cpu_time_supported?"cpu":"elapsed" ) + " per call avg=" + ( update_calls==0?0:( update_time/update_calls/1000.0 )) +
+			"us, max=" + update_time_max/1000.0 + "us" );
+	}
+
+	private PieceSelectionStrategy
+	runTorrent(
+		long	round )
+	{
+		name				= "sim-" + round;
+		download			= stub( Download.class, new SimDownload());
+
+		peers				= new ArrayList<SimPeer>();
+		avails				= new int[num_pieces];
+		done				= new boolean[num_pieces];
+		progress			= new int[num_pieces];
+		dm_pieces			= new DiskManagerPiece[num_pieces];
+		upload_window		= new long[UPLOAD_AVERAGE_TICKS];
+		torrent_uploaded	= 0;
+		torrent_downloaded	= 0;
+		tick				= 0;
+		last_sent_tick		= 0;
+
+		active.clear();
+
+		for ( int i=0;i<num_pieces;i++ ){
+
+			dm_pieces[i] = stub( DiskManagerPiece.class, new SimPiece( i ));
+		}
+
+		DownloadState	state = plugin.getDownloadState( download );
+
+		state.setStrategyID( strategy_id );
+
+		PieceSelectionStrategy	strategy = plugin.getStrategy( download );
+
+		if ( strategy == null || !strategy.getID().equals( strategy_id )){
+
+			return( null );
+		}
+
+		clock.setTime( now );
+
+		PEPeerManager	pm 		= stub( PEPeerManager.class, new SimPeerManager());
+		PiecePicker		picker	= stub( PiecePicker.class, new SimPiecePicker());
+
+		PieceAvailabilityIndex	avail_index = new PieceAvailabilityIndex( pm, num_pieces, clock );
+
+		interest_index = new PieceInterestIndex( avail_index );
+
+		SharePriorityProvider	provider = new SharePriorityProvider( plugin, download, pm, avail_index, interest_index );
+
+		provider.setRandomSeed( random.nextLong());
+
+		for ( int i=0;i<initial_seeds;i++ ){
+
+			addPeer( true, 1 );
+		}
+
+		for ( int i=0;i<initial_leechers;i++ ){
+
+			addPeer( false, random.nextDouble());
+		}
+
+		long	ticks = torrent_hours*3600*1000/TICK_MILLIS;
+
+		StrategyStats	stats = plugin.getStrategyStats( strategy );
+
+		state.updateTransferTotals( 0, 0 );
+
+		for ( tick=1;tick<=ticks;tick++ ){
+
+			now += TICK_MILLIS;
+
+			clock.setTime( now );
+
+			churn();
+
+			long	start = cpu_time_supported?thread_bean.getCurrentThreadCpuTime():System.nanoTime();
+
+			long[]	priorities = provider.updatePriorities( picker );
+
+			long	elapsed = ( cpu_time_supported?thread_bean.getCurrentThreadCpuTime():System.nanoTime()) - start;
+
+			update_calls++;
+			update_time += elapsed;
+
+			if ( elapsed > update_time_max ){
+
+				update_time_max = elapsed;
+			}
+
+			long	swarm_supply = 0;
+			long	swarm_demand = 0;
+
+			for ( SimPeer peer: peers ){
+
+				if ( peer.have_count > 0 ){
+
+					swarm_supply += peer.up_rate;
+				}
+
+				if ( !peer.seed ){
+
+					swarm_demand += peer.down_rate;
+				}
+			}
+
+			double	share = Math.min( 1, (double)swarm_supply / ( swarm_demand + our_down + 1 ));
+
+			downloadTargets( priorities, (long)( our_down*share ));
+
+			long	sent = exchange( share );
+
+			upload_window[tick%UPLOAD_AVERAGE_TICKS] = sent;
+
+			if ( sent > 0 ){
+
+				last_sent_tick = tick;
+			}
+
+			if ( tick % PERIODIC_TICKS == 0 ){
+
+				if ( state.updateTransferTotals( torrent_uploaded, torrent_downloaded )){
+
+					stats.addTransfer( state.getUploadedDelta(), state.getDownloadedDelta());
+				}
+
+				rechoke();
+			}
+		}
+
+		if ( state.updateTransferTotals( torrent_uploaded, torrent_downloaded )){
+
+			stats.addTransfer( state.getUploadedDelta(), state.getDownloadedDelta());
+		}
+
+		total_uploaded		+= torrent_uploaded;
+		total_downloaded	+= torrent_downloaded;
+
+		if ( verbose ){
+
+			System.out.println( name + ": uploaded=" + torrent_uploaded + ", downloaded=" + torrent_downloaded + ", peers=" + peers.size());
+		}
+
+		while( !peers.isEmpty()){
+
+			removePeer( peers.size() - 1 );
+		}
+
+		return( strategy );
+	}
+
+	private void
+	churn()
+	{
+		for ( int i=0;i<peers.size();i++ ){
+
+			SimPeer	peer = peers.get( i );
+
+			double	rate = peer.seed?seed_departures_per_hour:leecher_aborts_per_hour;
+
+			if ( random.nextDouble() < rate / 3600 ){
+
+				removePeer( i-- );
+			}
+		}
+
+		int	leechers	= arrivals( leecher_arrivals_per_hour );
+		int	seeds		= arrivals( seed_arrivals_per_hour );
+
+		for ( int i=0;i<leechers;i++ ){
+
+			addPeer( false, 0 );
+		}
+
+		for ( int i=0;i<seeds;i++ ){
+
+			addPeer( true, 1 );
+		}
+	}
+
+	private int
+	arrivals(
+		double	per_hour )
+	{
+		double	per_tick = per_hour / 3600;
+
+		int	res = (int)per_tick;
+
+		if ( random.nextDouble() < per_tick - res ){
+
+			res++;
+		}
+
+		return( res );
+	}
+
+		/**
+		 * Our side of the picker: split the download rate across the targets
+		 */
+
+	private void
+	downloadTargets(
+		long[]	priorities,
+		long	budget )
+	{
+		List<Integer>	targets = new ArrayList<Integer>();
+
+		if ( priorities != null ){
+
+			for ( int i=0;i<num_pieces;i++ ){
+
+				if ( priorities[i] > 0 && !done[i] && avails[i] > 0 ){
+
+					targets.add( i );
+				}
+			}
+		}
+
+			// requests for pieces no longer wanted are dropped, along with what we got of them
+
+		for ( int i=0;i<active.size();i++ ){
+
+			int	piece = active.get( i );
+
+			if ( !targets.contains( piece )){
+
+				progress[piece] = 0;
+
+				active.remove( i-- );
+			}
+		}
+
+		if ( targets.isEmpty()){
+
+			return;
+		}
+
+		long	per_target = budget / targets.size();
+
+		for ( int piece: targets ){
+
+			if ( progress[piece] == 0 ){
+
+				active.add( piece );
+			}
+
+			int	take = (int)Math.min( per_target, piece_size - progress[piece] );
+
+			progress[piece] 	+= take;
+			torrent_downloaded	+= take;
+
+			if ( progress[piece] >= piece_size ){
+
+				done[piece]		= true;
+				progress[piece]	= 0;
+
+				active.remove((Integer)piece );
+
+				interest_index.eventOccurred( stub( PeerManagerEvent.class, new SimPeerManagerEvent( PeerManagerEvent.ET_PIECE_COMPLETION_CHANGED, null )));
+			}
+		}
+	}
+
+		/**
+		 * Leechers fetch from the swarm at their share of its upload capacity, we supply our fraction
+		 * of a piece's sources when we hold it and they are unchoked
+		 *
+		 * @return bytes we sent
+		 */
+
+	private long
+	exchange(
+		double	share )
+	{
+		long	our_budget	= our_up;
+
+		for ( int i=0;i<peers.size();i++ ){
+
+			SimPeer	peer = peers.get( i );
+
+			if ( peer.seed ){
+
+				continue;
+			}
+
+			long	budget = (long)( peer.down_rate * share );
+
+			peer.last_rate = budget;
+
+			while( budget > 0 ){
+
+				if ( peer.current == -1 ){
+
+					peer.current = choosePiece( peer );
+
+					if ( peer.current == -1 ){
+
+						break;
+					}
+				}
+
+				int	piece = peer.current;
+
+				int	take = (int)Math.min( budget, piece_size - peer.progress );
+
+				budget			-= take;
+				peer.progress	+= take;
+
+				if ( done[piece] && peer.unchoked && our_budget > 0 ){
+
+					long	from_us = Math.min( our_budget, take / ( 1 + avails[piece] ));
+
+					our_budget			-= from_us;
+					torrent_uploaded	+= from_us;
+				}
+
+				if ( peer.progress >= piece_size ){
+
+					peer.acquire( piece );
+
+					if ( peer.have_count == num_pieces ){
+
+						if ( random.nextDouble() < seed_after_complete ){
+
+							peer.seed = true;
+
+						}else{
+
+							removePeer( i-- );
+						}
+
+						break;
+					}
+				}
+			}
+		}
+
+		return( our_up - our_budget );
+	}
+
+		/**
+		 * Rarest of a sample of the pieces the peer lacks, -1 if none of them has a source
+		 */
+
+	private int
+	choosePiece(
+		SimPeer		peer )
+	{
+		int	best		= -1;
+		int	best_avail	= Integer.MAX_VALUE;
+
+		int	missing = num_pieces - peer.have_count;
+
+		for ( int i=0;i<PIECE_SAMPLES;i++ ){
+
+			int	piece = peer.missing[random.nextInt( missing )];
+
+			int	avail = avails[piece] + ( done[piece]?1:0 );
+
+			if ( avail > 0 && avail < best_avail ){
+
+				best		= piece;
+				best_avail	= avail;
+			}
+		}
+
+		return( best );
+	}
+
+	private void
+	rechoke()
+	{
+		List<SimPeer>	interested = new ArrayList<SimPeer>();
+
+		for ( SimPeer peer: peers ){
+
+			peer.unchoked = false;
+
+			if ( !peer.seed ){
+
+				interested.add( peer );
+			}
+		}
+
+		for ( int i=0;i<unchoke_slots && !interested.isEmpty();i++ ){
+
+			interested.remove( random.nextInt( interested.size())).unchoked = true;
+		}
+	}
+
+	private void
+	addPeer(
+		boolean		seed,
+		double		fraction_done )
+	{
+		if ( peers.size() >= max_peers ){
+
+			return;
+		}
+
+		SimPeer	peer = new SimPeer( seed );
+
+		int	target = seed?num_pieces:(int)( fraction_done * num_pieces );
+
+		while( peer.have_count < target ){
+
+			peer.acquire( peer.missing[random.nextInt( num_pieces - peer.have_count )]);
+		}
+
+		peers.add( peer );
+
+		interest_index.eventOccurred( stub( PeerManagerEvent.class, new SimPeerManagerEvent( PeerManagerEvent.ET_PEER_ADDED, peer.plugin_peer )));
+
+		peer.fireAvailability( PeerEvent.ET_ADD_AVAILABILITY );
+	}
+
+	private void
+	removePeer(
+		int		index )
+	{
+		SimPeer	peer = peers.remove( index );
+
+		peer.fireAvailability( PeerEvent.ET_REMOVE_AVAILABILITY );
+
+		boolean[]	flags = peer.flags.flags;
+
+		for ( int i=0;i<num_pieces;i++ ){
+
+			if ( flags[i] ){
+
+				avails[i]--;
+			}
+		}
+
+		interest_index.eventOccurred( stub( PeerManagerEvent.class, new SimPeerManagerEvent( PeerManagerEvent.ET_PEER_REMOVED, peer.plugin_peer )));
+	}
+
+	private long
+	getUploadAverage()
+	{
+		long	total = 0;
+
+		for ( long sent: upload_window ){
+
+			total += sent;
+		}
+
+		return( total / UPLOAD_AVERAGE_TICKS );
+	}
+
+	private class
+	SimulatedPlugin
+		extends MaxShareRatioPlugin
+	{
+		private
+		SimulatedPlugin()
+		{
+			super( clock );
+		}
+
+		protected boolean
+		isPipelineEnabled()
+		{
+			return( pipeline );
+		}
+
+		protected int
+		getPipelineMaxDepth()
+		{
+			return( pipeline_depth );
+		}
+
+		protected long
+		getDailyBudgetBytes()
+		{
+			return( budget_mb*1024*1024 );
+		}
+
+		protected long
+		getUploadAverage(
+			Download		download )
+		{
+			return( SwarmSimulator.this.getUploadAverage());
+		}
+
+		protected void
+		log(
+			Download	dl,
+			String		format,
+			Object...	format_args )
+		{
+			if ( verbose ){
+
+				long	secs = tick;
+
+				String	str = format_args.length==0?format:String.format( format, format_args );
+
+				System.out.println( String.format( "%s %02d:%02d:%02d %s", name, secs/3600, ( secs/60 )%60, secs%60, str ));
+			}
+		}
+	}
+
+	private class
+	SimPeer
+	{
+		private final BitFlags		flags		= new BitFlags( num_pieces );
+		private final int[]			missing		= new int[num_pieces];
+		private final int[]			missing_pos	= new int[num_pieces];
+
+		private final int			up_rate;
+		private final int			down_rate;
+
+		private final PEPeer		core_peer;
+		private final PEPeerStats	core_stats;
+		private final Peer			plugin_peer;
+
+		private PeerListener2		listener;
+
+		private boolean		seed;
+		private boolean		unchoked;
+		private int			have_count;
+		private int			current		= -1;
+		private int			progress;
+		private long		last_rate;
+
+		private
+		SimPeer(
+			boolean		_seed )
+		{
+			seed	= _seed;
+
+			up_rate		= peer_up_min + random.nextInt( Math.max( 1, peer_up_max - peer_up_min ));
+			down_rate	= peer_down_min + random.nextInt( Math.max( 1, peer_down_max - peer_down_min ));
+
+			for ( int i=0;i<num_pieces;i++ ){
+
+				missing[i]		= i;
+				missing_pos[i]	= i;
+			}
+
+			core_peer	= stub( PEPeer.class, this );
+			core_stats	= stub( PEPeerStats.class, new SimPeerStats( this ));
+			plugin_peer	= stub( Peer.class, new SimPluginPeer( this ));
+		}
+
+		private void
+		acquire(
+			int		piece )
+		{
+			flags.flags[piece] = true;
+
+				// swap the piece out of the missing set
+
+			int	pos		= missing_pos[piece];
+			int	last	= num_pieces - have_count - 1;
+
+			int	moved = missing[last];
+
+			missing[pos]		= moved;
+			missing_pos[moved]	= pos;
+
+			have_count++;
+
+			avails[piece]++;
+
+			current		= -1;
+			progress	= 0;
+		}
+
+		private void
+		fireAvailability(
+			int		type )
+		{
+			if ( listener != null ){
+
+				listener.eventOccurred( stub( PeerEvent.class, new SimPeerEvent( type, flags.flags.clone())));
+			}
+		}
+
+		public BitFlags
+		getAvailable()
+		{
+			return( flags );
+		}
+
+		public boolean
+		isSeed()
+		{
+			return( seed );
+		}
+
+		public boolean
+		isInterested()
+		{
+			return( !seed );
+		}
+
+		public boolean
+		isChokedByMe()
+		{
+			return( !unchoked );
+		}
+
+		public PEPeerStats
+		getStats()
+		{
+			return( core_stats );
+		}
+
+		public int
+		getPercentDoneInThousandNotation()
+		{
+			return((int)( 1000L * have_count / num_pieces ));
+		}
+
+		public String
+		getIp()
+		{
+			return( "sim-" + System.identityHashCode( this ));
+		}
+	}
+
+	public static class
+	SimPeerStats
+	{
+		private final SimPeer	peer;
+
+		private
+		SimPeerStats(
+			SimPeer	_peer )
+		{
+			peer	= _peer;
+		}
+
+		public long
+		getEstimatedDownloadRateOfPeer()
+		{
+			return( peer.last_rate );
+		}
+	}
+
+	public static class
+	SimPluginPeer
+	{
+		private final SimPeer	peer;
+
+		private
+		SimPluginPeer(
+			SimPeer	_peer )
+		{
+			peer	= _peer;
+		}
+
+		public void
+		addListener(
+			PeerListener2	l )
+		{
+			peer.listener = l;
+		}
+
+		public void
+		removeListener(
+			PeerListener2	l )
+		{
+			if ( peer.listener == l ){
+
+				peer.listener = null;
+			}
+		}
+
+		public boolean
+		isSeed()
+		{
+			return( peer.seed );
+		}
+
+		public boolean[]
+		getAvailable()
+		{
+			return( peer.flags.flags );
+		}
+	}
+
+	public static class
+	SimPeerEvent
+	{
+		private final int		type;
+		private final Object	data;
+
+		protected
+		SimPeerEvent(
+			int		_type,
+			Object	_data )
+		{
+			type	= _type;
+			data	= _data;
+		}
+
+		public int
+		getType()
+		{
+			return( type );
+		}
+
+		public Object
+		getData()
+		{
+			return( data );
+		}
+	}
+
+	public static class
+	SimPeerManagerEvent
+	{
+		private final int		type;
+		private final Peer		peer;
+
+		protected
+		SimPeerManagerEvent(
+			int		_type,
+			Peer	_peer )
+		{
+			type	= _type;
+			peer	= _peer;
+		}
+
+		public int
+		getType()
+		{
+			return( type );
+		}
+
+		public Peer
+		getPeer()
+		{
+			return( peer );
+		}
+
+		public Object
+		getData()
+		{
+			return( null );
+		}
+	}
+
+	public class
+	SimPiece
+	{
+		private final int	number;
+
+		private
+		SimPiece(
+			int		_number )
+		{
+			number	= _number;
+		}
+
+		public boolean
+		isDone()
+		{
+			return( done[number] );
+		}
+
+		public boolean
+		isNeeded()
+		{
+			return( true );
+		}
+
+		public int
+		getLength()
+		{
+			return( piece_size );
+		}
+
+		public int
+		getPieceNumber()
+		{
+			return( number );
+		}
+	}
+
+	public class
+	SimPeerManager
+	{
+		private final DiskManager			disk_manager	= stub( DiskManager.class, new SimDiskManager());
+		private final PEPeerManagerStats	stats			= stub( PEPeerManagerStats.class, new SimPeerManagerStats());
+
+		public DiskManager
+		getDiskManager()
+		{
+			return( disk_manager );
+		}
+
+		public PEPiece
+		getPiece(
+			int		piece )
+		{
+			return( progress[piece]>0?in_progress_piece:null );
+		}
+
+		public PEPiece[]
+		getPieces()
+		{
+			PEPiece[]	result = new PEPiece[num_pieces];
+
+			for ( int i=0;i<num_pieces;i++ ){
+
+				result[i] = getPiece( i );
+			}
+
+			return( result );
+		}
+
+		public PEPeerManagerStats
+		getStats()
+		{
+			return( stats );
+		}
+
+		public List<PEPeer>
+		getPeers()
+		{
+			List<PEPeer>	result = new ArrayList<PEPeer>( peers.size());
+
+			for ( SimPeer peer: peers ){
+
+				result.add( peer.core_peer );
+			}
+
+			return( result );
+		}
+	}
+
+	public class
+	SimDiskManager
+	{
+		public DiskManagerPiece[]
+		getPieces()
+		{
+			return( dm_pieces );
+		}
+
+		public int
+		getNbPieces()
+		{
+			return( num_pieces );
+		}
+	}
+
+	public class
+	SimPeerManagerStats
+	{
+		public int
+		getTimeSinceLastDataSentInSeconds()
+		{
+			return(( tick - last_sent_tick ) * TICK_MILLIS / 1000 );
+		}
+
+		public long
+		getTotalDataBytesSent()
+		{
+			return( torrent_uploaded );
+		}
+	}
+
+	public class
+	SimPiecePicker
+	{
+		private final int[]	picker_avails = new int[num_pieces];
+
+			// the real picker counts our own copy of the pieces we have
+
+		public int[]
+		getAvailability()
+		{
+			for ( int i=0;i<num_pieces;i++ ){
+
+				picker_avails[i] = avails[i] + ( done[i]?1:0 );
+			}
+
+			return( picker_avails );
+		}
+	}
+
+	public class
+	SimDownload
+	{
+		private final Torrent	torrent = stub( Torrent.class, new SimTorrent());
+
+		public String
+		getName()
+		{
+			return( name );
+		}
+
+		public Torrent
+		getTorrent()
+		{
+			return( torrent );
+		}
+
+		public boolean
+		getBooleanAttribute(
+			TorrentAttribute	attribute )
+		{
+				// the enabled attribute, the only boolean one read
+
+			return( true );
+		}
+
+		public String
+		getAttribute(
+			TorrentAttribute	attribute )
+		{
+			return( null );
+		}
+
+		public String
+		toString()
+		{
+			return( name );
+		}
+	}
+
+	public class
+	SimTorrent
+	{
+		public long
+		getPieceCount()
+		{
+			return( num_pieces );
+		}
+
+		public long
+		getPieceSize()
+		{
+			return( piece_size );
+		}
+
+		public byte[]
+		getHash()
+		{
+			return( name.getBytes());
+		}
+	}
+
+		/**
+		 * Implements an interface by forwarding to the public method of the same signature on the
+		 * target. Anything the target doesn't implement throws, so the simulation fails loudly if
+		 * the plugin starts using more of the core than is stubbed here
+		 */
+
+	protected static <T> T
+	stub(
+		Class<T>		type,
+		final Object	target )
+	{
+		return( type.cast(
+			Proxy.newProxyInstance(
+				SwarmSimulator.class.getClassLoader(),
+				new Class<?>[]{ type },
+				new InvocationHandler()
+				{
+					private final Map<Method,Method>	methods = new HashMap<Method,Method>();
+
+						// boxed once so that hash lookups on stubs don't allocate
+
+					private Integer	hash_code;
+
+					public Object
+					invoke(
+						Object		proxy,
+						Method		method,
+						Object[]	args )
+
+						throws Throwable
+					{
+						String	name = method.getName();
+
+						if ( method.getDeclaringClass() == Object.class ){
+
+							if ( name.equals( "equals" )){
+
+								return( proxy == args[0] );
+
+							}else if ( name.equals( "hashCode" )){
+
+								if ( hash_code == null ){
+
+									hash_code = System.identityHashCode( proxy );
+								}
+
+								return( hash_code );
+
+							}else{
+
+								return( target.toString());
+							}
+						}
+
+						Method	impl = methods.get( method );
+
+						if ( impl == null ){
+
+							try{
+								impl = target.getClass().getMethod( name, method.getParameterTypes());
+
+								impl.setAccessible( true );
+
+							}catch( NoSuchMethodException e ){
+
+								throw( new UnsupportedOperationException( "Not simulated: " + method ));
+							}
+
+							methods.put( method, impl );
+						}
+
+						try{
+							return( impl.invoke( target, args ));
+
+						}catch( InvocationTargetException e ){
+
+							throw( e.getCause());
+						}
+					}
+				})));
+	}
+}